@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.netflix.turbine.discovery.Instance;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading the cluster names behind ClusterListUtil, and the per-poll update that maintains them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClusterListUtilBenchmark {
+    @Param({"1000", "8000"})
+    int hosts;
+
+    @Param({"100", "1000"})
+    int clusters;
+
+    private ClusterNameIndex index;
+    private List<Instance> hostsUp;
+
+    @Setup
+    public void setup() {
+        hostsUp = Ec2Fleet.turbineInstances(hosts, clusters, "host-");
+        index = new ClusterNameIndex(c -> true, Collections::emptySet);
+        index.hostsUp(hostsUp);
+    }
+
+    @Benchmark
+    public SortedSet<String> getClusterNames() {
+        return index.getSnapshot().getClusterNames();
+    }
+
+    @Benchmark
+    public ClusterNameIndex.Snapshot hostsUp() {
+        index.hostsUp(hostsUp);
+        return index.getSnapshot();
+    }
+}
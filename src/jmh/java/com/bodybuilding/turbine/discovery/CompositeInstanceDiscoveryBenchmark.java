@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.collect.Lists;
+import com.netflix.turbine.discovery.Instance;
+import com.netflix.turbine.discovery.InstanceDiscovery;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures merging of delegate results in CompositeInstanceDiscovery
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompositeInstanceDiscoveryBenchmark {
+    @Param({"1000", "10000"})
+    int instancesPerDelegate;
+
+    private CompositeInstanceDiscovery discovery;
+
+    @Setup
+    public void setup() {
+        List<Instance> ec2 = Ec2Fleet.turbineInstances(instancesPerDelegate, 100, "ec2-host-");
+        List<Instance> asg = Ec2Fleet.turbineInstances(instancesPerDelegate, 100, "asg-host-");
+        List<Instance> config = Ec2Fleet.turbineInstances(10, 1, "config-host-");
+        InstanceDiscovery ec2Discovery = () -> ec2;
+        InstanceDiscovery asgDiscovery = () -> asg;
+        InstanceDiscovery configDiscovery = () -> config;
+        discovery = new CompositeInstanceDiscovery(Lists.newArrayList(ec2Discovery, asgDiscovery, configDiscovery));
+    }
+
+    @TearDown
+    public void tearDown() {
+        discovery.close();
+    }
+
+    @Benchmark
+    public Collection<Instance> getInstanceList() throws Exception {
+        return discovery.getInstanceList();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+import com.netflix.turbine.discovery.Instance;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds synthetic EC2 and Turbine fleets for benchmarks
+ */
+final class Ec2Fleet {
+    static final String TAG_KEY = "Cluster";
+    private static final int INSTANCES_PER_RESERVATION = 5;
+
+    private Ec2Fleet() {
+    }
+
+    static String clusterName(int index, int clusters) {
+        return "cluster-" + (index % clusters);
+    }
+
+    static com.amazonaws.services.ec2.model.Instance ec2Instance(int index, int clusters) {
+        String ip = "10." + ((index >> 16) & 0xff) + "." + ((index >> 8) & 0xff) + "." + (index & 0xff);
+        return new com.amazonaws.services.ec2.model.Instance()
+                .withInstanceId("i-" + Integer.toHexString(index))
+                .withPrivateIpAddress(ip)
+                .withPrivateDnsName("ip-" + ip.replace('.', '-') + ".ec2.internal")
+                .withPublicDnsName("ec2-" + ip.replace('.', '-') + ".compute-1.amazonaws.com")
+                .withState(new InstanceState().withName("running"))
+                .withTags(new Tag("Name", "instance-" + index), new Tag(TAG_KEY, clusterName(index, clusters)));
+    }
+
+    static List<Reservation> reservations(int instances, int clusters) {
+        List<Reservation> reservations = new ArrayList<>();
+        Reservation reservation = null;
+        for (int i = 0; i < instances; i++) {
+            if (i % INSTANCES_PER_RESERVATION == 0) {
+                reservation = new Reservation();
+                reservations.add(reservation);
+            }
+            reservation.getInstances().add(ec2Instance(i, clusters));
+        }
+        return reservations;
+    }
+
+    static List<Instance> turbineInstances(int instances, int clusters, String hostPrefix) {
+        List<Instance> list = new ArrayList<>(instances);
+        for (int i = 0; i < instances; i++) {
+            list.add(new Instance(hostPrefix + i, clusterName(i, clusters), true));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.amazonaws.services.ec2.model.Reservation;
+import com.netflix.turbine.discovery.Instance;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures mapping of EC2 instances to Turbine instances
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Ec2InstanceMapperBenchmark {
+    @Param({"1000", "10000", "50000"})
+    int instances;
+
+    private final Ec2InstanceMapper mapper = Ec2InstanceMapper.getInstance();
+    private List<Reservation> reservations;
+    private List<com.amazonaws.services.ec2.model.Instance> ec2Instances;
+
+    @Setup
+    public void setup() {
+        reservations = Ec2Fleet.reservations(instances, 100);
+        ec2Instances = new ArrayList<>(instances);
+        reservations.forEach(r -> ec2Instances.addAll(r.getInstances()));
+    }
+
+    @Benchmark
+    public void createTurbineInstance(Blackhole bh) {
+        for (Reservation r : reservations) {
+            for (com.amazonaws.services.ec2.model.Instance i : r.getInstances()) {
+                Instance instance = mapper.createTurbineInstance("cluster", i);
+                bh.consume(instance);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Instance> mapAll() {
+        return mapper.mapAll("cluster", ec2Instances);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.netflix.config.ConfigurationManager;
+import com.netflix.turbine.discovery.Instance;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures conversion of DescribeInstances reservations into Turbine instances
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Ec2TagInstanceDiscoveryBenchmark {
+    @Param({"1000", "10000", "50000"})
+    int instances;
+
+    private Ec2TagInstanceDiscovery discovery;
+    private List<Reservation> reservations;
+
+    @Setup
+    public void setup() {
+        ConfigurationManager.getConfigInstance().setProperty(Ec2TagInstanceDiscovery.PROPERTY_NAME, Ec2Fleet.TAG_KEY);
+        discovery = new Ec2TagInstanceDiscovery(mock(AmazonEC2Client.class));
+        reservations = Ec2Fleet.reservations(instances, 100);
+    }
+
+    @TearDown
+    public void tearDown() {
+        discovery.close();
+    }
+
+    @Benchmark
+    public List<Instance> processReservations() {
+        return discovery.processReservations("us-east-1", reservations);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.servlet;
+
+import com.netflix.turbine.data.TurbineData;
+import com.netflix.turbine.monitor.cluster.ClusterMonitor;
+import com.netflix.turbine.monitor.cluster.ClusterMonitorFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures serialization of the cluster list returned by ClusterListServlet
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClusterListServletBenchmark {
+    @Param({"100", "1000", "10000"})
+    int clusters;
+
+    private SortedSet<String> clusterNames;
+    private ClusterMonitorFactory<?> clusterMonitorFactory;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        clusterNames = new TreeSet<>();
+        for (int i = 0; i < clusters; i++) {
+            clusterNames.add("cluster-" + i);
+        }
+
+        ClusterMonitor<TurbineData> monitor = mock(ClusterMonitor.class);
+        clusterMonitorFactory = new ClusterMonitorFactory<TurbineData>() {
+            @Override
+            public ClusterMonitor<TurbineData> getClusterMonitor(String name) {
+                return monitor;
+            }
+
+            @Override
+            public void initClusterMonitors() {
+            }
+
+            @Override
+            public void shutdownClusterMonitors() {
+            }
+        };
+    }
+
+    @Benchmark
+    public byte[] renderClusterList() throws IOException {
+        return ClusterListServlet.renderClusterList(clusterNames, "http://localhost:8080/turbine.stream?cluster=",
+                Optional.of("http://localhost:8080/monitor/monitor.html?stream="), clusterMonitorFactory);
+    }
+}
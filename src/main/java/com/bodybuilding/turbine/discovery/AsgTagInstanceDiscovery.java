@@ -16,19 +16,34 @@
 
 package com.bodybuilding.turbine.discovery;
 
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
 import com.amazonaws.services.autoscaling.AmazonAutoScalingClient;
+import com.amazonaws.services.autoscaling.model.Activity;
 import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.AutoScalingInstanceDetails;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingInstancesRequest;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingInstancesResult;
 import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
 import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsResult;
+import com.amazonaws.services.autoscaling.model.DescribeScalingActivitiesRequest;
+import com.amazonaws.services.autoscaling.model.DescribeScalingActivitiesResult;
+import com.amazonaws.services.autoscaling.model.DescribeTagsRequest;
+import com.amazonaws.services.autoscaling.model.DescribeTagsResult;
+import com.amazonaws.services.autoscaling.model.Filter;
 import com.amazonaws.services.autoscaling.model.TagDescription;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.Reservation;
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
 import com.netflix.config.DynamicPropertyFactory;
 import com.netflix.config.DynamicStringProperty;
 import com.netflix.turbine.discovery.Instance;
@@ -36,100 +51,440 @@ import com.netflix.turbine.discovery.InstanceDiscovery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 /**
  * Class that encapsulates an {@link InstanceDiscovery} implementation that locates Amazon Auto Scaling Groups by Tag name.
- * The tag value is used as the turbine cluster name
+ * The tag value is used as the turbine cluster name. Every region in turbine.region is searched concurrently.
+ * Instances that are not in service, by lifecycle state or health status, are skipped.
+ * With asgdiscovery.incremental.enabled set, polls between full scans (every asgdiscovery.fullScanIntervalMs) only
+ * describe the groups with new scaling activities or instances still changing state, and only call DescribeInstances
+ * for instance ids that were not seen before.
  */
-public class AsgTagInstanceDiscovery implements InstanceDiscovery {
+public class AsgTagInstanceDiscovery implements ResolvableInstanceDiscovery, Closeable {
     private static final Logger log = LoggerFactory.getLogger(AsgTagInstanceDiscovery.class);
     public static final String TAG_PROPERTY_NAME = "asgdiscovery.tag";
 
     private static final DynamicStringProperty CLUSTER_TAG_KEY = DynamicPropertyFactory.getInstance()
             .getStringProperty(TAG_PROPERTY_NAME, null);
 
-    private final AmazonAutoScalingClient asgClient;
-    private final AmazonEC2Client ec2Client;
+    // max number of instance ids sent in a single DescribeInstances request
+    private static final DynamicIntProperty DESCRIBE_BATCH_SIZE = DynamicPropertyFactory.getInstance()
+            .getIntProperty("asgdiscovery.describeInstances.batchSize", 500);
+
+    private static final DynamicIntProperty DESCRIBE_THREADS = DynamicPropertyFactory.getInstance()
+            .getIntProperty("asgdiscovery.describeInstances.threads", 4);
+
+    // find tagged groups with DescribeTags instead of scanning every group in the account
+    private static final DynamicBooleanProperty DESCRIBE_TAGS_ENABLED = DynamicPropertyFactory.getInstance()
+            .getBooleanProperty("asgdiscovery.describeTags.enabled", false);
+
+    // instances in these lifecycle states are starting, leaving or out of service and are not returned
+    private static final DynamicStringProperty EXCLUDED_LIFECYCLE_STATES = DynamicPropertyFactory.getInstance()
+            .getStringProperty("asgdiscovery.excludedLifecycleStates", "Pending,Pending:Wait,Pending:Proceed,Quarantined,"
+                    + "Terminating,Terminating:Wait,Terminating:Proceed,Terminated,Detaching,Detached,EnteringStandby,Standby");
+
+    private static final DynamicBooleanProperty EXCLUDE_UNHEALTHY = DynamicPropertyFactory.getInstance()
+            .getBooleanProperty("asgdiscovery.excludeUnhealthy", true);
+
+    // after a full scan only groups with scaling activity are described again, until the next full scan
+    private static final DynamicBooleanProperty INCREMENTAL_ENABLED = DynamicPropertyFactory.getInstance()
+            .getBooleanProperty("asgdiscovery.incremental.enabled", false);
+
+    private static final DynamicLongProperty FULL_SCAN_INTERVAL_MS = DynamicPropertyFactory.getInstance()
+            .getLongProperty("asgdiscovery.fullScanIntervalMs", 600000);
+
+    // instances in these states are about to change, their group is described again on the next incremental poll
+    private static final Set<String> TRANSITIONAL_STATES = ImmutableSet.of("Pending", "Pending:Wait", "Pending:Proceed",
+            "Terminating", "Terminating:Wait", "Terminating:Proceed", "Detaching", "EnteringStandby");
+
+    // activity start times come from AWS and are compared with the local clock
+    private static final long ACTIVITY_CLOCK_SKEW_MS = 60000;
+    private static final int ACTIVITY_PAGE_SIZE = 100;
+
+    private static final Splitter SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    // DescribeAutoScalingGroups and DescribeAutoScalingInstances accept at most 50 names or ids per request
+    private static final int GROUP_NAME_BATCH_SIZE = 50;
+    private static final String METRICS_SOURCE = "asg";
+
+    private final Map<String, RegionClients> clientsByRegion;
+    private final RegionFanOut regions;
+    private final ExecutorService describeExecutor;
+    private final DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+    private final AwsRateLimiter rateLimiter = AwsRateLimiter.getInstance();
+    // subclasses written against the per-instance hook keep getting called for every instance
+    private final boolean perInstanceHook = Ec2InstanceMapper.overridesCreateTurbineInstance(getClass(),
+            AsgTagInstanceDiscovery.class);
 
     public AsgTagInstanceDiscovery() {
-        this(new AmazonAutoScalingClient(), new AmazonEC2Client());
+        this(AwsRegions.createClients(AmazonAutoScalingClient::new), AwsRegions.createClients(AmazonEC2Client::new));
     }
 
+    /**
+     * Discovers instances in the first configured region only
+     * @param asgClient client, bound to the region by this constructor
+     * @param ec2Client client, bound to the region by this constructor
+     */
     protected AsgTagInstanceDiscovery(AmazonAutoScalingClient asgClient, AmazonEC2Client ec2Client) {
-        Preconditions.checkNotNull(asgClient);
-        Preconditions.checkNotNull(ec2Client);
+        this(AwsRegions.firstRegion(Preconditions.checkNotNull(asgClient)),
+                AwsRegions.firstRegion(Preconditions.checkNotNull(ec2Client)));
+    }
+
+    /**
+     * @param asgClients clients bound to their region, keyed by region name
+     * @param ec2Clients clients bound to their region, keyed by region name, for the same regions
+     */
+    protected AsgTagInstanceDiscovery(Map<String, AmazonAutoScalingClient> asgClients, Map<String, AmazonEC2Client> ec2Clients) {
+        Preconditions.checkArgument(!asgClients.isEmpty(), "at least one region is required");
+        Preconditions.checkArgument(asgClients.keySet().equals(ec2Clients.keySet()), "clients must cover the same regions");
         Preconditions.checkState(!Strings.isNullOrEmpty(CLUSTER_TAG_KEY.get()), TAG_PROPERTY_NAME + " must be supplied!");
-        this.asgClient = asgClient;
-        this.ec2Client = ec2Client;
+        Map<String, RegionClients> clients = new LinkedHashMap<>();
+        asgClients.forEach((region, asgClient) -> clients.put(region, new RegionClients(region, asgClient, ec2Clients.get(region))));
+        this.clientsByRegion = clients;
+        this.regions = new RegionFanOut(METRICS_SOURCE, clients.keySet());
+        this.describeExecutor = Executors.newFixedThreadPool(Math.max(1, DESCRIBE_THREADS.get()),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("asg-discovery-%d").build());
+        log.debug("Set the regions to {}", clients.keySet());
+    }
 
-        String regionName = DynamicPropertyFactory.getInstance().getStringProperty("turbine.region", "us-east-1").get();
-        Region region = Region.getRegion(Regions.fromName(regionName));
-        ec2Client.setRegion(region);
-        asgClient.setRegion(region);
-        log.debug("Set the region to [{}]", region);
+    /**
+     * Stops the threads used to describe instances and to poll regions concurrently
+     */
+    @Override
+    public void close() {
+        describeExecutor.shutdownNow();
+        regions.close();
     }
 
     @Override
     public Collection<Instance> getInstanceList() throws Exception {
         try {
-            Collection<Instance> instances = getInstanceListInternal();
-            log.debug("Returning instances {}", instances);
-            return instances;
+            return fetchInstanceList();
         } catch (Exception e) {
             log.error("Error getting instances for Auto Scaling Groups with tag {}", CLUSTER_TAG_KEY.get(), e);
         }
         return Collections.emptyList();
     }
 
+    @Override
+    public Collection<Instance> fetchInstanceList() throws Exception {
+        Collection<Instance> instances = metrics.timePoll(METRICS_SOURCE, this::getInstanceListInternal);
+        log.debug("Returning instances {}", instances);
+        return instances;
+    }
+
     private Collection<Instance> getInstanceListInternal() throws Exception {
-        List<Instance> instanceList = new ArrayList<>();
-        findAutoscalingGroups().stream()
-                .map(this::getTurbineInstances)
-                .forEach(instanceList::addAll);
+        return regions.poll(region -> getInstanceListInternal(clientsByRegion.get(region)));
+    }
 
-        return instanceList;
+    private Collection<Instance> getInstanceListInternal(RegionClients clients) throws Exception {
+        if (INCREMENTAL_ENABLED.get() && !clients.index.isFullScanDue()) {
+            return incrementalScan(clients);
+        }
+        return fullScan(clients);
     }
 
     /**
-     * Convert from AWS ASG Instances to Turbine Instances
-     *
-     * @param asg
-     * @return list of Turbine Instances (not AWS Instances)
+     * Describes every tagged group and all of their instances
+     */
+    private Collection<Instance> fullScan(RegionClients clients) throws Exception {
+        long startedAt = System.currentTimeMillis();
+        // instance id -> cluster name, for every instance of every tagged group
+        Map<String, String> clusterByInstanceId = new HashMap<>();
+        Map<String, Group> groups = new LinkedHashMap<>();
+        Set<String> settling = new HashSet<>();
+        InstanceFilter filter = new InstanceFilter();
+        for (AutoScalingGroup asg : findAutoscalingGroups(clients)) {
+            String clusterName = getClusterName(clients, asg);
+            List<String> instanceIds = asg.getInstances().stream()
+                    .filter(filter::isInService)
+                    .map(com.amazonaws.services.autoscaling.model.Instance::getInstanceId)
+                    .collect(Collectors.toList());
+            instanceIds.forEach(id -> clusterByInstanceId.put(id, clusterName));
+            groups.put(asg.getAutoScalingGroupName(), new Group(clusterName, instanceIds));
+            if (isSettling(asg)) {
+                settling.add(asg.getAutoScalingGroupName());
+            }
+        }
+        filter.recordSkipped();
+
+        Map<String, Instance> instances = getTurbineInstances(clients, clusterByInstanceId);
+        if (INCREMENTAL_ENABLED.get()) {
+            clients.index.reset(groups, instances, settling, startedAt);
+        }
+        return new ArrayList<>(instances.values());
+    }
+
+    /**
+     * Describes only the groups with scaling activity since the last poll, or with instances changing state, and only
+     * the instances that are new to those groups
+     */
+    private Collection<Instance> incrementalScan(RegionClients clients) throws Exception {
+        GroupIndex index = clients.index;
+        long startedAt = System.currentTimeMillis();
+        Set<String> refresh = new LinkedHashSet<>(index.settling);
+        for (String groupName : findActiveGroups(clients, index.checkedAtMs - ACTIVITY_CLOCK_SKEW_MS)) {
+            if (!index.untagged.contains(groupName)) {
+                refresh.add(groupName);
+            }
+        }
+
+        if (!refresh.isEmpty()) {
+            Map<String, AutoScalingGroup> described = new HashMap<>();
+            describeAutoscalingGroups(clients, refresh).forEach(g -> described.put(g.getAutoScalingGroupName(), g));
+
+            // instance id -> cluster name, for instances that have not been described yet
+            Map<String, String> clusterByInstanceId = new HashMap<>();
+            InstanceFilter filter = new InstanceFilter();
+            for (String groupName : refresh) {
+                AutoScalingGroup asg = described.get(groupName);
+                if (asg == null) {
+                    // deleted, or not tagged
+                    if (index.groups.remove(groupName) == null) {
+                        index.untagged.add(groupName);
+                    }
+                    index.settling.remove(groupName);
+                    continue;
+                }
+
+                String clusterName = getClusterName(clients, asg);
+                Group previous = index.groups.get(groupName);
+                boolean clusterChanged = previous != null && !previous.cluster.equals(clusterName);
+                List<String> instanceIds = asg.getInstances().stream()
+                        .filter(filter::isInService)
+                        .map(com.amazonaws.services.autoscaling.model.Instance::getInstanceId)
+                        .collect(Collectors.toList());
+                instanceIds.stream()
+                        .filter(id -> clusterChanged || !index.instances.containsKey(id))
+                        .forEach(id -> clusterByInstanceId.put(id, clusterName));
+                index.groups.put(groupName, new Group(clusterName, instanceIds));
+                if (isSettling(asg)) {
+                    index.settling.add(groupName);
+                } else {
+                    index.settling.remove(groupName);
+                }
+            }
+            filter.recordSkipped();
+
+            index.instances.putAll(getTurbineInstances(clients, clusterByInstanceId));
+            index.prune();
+            metrics.increment("discovery_groups_refreshed_total", DiscoveryMetrics.labels("source", METRICS_SOURCE),
+                    refresh.size());
+            log.debug("Refreshed {} groups, described {} new instances", refresh.size(), clusterByInstanceId.size());
+        }
+
+        index.checkedAtMs = startedAt;
+        return index.getInstances();
+    }
+
+    /**
+     * @return true if instances of the group are launching, terminating or unhealthy and will change soon
+     */
+    private static boolean isSettling(AutoScalingGroup asg) {
+        return asg.getInstances().stream().anyMatch(i -> TRANSITIONAL_STATES.contains(i.getLifecycleState())
+                || "Unhealthy".equalsIgnoreCase(i.getHealthStatus()));
+    }
+
+    /**
+     * Returns the names of the groups with scaling activities that are in progress or started since a point in time
+     * @param sinceMs time of the last check
+     * @return group names, tagged or not
+     */
+    private Set<String> findActiveGroups(RegionClients clients, long sinceMs) {
+        Set<String> groupNames = new LinkedHashSet<>();
+        Date since = new Date(sinceMs);
+        boolean older = false;
+        String token = null;
+        do {
+            if (token != null) {
+                rateLimiter.pageJitter();
+            }
+            DescribeScalingActivitiesRequest request = new DescribeScalingActivitiesRequest()
+                    .withMaxRecords(ACTIVITY_PAGE_SIZE);
+            request.setNextToken(token);
+            DescribeScalingActivitiesResult result = rateLimiter.execute(METRICS_SOURCE, clients.region, "autoscaling",
+                    "DescribeScalingActivities", () -> clients.asg.describeScalingActivities(request));
+            // activities in progress are listed first, then the others by start time, newest first
+            for (Activity activity : result.getActivities()) {
+                if (activity.getEndTime() == null || activity.getStartTime() == null
+                        || !activity.getStartTime().before(since)) {
+                    groupNames.add(activity.getAutoScalingGroupName());
+                } else {
+                    older = true;
+                }
+            }
+
+            token = result.getNextToken();
+        } while (!older && !Strings.isNullOrEmpty(token));
+
+        return groupNames;
+    }
+
+    @Override
+    public Collection<Instance> resolveInstances(Collection<String> instanceIds) throws Exception {
+        // instance ids are unique across regions, every region is asked for all of them
+        return regions.query(region -> resolveInstances(clientsByRegion.get(region), instanceIds));
+    }
+
+    private Collection<Instance> resolveInstances(RegionClients clients, Collection<String> instanceIds) throws Exception {
+        Set<String> groupNames = new LinkedHashSet<>();
+        for (List<String> batch : Iterables.partition(instanceIds, GROUP_NAME_BATCH_SIZE)) {
+            groupNames.addAll(findGroupNames(clients, batch));
+        }
+
+        // only the requested instances of each tagged group
+        Set<String> requested = new HashSet<>(instanceIds);
+        Map<String, String> clusterByInstanceId = new HashMap<>();
+        InstanceFilter filter = new InstanceFilter();
+        for (AutoScalingGroup asg : describeAutoscalingGroups(clients, groupNames)) {
+            String clusterName = getClusterName(clients, asg);
+            asg.getInstances().stream()
+                    .filter(i -> requested.contains(i.getInstanceId()))
+                    .filter(filter::isInService)
+                    .forEach(i -> clusterByInstanceId.put(i.getInstanceId(), clusterName));
+        }
+        filter.recordSkipped();
+
+        return new ArrayList<>(getTurbineInstances(clients, clusterByInstanceId).values());
+    }
+
+    /**
+     * Returns the names of the auto scaling groups of a batch of instances
+     * @param instanceIds EC2 instance ids, at most GROUP_NAME_BATCH_SIZE
+     * @return group names, instances that are not part of a group are skipped
      */
-    private List<Instance> getTurbineInstances(AutoScalingGroup asg) {
+    private Set<String> findGroupNames(RegionClients clients, List<String> instanceIds) {
+        Set<String> groupNames = new LinkedHashSet<>();
+        String token = null;
+        do {
+            if (token != null) {
+                rateLimiter.pageJitter();
+            }
+            DescribeAutoScalingInstancesRequest request = new DescribeAutoScalingInstancesRequest()
+                    .withInstanceIds(instanceIds);
+            request.setNextToken(token);
+            DescribeAutoScalingInstancesResult result = rateLimiter.execute(METRICS_SOURCE, clients.region, "autoscaling",
+                    "DescribeAutoScalingInstances", () -> clients.asg.describeAutoScalingInstances(request));
+            result.getAutoScalingInstances().stream()
+                    .map(AutoScalingInstanceDetails::getAutoScalingGroupName)
+                    .forEach(groupNames::add);
+
+            token = result.getNextToken();
+        } while (!Strings.isNullOrEmpty(token));
+
+        return groupNames;
+    }
+
+    private String getClusterName(RegionClients clients, AutoScalingGroup asg) {
         String clusterName = asg.getTags()
                 .stream()
                 .filter(t -> t.getKey().equals(CLUSTER_TAG_KEY.get()))
                 .findAny()
                 .get().getValue();
+        return AwsRegions.clusterName(clusterName, clients.region);
+    }
 
-        List<com.amazonaws.services.autoscaling.model.Instance> awsInstances = asg.getInstances();
+    /**
+     * Looks up the EC2 details of all ASG instances and converts them to Turbine Instances. The instance ids
+     * of all groups are split into batches which are described concurrently.
+     *
+     * @param clusterByInstanceId cluster name keyed by EC2 instance id
+     * @return Turbine Instances (not AWS Instances) keyed by EC2 instance id
+     */
+    private Map<String, Instance> getTurbineInstances(RegionClients clients, Map<String, String> clusterByInstanceId) throws Exception {
+        if (clusterByInstanceId.isEmpty()) {
+            // a DescribeInstances request without instance ids would return every instance in the region
+            return Collections.emptyMap();
+        }
+
+        List<Future<List<com.amazonaws.services.ec2.model.Instance>>> batches = new ArrayList<>();
+        for (List<String> batch : Iterables.partition(clusterByInstanceId.keySet(), Math.max(1, DESCRIBE_BATCH_SIZE.get()))) {
+            batches.add(describeExecutor.submit(() -> describeInstances(clients, batch)));
+        }
+
+        Map<String, Instance> turbineInstances = new LinkedHashMap<>();
+        try {
+            for (Future<List<com.amazonaws.services.ec2.model.Instance>> batch : batches) {
+                // the host field of each cluster is resolved once per batch
+                Map<String, List<com.amazonaws.services.ec2.model.Instance>> ec2InstancesByCluster = batch.get().stream()
+                        .filter(i -> !Strings.isNullOrEmpty(i.getPublicDnsName()))
+                        .filter(i -> clusterByInstanceId.containsKey(i.getInstanceId()))
+                        .collect(Collectors.groupingBy(i -> clusterByInstanceId.get(i.getInstanceId()),
+                                LinkedHashMap::new, Collectors.toList()));
+                ec2InstancesByCluster.forEach((cluster, ec2Instances) -> {
+                    List<Instance> instances = createTurbineInstances(cluster, ec2Instances);
+                    for (int i = 0; i < ec2Instances.size(); i++) {
+                        turbineInstances.put(ec2Instances.get(i).getInstanceId(), instances.get(i));
+                    }
+                });
+            }
+        } catch (ExecutionException e) {
+            batches.forEach(f -> f.cancel(true));
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
 
-        Collection<String> instanceIds = awsInstances.stream()
-                .map(com.amazonaws.services.autoscaling.model.Instance::getInstanceId)
-                .collect(Collectors.toSet());
+        return turbineInstances;
+    }
 
-        DescribeInstancesRequest request = new DescribeInstancesRequest();
-        request.withInstanceIds(instanceIds);
+    /**
+     * Describes a batch of EC2 instances, following pagination
+     * @param instanceIds ids of the instances to describe
+     * @return EC2 instances
+     */
+    private List<com.amazonaws.services.ec2.model.Instance> describeInstances(RegionClients clients, Collection<String> instanceIds) {
+        List<com.amazonaws.services.ec2.model.Instance> ec2Instances = new ArrayList<>();
+        String token = null;
+        do {
+            if (token != null) {
+                // spread out page requests of concurrent pollers
+                rateLimiter.pageJitter();
+            }
+            DescribeInstancesRequest request = new DescribeInstancesRequest();
+            request.withInstanceIds(instanceIds);
+            request.setNextToken(token);
 
-        DescribeInstancesResult describeInstancesResult = ec2Client.describeInstances(request);
-        List<Reservation> reservations = describeInstancesResult.getReservations();
-        List<Instance> turbineInstances = new ArrayList<>();
+            DescribeInstancesResult result = rateLimiter.execute(METRICS_SOURCE, clients.region, "ec2", "DescribeInstances",
+                    () -> clients.ec2.describeInstances(request));
+            result.getReservations().stream()
+                    .map(Reservation::getInstances)
+                    .forEach(ec2Instances::addAll);
 
-        // add all instances from each of the reservations - after converting to Turbine instance
-        reservations.stream()
-                .flatMap(r -> r.getInstances().stream())
-                .filter(i -> !Strings.isNullOrEmpty(i.getPublicDnsName()))
-                .map(i -> createTurbineInstance(clusterName, i))
-                .forEach(turbineInstances::add);
+            token = result.getNextToken();
+        } while (!Strings.isNullOrEmpty(token));
 
+        return ec2Instances;
+    }
 
-        return turbineInstances;
+    /**
+     * Maps EC2 Instances of a single cluster to Turbine instances.
+     * @param clusterName name of the cluster for these instances
+     * @param ec2Instances EC2 instance models
+     * @return Turbine instances, in the same order
+     */
+    protected List<Instance> createTurbineInstances(String clusterName, List<com.amazonaws.services.ec2.model.Instance> ec2Instances) {
+        if (perInstanceHook) {
+            return ec2Instances.stream()
+                    .map(i -> createTurbineInstance(clusterName, i))
+                    .collect(Collectors.toList());
+        }
+        return Ec2InstanceMapper.getInstance().mapAll(clusterName, ec2Instances);
     }
 
     /**
@@ -137,7 +492,10 @@ public class AsgTagInstanceDiscovery implements InstanceDiscovery {
      * @param clusterName name of the cluster for this instance
      * @param ec2Instance EC2 instance model
      * @return Turbine instance
+     * @deprecated override {@link #createTurbineInstances(String, List)}, which maps all instances of a cluster at
+     * once. This hook is only called when a subclass overrides it.
      */
+    @Deprecated
     protected Instance createTurbineInstance(String clusterName, com.amazonaws.services.ec2.model.Instance ec2Instance) {
         return Ec2InstanceMapper.getInstance().createTurbineInstance(clusterName, ec2Instance);
     }
@@ -146,13 +504,21 @@ public class AsgTagInstanceDiscovery implements InstanceDiscovery {
      * Returns auto scaling groups that have the CLUSTER_TAG_KEY tag
      * @return collection of AutoScalingGroup that contain the CLUSTER_TAG_KEY
      */
-    private Collection<AutoScalingGroup> findAutoscalingGroups() {
+    private Collection<AutoScalingGroup> findAutoscalingGroups(RegionClients clients) {
+        if (DESCRIBE_TAGS_ENABLED.get()) {
+            return findTaggedAutoscalingGroups(clients);
+        }
+
         String token = null;
         List<AutoScalingGroup> groupList = new ArrayList<>();
         do {
+            if (token != null) {
+                rateLimiter.pageJitter();
+            }
             DescribeAutoScalingGroupsRequest request = new DescribeAutoScalingGroupsRequest();
             request.setNextToken(token);
-            DescribeAutoScalingGroupsResult result = asgClient.describeAutoScalingGroups(request);
+            DescribeAutoScalingGroupsResult result = rateLimiter.execute(METRICS_SOURCE, clients.region, "autoscaling",
+                    "DescribeAutoScalingGroups", () -> clients.asg.describeAutoScalingGroups(request));
             result.getAutoScalingGroups().stream()
                     .filter(a -> containsTag(a.getTags()))
                     .forEach(groupList::add);
@@ -166,4 +532,189 @@ public class AsgTagInstanceDiscovery implements InstanceDiscovery {
     private boolean containsTag(Collection<TagDescription> tags) {
         return tags.stream().anyMatch(t -> t.getKey().equals(CLUSTER_TAG_KEY.get()));
     }
+
+    /**
+     * Returns auto scaling groups that have the CLUSTER_TAG_KEY tag, using DescribeTags to find the group names
+     * so that only tagged groups are described
+     * @return collection of AutoScalingGroup that contain the CLUSTER_TAG_KEY
+     */
+    private Collection<AutoScalingGroup> findTaggedAutoscalingGroups(RegionClients clients) {
+        return describeAutoscalingGroups(clients, findTaggedGroupNames(clients));
+    }
+
+    /**
+     * Describes auto scaling groups by name
+     * @param names group names
+     * @return groups that still exist and contain the CLUSTER_TAG_KEY
+     */
+    private Collection<AutoScalingGroup> describeAutoscalingGroups(RegionClients clients, Collection<String> names) {
+        List<AutoScalingGroup> groupList = new ArrayList<>();
+        for (List<String> groupNames : Iterables.partition(names, GROUP_NAME_BATCH_SIZE)) {
+            String token = null;
+            do {
+                if (token != null) {
+                    rateLimiter.pageJitter();
+                }
+                DescribeAutoScalingGroupsRequest request = new DescribeAutoScalingGroupsRequest()
+                        .withAutoScalingGroupNames(groupNames);
+                request.setNextToken(token);
+                DescribeAutoScalingGroupsResult result = rateLimiter.execute(METRICS_SOURCE, clients.region, "autoscaling",
+                        "DescribeAutoScalingGroups", () -> clients.asg.describeAutoScalingGroups(request));
+                // the tag may have been removed since the group names were looked up
+                result.getAutoScalingGroups().stream()
+                        .filter(a -> containsTag(a.getTags()))
+                        .forEach(groupList::add);
+
+                token = result.getNextToken();
+            } while (!Strings.isNullOrEmpty(token));
+        }
+
+        return groupList;
+    }
+
+    /**
+     * Returns the names of the auto scaling groups that have the CLUSTER_TAG_KEY tag
+     * @return group names
+     */
+    private Set<String> findTaggedGroupNames(RegionClients clients) {
+        String token = null;
+        Set<String> groupNames = new LinkedHashSet<>();
+        do {
+            if (token != null) {
+                rateLimiter.pageJitter();
+            }
+            DescribeTagsRequest request = new DescribeTagsRequest()
+                    .withFilters(new Filter().withName("key").withValues(CLUSTER_TAG_KEY.get()));
+            request.setNextToken(token);
+            DescribeTagsResult result = rateLimiter.execute(METRICS_SOURCE, clients.region, "autoscaling", "DescribeTags",
+                    () -> clients.asg.describeTags(request));
+            result.getTags().stream()
+                    .filter(t -> "auto-scaling-group".equals(t.getResourceType()))
+                    .map(TagDescription::getResourceId)
+                    .forEach(groupNames::add);
+
+            token = result.getNextToken();
+        } while (!Strings.isNullOrEmpty(token));
+
+        return groupNames;
+    }
+
+    /**
+     * Clients of a single region
+     */
+    private static class RegionClients {
+        private final String region;
+        private final AmazonAutoScalingClient asg;
+        private final AmazonEC2Client ec2;
+        private final GroupIndex index = new GroupIndex();
+
+        RegionClients(String region, AmazonAutoScalingClient asg, AmazonEC2Client ec2) {
+            this.region = region;
+            this.asg = asg;
+            this.ec2 = ec2;
+        }
+    }
+
+    /**
+     * Tagged groups and instances of a region known from the previous polls, kept for incremental polls
+     */
+    private static class GroupIndex {
+        private final Map<String, Group> groups = new LinkedHashMap<>();
+        // Turbine instances keyed by EC2 instance id
+        private final Map<String, Instance> instances = new HashMap<>();
+        // groups described on every poll until their instances stop changing state
+        private final Set<String> settling = new HashSet<>();
+        // groups with activity that turned out not to be tagged, ignored until the next full scan
+        private final Set<String> untagged = new HashSet<>();
+        private long fullScanMs;
+        private long checkedAtMs;
+        private boolean initialized;
+
+        boolean isFullScanDue() {
+            return !initialized || System.currentTimeMillis() - fullScanMs >= FULL_SCAN_INTERVAL_MS.get();
+        }
+
+        void reset(Map<String, Group> groups, Map<String, Instance> instances, Set<String> settling, long scannedAtMs) {
+            this.groups.clear();
+            this.groups.putAll(groups);
+            this.instances.clear();
+            this.instances.putAll(instances);
+            this.settling.clear();
+            this.settling.addAll(settling);
+            this.untagged.clear();
+            this.fullScanMs = scannedAtMs;
+            this.checkedAtMs = scannedAtMs;
+            this.initialized = true;
+        }
+
+        /**
+         * Drops instances that are no longer part of a group
+         */
+        void prune() {
+            Set<String> current = new HashSet<>();
+            groups.values().forEach(g -> current.addAll(g.instanceIds));
+            instances.keySet().retainAll(current);
+        }
+
+        List<Instance> getInstances() {
+            List<Instance> result = new ArrayList<>(instances.size());
+            for (Group group : groups.values()) {
+                for (String id : group.instanceIds) {
+                    Instance instance = instances.get(id);
+                    if (instance != null) {
+                        result.add(instance);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Cluster and in service instance ids of a tagged group
+     */
+    private static class Group {
+        private final String cluster;
+        private final List<String> instanceIds;
+
+        Group(String cluster, List<String> instanceIds) {
+            this.cluster = cluster;
+            this.instanceIds = instanceIds;
+        }
+    }
+
+    /**
+     * Skips group instances by lifecycle state and health during one poll, counting the skipped instances by reason
+     */
+    private class InstanceFilter {
+        private final Set<String> excludedStates = new HashSet<>();
+        private final boolean excludeUnhealthy = EXCLUDE_UNHEALTHY.get();
+        private final Map<String, Long> skipped = new HashMap<>();
+
+        InstanceFilter() {
+            SPLITTER.split(EXCLUDED_LIFECYCLE_STATES.get()).forEach(excludedStates::add);
+        }
+
+        boolean isInService(com.amazonaws.services.autoscaling.model.Instance instance) {
+            // a missing state or health status is not a reason to skip an instance
+            String state = instance.getLifecycleState();
+            if (state != null && excludedStates.contains(state)) {
+                skipped.merge(state, 1L, Long::sum);
+                return false;
+            }
+            if (excludeUnhealthy && "Unhealthy".equalsIgnoreCase(instance.getHealthStatus())) {
+                skipped.merge("Unhealthy", 1L, Long::sum);
+                return false;
+            }
+            return true;
+        }
+
+        void recordSkipped() {
+            skipped.forEach((reason, count) -> metrics.increment("discovery_instances_skipped_total",
+                    DiscoveryMetrics.labels("source", METRICS_SOURCE, "reason", reason), count));
+            if (!skipped.isEmpty()) {
+                log.debug("Skipped instances that are not in service: {}", skipped);
+            }
+        }
+    }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
+import com.google.common.util.concurrent.RateLimiter;
+import com.netflix.config.DynamicDoubleProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide rate limiter for the AWS APIs called by the discovery plugins. Every API in every region gets its own
+ * token bucket, shared by all discovery instances, whose rate adapts with AIMD: a throttling error halves the rate and
+ * each successful request adds back a small step, up to the configured maximum. Throttled requests are retried with
+ * jittered exponential backoff. Clients should be created with {@link #clientConfiguration()} so that the SDK does
+ * not retry throttled requests itself.
+ */
+class AwsRateLimiter {
+    private static final Logger log = LoggerFactory.getLogger(AwsRateLimiter.class);
+    private static final AwsRateLimiter INSTANCE = new AwsRateLimiter();
+    private static final String PROPERTY_PREFIX = "discovery.aws.";
+    private static final DynamicDoubleProperty MAX_RATE = DynamicPropertyFactory.getInstance()
+            .getDoubleProperty(PROPERTY_PREFIX + "maxRequestsPerSecond", 10);
+    private static final DynamicDoubleProperty MIN_RATE = DynamicPropertyFactory.getInstance()
+            .getDoubleProperty(PROPERTY_PREFIX + "minRequestsPerSecond", 0.5);
+    private static final DynamicIntProperty MAX_RETRIES = DynamicPropertyFactory.getInstance()
+            .getIntProperty(PROPERTY_PREFIX + "throttleRetries", 3);
+    private static final DynamicLongProperty BACKOFF_MS = DynamicPropertyFactory.getInstance()
+            .getLongProperty(PROPERTY_PREFIX + "throttleBackoffMs", 200);
+    private static final DynamicLongProperty PAGE_JITTER_MS = DynamicPropertyFactory.getInstance()
+            .getLongProperty(PROPERTY_PREFIX + "pageJitterMs", 100);
+    // fraction of the max rate added back after each successful request
+    private static final double INCREASE_STEP = 0.05;
+    private static final double DECREASE_FACTOR = 0.5;
+
+    private final ConcurrentMap<String, ApiLimiter> limiters = new ConcurrentHashMap<>();
+    private final DiscoveryMetrics metrics;
+
+    AwsRateLimiter(DiscoveryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private AwsRateLimiter() {
+        this(DiscoveryMetrics.getInstance());
+    }
+
+    static AwsRateLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the configuration for clients whose requests go through the limiter. The SDK keeps its default retries
+     * for other retryable errors, but throttling errors reach the limiter on the first attempt, so it cuts the rate
+     * right away and is the only layer that retries them.
+     * @return client configuration
+     */
+    static ClientConfiguration clientConfiguration() {
+        RetryPolicy.RetryCondition retryCondition = (request, e, retriesAttempted) ->
+                !DiscoveryMetrics.isThrottlingError(e)
+                        && PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request, e, retriesAttempted);
+        return new ClientConfiguration().withRetryPolicy(new RetryPolicy(retryCondition,
+                PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY, PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true));
+    }
+
+    /**
+     * Executes an AWS request once a permit for its API is available, retrying it if it is throttled
+     * @param source discovery source label for metrics
+     * @param service AWS service, e.g. ec2
+     * @param operation AWS operation, e.g. DescribeInstances
+     * @param call the request
+     * @return result of the request
+     */
+    <T> T execute(String source, String service, String operation, Supplier<T> call) {
+        return execute(source, null, service, operation, call);
+    }
+
+    /**
+     * Executes an AWS request once a permit for its API in its region is available, retrying it if it is throttled.
+     * AWS limits request rates per region, so every region has its own bucket.
+     * @param source discovery source label for metrics
+     * @param region region the client is bound to, null for a region independent bucket
+     * @param service AWS service, e.g. ec2
+     * @param operation AWS operation, e.g. DescribeInstances
+     * @param call the request
+     * @return result of the request
+     */
+    <T> T execute(String source, String region, String service, String operation, Supplier<T> call) {
+        ApiLimiter limiter = getLimiter(region, service + "." + operation);
+        int attempt = 0;
+        while (true) {
+            limiter.acquire();
+            try {
+                T result = metrics.timeAwsCall(source, operation, call);
+                limiter.onSuccess();
+                return result;
+            } catch (RuntimeException e) {
+                if (!DiscoveryMetrics.isThrottlingError(e)) {
+                    throw e;
+                }
+                limiter.onThrottle();
+                if (attempt >= MAX_RETRIES.get()) {
+                    throw e;
+                }
+                metrics.increment("discovery_aws_retries_total", DiscoveryMetrics.labels("source", source, "operation", operation), 1);
+                long backoff = ThreadLocalRandom.current().nextLong(BACKOFF_MS.get() * (1L << Math.min(attempt, 10)) + 1);
+                log.debug("{} was throttled, retrying in {}ms", operation, backoff);
+                sleep(backoff, e);
+                attempt++;
+            }
+        }
+    }
+
+    /**
+     * Sleeps for a random time up to discovery.aws.pageJitterMs, spreading out requests for consecutive pages
+     */
+    void pageJitter() {
+        long maxJitter = PAGE_JITTER_MS.get();
+        if (maxJitter > 0) {
+            sleep(ThreadLocalRandom.current().nextLong(maxJitter + 1), null);
+        }
+    }
+
+    /**
+     * Returns the current allowed rate for an API, for monitoring and tests
+     */
+    double getRate(String service, String operation) {
+        return getLimiter(null, service + "." + operation).rateLimiter.getRate();
+    }
+
+    private ApiLimiter getLimiter(String region, String api) {
+        return limiters.computeIfAbsent(region == null ? api : region + "/" + api, k -> new ApiLimiter(k, api));
+    }
+
+    private static void sleep(long millis, RuntimeException cause) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            if (cause != null) {
+                throw cause;
+            }
+            throw new IllegalStateException("Interrupted while waiting between AWS requests", ie);
+        }
+    }
+
+    /**
+     * Token bucket of a single API with AIMD rate adjustment
+     */
+    private static class ApiLimiter {
+        private final String name;
+        // optional per API override of discovery.aws.maxRequestsPerSecond, applies to every region
+        private final DynamicDoubleProperty apiMaxRate;
+        private final RateLimiter rateLimiter;
+
+        ApiLimiter(String name, String api) {
+            this.name = name;
+            this.apiMaxRate = DynamicPropertyFactory.getInstance()
+                    .getDoubleProperty(PROPERTY_PREFIX + api + ".maxRequestsPerSecond", -1);
+            this.rateLimiter = RateLimiter.create(getMaxRate());
+        }
+
+        double getMaxRate() {
+            return apiMaxRate.get() > 0 ? apiMaxRate.get() : MAX_RATE.get();
+        }
+
+        void acquire() {
+            rateLimiter.acquire();
+        }
+
+        synchronized void onSuccess() {
+            double max = getMaxRate();
+            double rate = rateLimiter.getRate();
+            if (rate != max) {
+                rateLimiter.setRate(Math.min(max, rate + max * INCREASE_STEP));
+            }
+        }
+
+        synchronized void onThrottle() {
+            double rate = Math.max(MIN_RATE.get(), rateLimiter.getRate() * DECREASE_FACTOR);
+            log.warn("{} was throttled, reducing request rate to {}/s", name, rate);
+            rateLimiter.setRate(rate);
+        }
+    }
+}
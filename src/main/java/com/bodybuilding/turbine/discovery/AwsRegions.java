@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Regions configured with the comma separated turbine.region property. Clients are bound to their region when a
+ * discovery is created, so changes to the region list need a restart.
+ */
+final class AwsRegions {
+    public static final String REGION_PROPERTY_NAME = "turbine.region";
+    private static final DynamicStringProperty REGIONS = DynamicPropertyFactory.getInstance()
+            .getStringProperty(REGION_PROPERTY_NAME, "us-east-1");
+    // appends "@<region>" to cluster names, for clusters with the same name in several regions
+    private static final DynamicBooleanProperty QUALIFY_CLUSTER_NAMES = DynamicPropertyFactory.getInstance()
+            .getBooleanProperty("turbine.region.qualifyClusterNames", false);
+    private static final Splitter SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private AwsRegions() {
+    }
+
+    /**
+     * @return configured region names, validated and without duplicates
+     */
+    static List<String> getRegionNames() {
+        Set<String> names = new LinkedHashSet<>();
+        for (String name : SPLITTER.split(REGIONS.get())) {
+            // fails on unknown regions
+            names.add(Regions.fromName(name).getName());
+        }
+        Preconditions.checkState(!names.isEmpty(), REGION_PROPERTY_NAME + " must name at least one region");
+        return ImmutableList.copyOf(names);
+    }
+
+    /**
+     * Creates one client per configured region, configured to leave throttling retries to {@link AwsRateLimiter}
+     * @param factory creates an unbound client from a client configuration
+     * @return clients keyed by region name, in configuration order
+     */
+    static <T extends AmazonWebServiceClient> Map<String, T> createClients(Function<ClientConfiguration, T> factory) {
+        Map<String, T> clients = new LinkedHashMap<>();
+        for (String name : getRegionNames()) {
+            T client = factory.apply(AwsRateLimiter.clientConfiguration());
+            client.setRegion(Region.getRegion(Regions.fromName(name)));
+            clients.put(name, client);
+        }
+        return clients;
+    }
+
+    /**
+     * Binds an existing client to the first configured region
+     * @param client client to bind
+     * @return the client keyed by its region name
+     */
+    static <T extends AmazonWebServiceClient> Map<String, T> firstRegion(T client) {
+        String name = getRegionNames().get(0);
+        client.setRegion(Region.getRegion(Regions.fromName(name)));
+        Map<String, T> clients = new LinkedHashMap<>();
+        clients.put(name, client);
+        return clients;
+    }
+
+    /**
+     * Returns the Turbine cluster name for a cluster in a region
+     * @param cluster cluster name from the instance or group tag
+     * @param region region name
+     * @return the cluster name, qualified with the region if turbine.region.qualifyClusterNames is set
+     */
+    static String clusterName(String cluster, String region) {
+        return QUALIFY_CLUSTER_NAMES.get() ? cluster + "@" + region : cluster;
+    }
+}
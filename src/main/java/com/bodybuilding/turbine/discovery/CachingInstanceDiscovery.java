@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+import com.netflix.turbine.discovery.Instance;
+import com.netflix.turbine.discovery.InstanceDiscovery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link InstanceDiscovery} decorator that refreshes the wrapped discovery on its own jittered schedule and always
+ * returns the latest snapshot without waiting on the wrapped discovery. A failed refresh keeps the last known-good
+ * snapshot, which is served until it is older than the configured maximum staleness.
+ * When a snapshot file is configured every changed instance list is also written to disk, and an unchanged list is
+ * rewritten once the stored copy is half the snapshot max age old so that its timestamp tracks the last successful
+ * refresh. After a restart the stored list is served right away, if it is recent enough, while the first refresh of
+ * the wrapped discovery runs in the background.
+ * {@link #fetchInstanceList()} throws while the last refresh failed, so callers with their own fallback, like
+ * {@link CompositeInstanceDiscovery}'s circuit breaker, still see the failures of the wrapped discovery.
+ */
+public class CachingInstanceDiscovery implements FallibleInstanceDiscovery, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(CachingInstanceDiscovery.class);
+    public static final String DELEGATE_PROPERTY_NAME = "CachingInstanceDiscovery.delegate";
+    private static final DynamicStringProperty DELEGATE_PROP = DynamicPropertyFactory.getInstance()
+            .getStringProperty(DELEGATE_PROPERTY_NAME, null);
+    private static final DynamicLongProperty TTL_PROP = DynamicPropertyFactory.getInstance()
+            .getLongProperty("CachingInstanceDiscovery.ttlMs", 30000);
+    private static final DynamicLongProperty MAX_STALE_PROP = DynamicPropertyFactory.getInstance()
+            .getLongProperty("CachingInstanceDiscovery.maxStaleMs", 600000);
+    private static final DynamicStringProperty SNAPSHOT_FILE_PROP = DynamicPropertyFactory.getInstance()
+            .getStringProperty("CachingInstanceDiscovery.snapshotFile", null);
+    private static final DynamicLongProperty SNAPSHOT_MAX_AGE_PROP = DynamicPropertyFactory.getInstance()
+            .getLongProperty("CachingInstanceDiscovery.snapshotMaxAgeMs", 3600000);
+    // refreshes are spread by up to +/- 10% of the ttl
+    private static final double JITTER = 0.1;
+
+    private final InstanceDiscovery delegate;
+    private final DynamicLongProperty ttlMs;
+    private final DynamicLongProperty maxStaleMs;
+    private final Optional<InstanceSnapshotFile> snapshotFile;
+    private final DynamicLongProperty snapshotMaxAgeMs;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile Snapshot snapshot;
+    private volatile Exception lastFailure;
+    // timestamp stored in the snapshot file, only touched on the refresh thread
+    private long savedTimestamp;
+
+    public CachingInstanceDiscovery() {
+        this(loadDelegate());
+    }
+
+    public CachingInstanceDiscovery(InstanceDiscovery delegate) {
+        this(delegate, TTL_PROP, MAX_STALE_PROP, Optional.ofNullable(Strings.emptyToNull(SNAPSHOT_FILE_PROP.get()))
+                .map(Paths::get), SNAPSHOT_MAX_AGE_PROP);
+    }
+
+    /**
+     * @param delegate discovery to cache
+     * @param ttlMs time between refreshes of the delegate
+     * @param maxStaleMs maximum age of a snapshot that is still served while refreshes fail
+     */
+    public CachingInstanceDiscovery(InstanceDiscovery delegate, DynamicLongProperty ttlMs, DynamicLongProperty maxStaleMs) {
+        this(delegate, ttlMs, maxStaleMs, Optional.empty(), SNAPSHOT_MAX_AGE_PROP);
+    }
+
+    /**
+     * @param delegate discovery to cache
+     * @param ttlMs time between refreshes of the delegate
+     * @param maxStaleMs maximum age of a snapshot that is still served while refreshes fail
+     * @param snapshotFile file the last good instance list is stored in, if any
+     * @param snapshotMaxAgeMs maximum age of a stored instance list that is still served after a restart
+     */
+    public CachingInstanceDiscovery(InstanceDiscovery delegate, DynamicLongProperty ttlMs, DynamicLongProperty maxStaleMs,
+                                    Optional<Path> snapshotFile, DynamicLongProperty snapshotMaxAgeMs) {
+        Preconditions.checkNotNull(delegate);
+        Preconditions.checkNotNull(ttlMs);
+        Preconditions.checkNotNull(maxStaleMs);
+        Preconditions.checkNotNull(snapshotFile);
+        Preconditions.checkNotNull(snapshotMaxAgeMs);
+        this.delegate = delegate;
+        this.ttlMs = ttlMs;
+        this.maxStaleMs = maxStaleMs;
+        this.snapshotFile = snapshotFile.map(InstanceSnapshotFile::new);
+        this.snapshotMaxAgeMs = snapshotMaxAgeMs;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("caching-discovery-" + delegate.getClass().getSimpleName() + "-%d").build());
+    }
+
+    private static InstanceDiscovery loadDelegate() {
+        String className = DELEGATE_PROP.get();
+        Preconditions.checkState(!Strings.isNullOrEmpty(className), DELEGATE_PROPERTY_NAME + " must be supplied!");
+        return CompositeInstanceDiscovery.loadClass(className)
+                .orElseThrow(() -> new IllegalStateException("Could not load delegate " + className));
+    }
+
+    /**
+     * Stops the background refreshes and closes the wrapped discovery
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        DiscoveryResources.closeQuietly(delegate);
+    }
+
+    @Override
+    public Collection<Instance> getInstanceList() throws Exception {
+        start();
+        Snapshot current = snapshot;
+        if (current == null) {
+            return Collections.emptyList();
+        }
+
+        long age = System.currentTimeMillis() - current.timestamp;
+        long maxAge = getMaxAge(current);
+        if (age > maxAge) {
+            log.error("Last successful refresh of {} was {}ms ago, exceeding the max staleness of {}ms",
+                    delegate.getClass(), age, maxAge);
+            return Collections.emptyList();
+        }
+        return current.instances;
+    }
+
+    @Override
+    public Collection<Instance> fetchInstanceList() throws Exception {
+        start();
+        Exception failure = lastFailure;
+        if (failure != null) {
+            throw new IllegalStateException("Last refresh of " + delegate.getClass() + " failed", failure);
+        }
+
+        Snapshot current = snapshot;
+        if (current == null) {
+            throw new IllegalStateException("No instances loaded from " + delegate.getClass());
+        }
+        long age = System.currentTimeMillis() - current.timestamp;
+        long maxAge = getMaxAge(current);
+        if (age > maxAge) {
+            throw new IllegalStateException("Last successful refresh of " + delegate.getClass() + " was " + age
+                    + "ms ago, exceeding the max staleness of " + maxAge + "ms");
+        }
+        return current.instances;
+    }
+
+    private void start() {
+        if (started.compareAndSet(false, true)) {
+            if (restoreSnapshot()) {
+                // the stored instances are served while the first load runs
+                scheduler.execute(this::refreshAndReschedule);
+            } else {
+                // the first call waits for the initial load, every later call is served from the snapshot
+                refresh();
+                scheduleRefresh();
+            }
+        }
+    }
+
+    private long getMaxAge(Snapshot current) {
+        return current.restored ? snapshotMaxAgeMs.get() : maxStaleMs.get();
+    }
+
+    /**
+     * Fetches instances from the delegate, keeping the previous snapshot if the fetch fails
+     */
+    void refresh() {
+        try {
+            Collection<Instance> instances = FallibleInstanceDiscovery.fetch(delegate);
+            Snapshot previous = snapshot;
+            Snapshot current = new Snapshot(instances == null ? ImmutableList.of() : ImmutableList.copyOf(instances),
+                    System.currentTimeMillis(), false);
+            snapshot = current;
+            if (previous == null || previous.restored || !previous.instances.equals(current.instances)
+                    || current.timestamp - savedTimestamp > snapshotMaxAgeMs.get() / 2) {
+                saveSnapshot(current);
+            }
+            lastFailure = null;
+        } catch (Exception e) {
+            lastFailure = e;
+            Snapshot current = snapshot;
+            if (current == null) {
+                log.error("Error refreshing instances from {}, no previous instances available", delegate.getClass(), e);
+            } else {
+                log.error("Error refreshing instances from {}, keeping {} instances from {}ms ago", delegate.getClass(),
+                        current.instances.size(), System.currentTimeMillis() - current.timestamp, e);
+            }
+        }
+    }
+
+    /**
+     * Loads the stored instance list, if there is one younger than the snapshot max age
+     * @return true if the stored instances are now being served
+     */
+    private boolean restoreSnapshot() {
+        if (!snapshotFile.isPresent()) {
+            return false;
+        }
+
+        Path path = snapshotFile.get().getPath();
+        try {
+            Optional<InstanceSnapshotFile.Contents> contents = snapshotFile.get().read();
+            if (!contents.isPresent()) {
+                log.info("No instance snapshot at {}, waiting for {}", path, delegate.getClass());
+                return false;
+            }
+
+            long age = System.currentTimeMillis() - contents.get().getTimestamp();
+            if (age > snapshotMaxAgeMs.get()) {
+                log.warn("Ignoring instance snapshot {} that is {}ms old, exceeding the max age of {}ms", path, age,
+                        snapshotMaxAgeMs.get());
+                return false;
+            }
+
+            snapshot = new Snapshot(contents.get().getInstances(), contents.get().getTimestamp(), true);
+            log.info("Restored {} instances from {}, {}ms old", contents.get().getInstances().size(), path, age);
+            return true;
+        } catch (IOException e) {
+            log.warn("Error reading instance snapshot {}, waiting for {}", path, delegate.getClass(), e);
+            return false;
+        }
+    }
+
+    private void saveSnapshot(Snapshot current) {
+        if (!snapshotFile.isPresent()) {
+            return;
+        }
+
+        try {
+            snapshotFile.get().write(current.instances, current.timestamp);
+            savedTimestamp = current.timestamp;
+        } catch (IOException e) {
+            log.warn("Error writing instance snapshot {}", snapshotFile.get().getPath(), e);
+        }
+    }
+
+    private void scheduleRefresh() {
+        long ttl = Math.max(1, ttlMs.get());
+        long jitter = (long) (ttl * JITTER);
+        long delay = ttl + (jitter > 0 ? ThreadLocalRandom.current().nextLong(-jitter, jitter + 1) : 0);
+        scheduler.schedule(this::refreshAndReschedule, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void refreshAndReschedule() {
+        try {
+            refresh();
+        } finally {
+            scheduleRefresh();
+        }
+    }
+
+    private static class Snapshot {
+        private final Collection<Instance> instances;
+        private final long timestamp;
+        // read from the snapshot file rather than loaded from the delegate
+        private final boolean restored;
+
+        Snapshot(Collection<Instance> instances, long timestamp, boolean restored) {
+            this.instances = instances;
+            this.timestamp = timestamp;
+            this.restored = restored;
+        }
+    }
+}
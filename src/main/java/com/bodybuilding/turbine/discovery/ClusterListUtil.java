@@ -16,39 +16,24 @@
 
 package com.bodybuilding.turbine.discovery;
 
-import com.google.common.collect.ImmutableSortedSet;
-import com.netflix.turbine.data.TurbineData;
-import com.netflix.turbine.discovery.Instance;
-import com.netflix.turbine.discovery.InstanceObservable;
-import com.netflix.turbine.monitor.cluster.ClusterMonitor;
-import com.netflix.turbine.plugins.PluginsFactory;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import java.util.SortedSet;
-import java.util.stream.Collectors;
 
 /**
  * Returns a sorted list of all currently tracked clusters
  */
 public class ClusterListUtil {
-    private static final Logger log = LoggerFactory.getLogger(ClusterListUtil.class);
     private ClusterListUtil() {
     }
-    public static SortedSet<String> getClusterNames() {
-        return ImmutableSortedSet.copyOf(InstanceObservable.getInstance().getCurrentHostsUp()
-                .stream()
-                .map(Instance::getCluster)
-                .filter(c -> {
-                    ClusterMonitor<? extends TurbineData> cm =
-                            PluginsFactory.getClusterMonitorFactory().getClusterMonitor(c);
 
-                    if (cm == null) {
-                        log.info("ClusterMonitor does not know about cluster with name: {}", c);
-                    }
+    public static SortedSet<String> getClusterNames() {
+        return getClusterSnapshot().getClusterNames();
+    }
 
-                    return cm != null;
-                })
-                .collect(Collectors.toSet()));
+    /**
+     * Returns the current cluster names and host counts along with a version that changes whenever they change
+     * @return immutable snapshot of the tracked clusters
+     */
+    public static ClusterNameIndex.Snapshot getClusterSnapshot() {
+        return ClusterNameIndex.getInstance().getSnapshot();
     }
 }
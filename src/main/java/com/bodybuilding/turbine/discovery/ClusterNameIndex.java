@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.netflix.turbine.data.TurbineData;
+import com.netflix.turbine.discovery.Instance;
+import com.netflix.turbine.discovery.InstanceObservable;
+import com.netflix.turbine.monitor.cluster.ClusterMonitor;
+import com.netflix.turbine.monitor.cluster.ClusterMonitorFactory;
+import com.netflix.turbine.plugins.PluginsFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Index of the clusters that currently have hosts up, along with the number of up hosts per cluster.
+ * The index is rebuilt by an {@link InstanceObservable.InstanceObserver} on Turbine's poll thread, so reads are a
+ * single volatile read of an immutable {@link Snapshot}.
+ */
+public class ClusterNameIndex implements InstanceObservable.InstanceObserver {
+    private static final Logger log = LoggerFactory.getLogger(ClusterNameIndex.class);
+    private static final Snapshot EMPTY = new Snapshot(0, ImmutableSortedMap.of(), ImmutableSortedSet.of());
+
+    private final Predicate<String> isMonitored;
+    private final Supplier<? extends Collection<Instance>> currentHostsUp;
+    private final List<Consumer<Snapshot>> listeners = new CopyOnWriteArrayList<>();
+    private volatile Snapshot snapshot = EMPTY;
+
+    ClusterNameIndex(Predicate<String> isMonitored, Supplier<? extends Collection<Instance>> currentHostsUp) {
+        this.isMonitored = isMonitored;
+        this.currentHostsUp = currentHostsUp;
+    }
+
+    /**
+     * Returns the index for the global InstanceObservable, registering it on first use
+     * @return shared index
+     */
+    public static ClusterNameIndex getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Returns the current snapshot of the index
+     * @return immutable snapshot
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Registers a listener that is called with every new snapshot. Listeners run on Turbine's poll thread and
+     * should only hand the snapshot off.
+     * @param listener snapshot listener
+     */
+    public void addListener(Consumer<Snapshot> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Snapshot> listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public String getName() {
+        return ClusterNameIndex.class.getName();
+    }
+
+    /**
+     * Called with the full set of up hosts on every poll that has any. A new snapshot is only published when the
+     * host counts or the set of monitored clusters changed.
+     * @param hosts all hosts that are currently up
+     */
+    @Override
+    public void hostsUp(Collection<Instance> hosts) {
+        update(count(hosts));
+    }
+
+    /**
+     * InstanceObservable skips hostsUp when no hosts are up, so the up hosts are recounted here to let the index
+     * drop clusters whose last host went down.
+     * @param hosts hosts that are currently down
+     */
+    @Override
+    public void hostsDown(Collection<Instance> hosts) {
+        update(count(currentHostsUp.get()));
+    }
+
+    private static Map<String, Integer> count(Collection<Instance> hosts) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Instance host : hosts) {
+            counts.merge(host.getCluster(), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    private synchronized void update(Map<String, Integer> counts) {
+        Snapshot current = snapshot;
+        // the cluster monitor check is per cluster, not per host
+        ImmutableSortedSet.Builder<String> monitored = ImmutableSortedSet.naturalOrder();
+        for (String cluster : counts.keySet()) {
+            if (isMonitored.test(cluster)) {
+                monitored.add(cluster);
+            }
+        }
+        ImmutableSortedSet<String> clusterNames = monitored.build();
+
+        if (current.hostCounts.equals(counts) && current.clusterNames.equals(clusterNames)) {
+            return;
+        }
+        Snapshot updated = new Snapshot(current.version + 1, ImmutableSortedMap.copyOf(counts), clusterNames);
+        snapshot = updated;
+        for (Consumer<Snapshot> listener : listeners) {
+            try {
+                listener.accept(updated);
+            } catch (RuntimeException e) {
+                log.error("Error notifying cluster index listener {}", listener, e);
+            }
+        }
+    }
+
+    private static boolean hasClusterMonitor(String cluster) {
+        ClusterMonitorFactory<?> factory = PluginsFactory.getClusterMonitorFactory();
+        ClusterMonitor<? extends TurbineData> cm = factory == null ? null : factory.getClusterMonitor(cluster);
+        if (cm == null) {
+            log.info("ClusterMonitor does not know about cluster with name: {}", cluster);
+        }
+        return cm != null;
+    }
+
+    /**
+     * Immutable view of the index at one point in time
+     */
+    public static class Snapshot {
+        private final long version;
+        private final ImmutableSortedMap<String, Integer> hostCounts;
+        private final ImmutableSortedSet<String> clusterNames;
+
+        Snapshot(long version, ImmutableSortedMap<String, Integer> hostCounts, ImmutableSortedSet<String> clusterNames) {
+            this.version = version;
+            this.hostCounts = hostCounts;
+            this.clusterNames = clusterNames;
+        }
+
+        /**
+         * @return number that changes whenever the cluster names or host counts change
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return sorted names of the clusters that have up hosts and a ClusterMonitor
+         */
+        public SortedSet<String> getClusterNames() {
+            return clusterNames;
+        }
+
+        /**
+         * @param cluster cluster name
+         * @return number of up hosts in the cluster
+         */
+        public int getHostCount(String cluster) {
+            Integer count = hostCounts.get(cluster);
+            return count == null ? 0 : count;
+        }
+    }
+
+    private static class Holder {
+        private static final ClusterNameIndex INSTANCE = create();
+
+        private static ClusterNameIndex create() {
+            InstanceObservable observable = InstanceObservable.getInstance();
+            ClusterNameIndex index = new ClusterNameIndex(ClusterNameIndex::hasClusterMonitor,
+                    observable::getCurrentHostsUp);
+            observable.register(index);
+            index.hostsUp(observable.getCurrentHostsUp());
+            return index;
+        }
+    }
+}
@@ -16,8 +16,13 @@
 
 package com.bodybuilding.turbine.discovery;
 
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
 import com.netflix.config.DynamicPropertyFactory;
 import com.netflix.config.DynamicStringProperty;
 import com.netflix.turbine.discovery.Instance;
@@ -25,39 +30,111 @@ import com.netflix.turbine.discovery.InstanceDiscovery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
- * Instance discovery that is composed of other InstanceDiscovery implementations
+ * Instance discovery that is composed of other InstanceDiscovery implementations.
+ * Delegates are queried concurrently, each one bounded by CompositeInstanceDiscovery.timeoutMs. A delegate that misses
+ * the deadline contributes its last successful result and keeps running in the background for the next poll.
+ * An instance returned by several delegates is listed once, taken from the delegate that comes first in
+ * CompositeInstanceDiscovery.priority (class names, delegates not listed follow in their configured order). When the
+ * merged list is unchanged the previous collection is returned again.
+ * A delegate with CompositeInstanceDiscovery.&lt;class&gt;.refreshMs set (full or simple class name) is wrapped in a
+ * {@link CachingInstanceDiscovery} refreshing on that interval, so polls only merge its latest snapshot.
+ * Each delegate has a circuit breaker: a delegate that keeps failing is skipped for a while, and a failing delegate
+ * contributes its last successful result for a bounded time rather than disconnecting all of its instances.
  */
-public class CompositeInstanceDiscovery implements InstanceDiscovery {
+public class CompositeInstanceDiscovery implements InstanceDiscovery, Closeable {
     private static final Logger log = LoggerFactory.getLogger(CompositeInstanceDiscovery.class);
     private static final Splitter SPLITTER = Splitter.on(",").trimResults().omitEmptyStrings();
     private static final DynamicStringProperty DELEGATES_PROP = DynamicPropertyFactory.getInstance()
             .getStringProperty("CompositeInstanceDiscovery.delegates", "com.netflix.turbine.discovery.ConfigPropertyBasedDiscovery");
+    private static final DynamicLongProperty TIMEOUT_PROP = DynamicPropertyFactory.getInstance()
+            .getLongProperty("CompositeInstanceDiscovery.timeoutMs", 30000);
+    private static final DynamicStringProperty PRIORITY_PROP = DynamicPropertyFactory.getInstance()
+            .getStringProperty("CompositeInstanceDiscovery.priority", "");
+    private static final DynamicIntProperty CIRCUIT_FAILURES_PROP = DynamicPropertyFactory.getInstance()
+            .getIntProperty("CompositeInstanceDiscovery.circuitBreaker.failureThreshold", 3);
+    private static final DynamicLongProperty CIRCUIT_OPEN_PROP = DynamicPropertyFactory.getInstance()
+            .getLongProperty("CompositeInstanceDiscovery.circuitBreaker.openMs", 60000);
+    private static final DynamicLongProperty LAST_GOOD_MAX_AGE_PROP = DynamicPropertyFactory.getInstance()
+            .getLongProperty("CompositeInstanceDiscovery.lastGoodMaxAgeMs", 900000);
+    private static final String METRICS_SOURCE = "composite";
 
-    private final Collection<InstanceDiscovery> delegates;
+    private final List<Delegate> delegates;
+    private final ExecutorService executor;
+    private final DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+    private Collection<Instance> lastMerged;
 
     public CompositeInstanceDiscovery(Collection<InstanceDiscovery> delegates) {
         Preconditions.checkNotNull(delegates);
         Preconditions.checkState(!delegates.isEmpty(), "No delegates could be loaded");
-        this.delegates = delegates;
+        this.delegates = delegates.stream().map(d -> new Delegate(d, withRefreshInterval(d))).collect(Collectors.toList());
+        // each delegate has at most one call in flight, so one thread per delegate bounds the pool
+        this.executor = Executors.newFixedThreadPool(delegates.size(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("composite-discovery-%d").build());
     }
 
     public CompositeInstanceDiscovery() {
-        delegates = new ArrayList<>();
+        this(loadDelegates());
+    }
+
+    private static Collection<InstanceDiscovery> loadDelegates() {
+        Collection<InstanceDiscovery> delegates = new ArrayList<>();
         Iterable<String> classes = SPLITTER.split(DELEGATES_PROP.get());
         for (String c : classes) {
             loadClass(c).ifPresent(delegates::add);
         }
-        Preconditions.checkState(!delegates.isEmpty(), "No delegates could be loaded");
+        return delegates;
+    }
+
+    /**
+     * Wraps a delegate in a cache when it has its own refresh interval
+     */
+    private static InstanceDiscovery withRefreshInterval(InstanceDiscovery discovery) {
+        Optional<DynamicLongProperty> refreshMs = delegateProperty(discovery.getClass(), "refreshMs");
+        if (!refreshMs.isPresent()) {
+            return discovery;
+        }
+
+        DynamicLongProperty maxStaleMs = delegateProperty(discovery.getClass(), "maxStaleMs")
+                .orElse(DynamicPropertyFactory.getInstance().getLongProperty(
+                        "CompositeInstanceDiscovery." + discovery.getClass().getSimpleName() + ".maxStaleMs", 600000));
+        log.info("Refreshing {} every {}ms", discovery.getClass(), refreshMs.get().get());
+        return new CachingInstanceDiscovery(discovery, refreshMs.get(), maxStaleMs);
     }
 
-    private Optional<InstanceDiscovery> loadClass(String className) {
+    /**
+     * Looks up a CompositeInstanceDiscovery.&lt;class&gt;.&lt;name&gt; property set for the full or simple class name
+     */
+    private static Optional<DynamicLongProperty> delegateProperty(Class<?> clazz, String name) {
+        for (String className : new String[]{clazz.getName(), clazz.getSimpleName()}) {
+            DynamicLongProperty property = DynamicPropertyFactory.getInstance()
+                    .getLongProperty("CompositeInstanceDiscovery." + className + "." + name, -1);
+            if (property.get() > 0) {
+                return Optional.of(property);
+            }
+        }
+        return Optional.empty();
+    }
+
+    static Optional<InstanceDiscovery> loadClass(String className) {
         InstanceDiscovery instance = null;
         try {
             Class clazz = Class.forName(className);
@@ -69,15 +146,219 @@ public class CompositeInstanceDiscovery implements InstanceDiscovery {
         return Optional.ofNullable(instance);
     }
 
+    /**
+     * Stops the threads polling the delegates and closes the delegates
+     */
     @Override
-    public Collection<Instance> getInstanceList() throws Exception {
-        return delegates.stream().flatMap(d -> {
+    public void close() {
+        executor.shutdownNow();
+        delegates.forEach(d -> DiscoveryResources.closeQuietly(d.discovery));
+    }
+
+    @Override
+    public synchronized Collection<Instance> getInstanceList() throws Exception {
+        return DiscoveryMetrics.getInstance().timePoll(METRICS_SOURCE, this::getInstanceListInternal);
+    }
+
+    private Collection<Instance> getInstanceListInternal() {
+        long timeoutMs = TIMEOUT_PROP.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        delegates.forEach(d -> d.submit(executor));
+
+        List<Collection<Instance>> results = new ArrayList<>(delegates.size());
+        for (Delegate d : delegates) {
+            results.add(d.await(deadline, timeoutMs));
+        }
+
+        List<Instance> merged = merge(results, priorities());
+        if (lastMerged != null && sameInstances(lastMerged, merged)) {
+            return lastMerged;
+        }
+        lastMerged = Collections.unmodifiableList(merged);
+        return lastMerged;
+    }
+
+    /**
+     * Merges the delegate results, listing each (host, cluster) once in the position it was first seen
+     * @param results result of each delegate, in configured order
+     * @param priorities priority of each delegate, lower wins
+     * @return merged instances
+     */
+    private List<Instance> merge(List<Collection<Instance>> results, int[] priorities) {
+        Map<InstanceKey, Instance> merged = new LinkedHashMap<>();
+        Map<InstanceKey, Integer> owners = new HashMap<>();
+        int duplicates = 0;
+        for (int i = 0; i < results.size(); i++) {
+            for (Instance instance : results.get(i)) {
+                InstanceKey key = new InstanceKey(instance);
+                Integer owner = owners.get(key);
+                if (owner == null) {
+                    merged.put(key, instance);
+                    owners.put(key, i);
+                    continue;
+                }
+
+                duplicates++;
+                if (priorities[i] < priorities[owner]) {
+                    // replacing the value keeps the key in its original position
+                    merged.put(key, instance);
+                    owners.put(key, i);
+                }
+            }
+        }
+        metrics.setGauge("discovery_duplicate_instances", DiscoveryMetrics.labels("source", METRICS_SOURCE), duplicates);
+        return new ArrayList<>(merged.values());
+    }
+
+    /**
+     * Ranks the delegates by CompositeInstanceDiscovery.priority, matching either the full or the simple class name
+     */
+    private int[] priorities() {
+        List<String> priority = Lists.newArrayList(SPLITTER.split(PRIORITY_PROP.get()));
+        int[] ranks = new int[delegates.size()];
+        for (int i = 0; i < ranks.length; i++) {
+            Class<?> clazz = delegates.get(i).type;
+            int rank = priority.indexOf(clazz.getName());
+            if (rank < 0) {
+                rank = priority.indexOf(clazz.getSimpleName());
+            }
+            ranks[i] = rank < 0 ? priority.size() + i : rank;
+        }
+        return ranks;
+    }
+
+    private static boolean sameInstances(Collection<Instance> previous, List<Instance> current) {
+        if (previous.size() != current.size()) {
+            return false;
+        }
+        Iterator<Instance> it = current.iterator();
+        for (Instance p : previous) {
+            Instance c = it.next();
+            if (!p.equals(c) || p.isUp() != c.isUp() || !p.getAttributes().equals(c.getAttributes())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tracks the in-flight call, the last successful result and the circuit breaker of a single delegate.
+     * After failureThreshold consecutive failures the circuit opens and the delegate is not called for openMs, then a
+     * single probe call decides whether it closes again or stays open. Until lastGoodMaxAgeMs has passed since the
+     * last success a failing delegate contributes its last successful result instead of dropping its instances.
+     */
+    private static class Delegate {
+        // configured class, the discovery may be a cache wrapping it
+        private final Class<?> type;
+        private final InstanceDiscovery discovery;
+        private final DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+        private final Map<String, String> metricLabels;
+        private Future<Collection<Instance>> inFlight;
+        private Collection<Instance> lastResult = Collections.emptyList();
+        private long lastSuccessMs;
+        private int consecutiveFailures;
+        private long openedAtMs;
+        private boolean open;
+
+        Delegate(InstanceDiscovery configured, InstanceDiscovery discovery) {
+            this.type = configured.getClass();
+            this.discovery = discovery;
+            this.metricLabels = DiscoveryMetrics.labels("delegate", type.getSimpleName());
+        }
+
+        /**
+         * Starts a call to the delegate, unless the call started by a previous poll is still running or the circuit
+         * is open
+         */
+        void submit(ExecutorService executor) {
+            if (inFlight == null && !isOpen()) {
+                inFlight = executor.submit(() -> {
+                    long start = System.nanoTime();
+                    try {
+                        return FallibleInstanceDiscovery.fetch(discovery);
+                    } finally {
+                        metrics.histogram("discovery_delegate_latency_ms", metricLabels)
+                                .record((System.nanoTime() - start) / 1000000);
+                    }
+                });
+            }
+        }
+
+        /**
+         * @return true while the circuit is open and the delegate is not due for a probe
+         */
+        private boolean isOpen() {
+            return open && System.currentTimeMillis() - openedAtMs < CIRCUIT_OPEN_PROP.get();
+        }
+
+        Collection<Instance> await(long deadline, long timeoutMs) {
+            if (inFlight == null) {
+                return lastGoodResult();
+            }
+
             try {
-                return d.getInstanceList().stream();
-            } catch (Exception e) {
-                log.error("Exception loading instances from {}", d.getClass(), e);
-                return Stream.empty();
+                Collection<Instance> result = inFlight.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                inFlight = null;
+                lastResult = result == null ? Collections.emptyList() : result;
+                lastSuccessMs = System.currentTimeMillis();
+                closeCircuit();
+            } catch (TimeoutException e) {
+                metrics.increment("discovery_delegate_timeouts_total", metricLabels, 1);
+                log.warn("{} did not return instances within {}ms, using its last result of {} instances",
+                        type, timeoutMs, lastResult.size());
+                return lastGoodResult();
+            } catch (ExecutionException e) {
+                inFlight = null;
+                metrics.increment("discovery_delegate_failures_total", metricLabels, 1);
+                log.error("Exception loading instances from {}", type, e.getCause());
+                recordFailure();
+                return lastGoodResult();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return lastGoodResult();
+            }
+            return lastResult;
+        }
+
+        private void recordFailure() {
+            consecutiveFailures++;
+            // a failed probe reopens the circuit straight away
+            if (open || consecutiveFailures >= Math.max(1, CIRCUIT_FAILURES_PROP.get())) {
+                if (!open) {
+                    metrics.increment("discovery_circuit_opened_total", metricLabels, 1);
+                    log.warn("Opening circuit for {} after {} consecutive failures, retrying in {}ms", type,
+                            consecutiveFailures, CIRCUIT_OPEN_PROP.get());
+                }
+                open = true;
+                openedAtMs = System.currentTimeMillis();
+                metrics.setGauge("discovery_circuit_open", metricLabels, 1);
+            }
+        }
+
+        private void closeCircuit() {
+            if (open) {
+                log.info("Closing circuit for {}", type);
+                metrics.setGauge("discovery_circuit_open", metricLabels, 0);
+            }
+            open = false;
+            consecutiveFailures = 0;
+        }
+
+        /**
+         * @return the last successful result, or nothing once it is older than lastGoodMaxAgeMs
+         */
+        private Collection<Instance> lastGoodResult() {
+            if (lastResult.isEmpty()) {
+                return lastResult;
             }
-        }).collect(Collectors.<Instance>toList());
+
+            long age = System.currentTimeMillis() - lastSuccessMs;
+            if (age > LAST_GOOD_MAX_AGE_PROP.get()) {
+                log.error("Last successful result of {} is {}ms old, dropping its {} instances", type, age,
+                        lastResult.size());
+                return Collections.emptyList();
+            }
+            return lastResult;
+        }
     }
 }
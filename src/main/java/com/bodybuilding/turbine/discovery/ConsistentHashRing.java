@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+
+/**
+ * Immutable consistent hash ring that assigns keys to nodes. Every node is placed on the ring at a number of
+ * virtual positions, so adding or removing a node only moves about 1/n of the keys, and every node computing the
+ * ring from the same node list gets the same assignment.
+ */
+public final class ConsistentHashRing {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final SortedSet<String> nodes;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * @param nodes node ids, at least one
+     * @param virtualNodes positions per node on the ring
+     */
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        Preconditions.checkArgument(!nodes.isEmpty(), "at least one node is required");
+        Preconditions.checkArgument(virtualNodes > 0, "virtualNodes must be positive");
+        this.nodes = ImmutableSortedSet.copyOf(nodes);
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // on a collision the lexically smaller node wins, independent of the input order
+                ring.putIfAbsent(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * Returns the node owning a key
+     * @param key e.g. a cluster name
+     * @return node id
+     */
+    public String getOwner(String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * @return sorted node ids
+     */
+    public SortedSet<String> getNodes() {
+        return nodes;
+    }
+
+    private static long hash(String value) {
+        return HASH.hashString(value, StandardCharsets.UTF_8).asLong();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bodybuilding.turbine.discovery;
+
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+import com.netflix.turbine.discovery.Instance;
+import com.netflix.turbine.discovery.InstanceDiscovery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link InstanceDiscovery} decorator that damps flapping hosts. New hosts are added as soon as the wrapped discovery
+ * returns them, but a host that disappears keeps being returned until it has been missing from
+ * DampingInstanceDiscovery.absences consecutive polls or for DampingInstanceDiscovery.graceMs, whichever comes first.
+ * A host that comes back before then never has its stream torn down.
+ */
+public class DampingInstanceDiscovery implements FallibleInstanceDiscovery, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(DampingInstanceDiscovery.class);
+    public static final String DELEGATE_PROPERTY_NAME = "DampingInstanceDiscovery.delegate";
+    private static final DynamicStringProperty DELEGATE_PROP = DynamicPropertyFactory.getInstance()
+            .getStringProperty(DELEGATE_PROPERTY_NAME, null);
+    private static final DynamicIntProperty ABSENCES_PROP = DynamicPropertyFactory.getInstance()
+            .getIntProperty("DampingInstanceDiscovery.absences", 3);
+    private static final DynamicLongProperty GRACE_PROP = DynamicPropertyFactory.getInstance()
+            .getLongProperty("DampingInstanceDiscovery.graceMs", 120000);
+    private static final String METRICS_SOURCE = "damping";
+
+    private final InstanceDiscovery delegate;
+    private final DynamicIntProperty absences;
+    private final DynamicLongProperty graceMs;
+    private final DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+    private final Map<String, String> metricLabels = DiscoveryMetrics.labels("source", METRICS_SOURCE);
+    // hosts returned by the last poll, including damped ones
+    private Map<InstanceKey, Instance> published = Collections.emptyMap();
+    private final Map<InstanceKey, Absence> missing = new HashMap<>();
+
+    public DampingInstanceDiscovery() {
+        this(loadDelegate());
+    }
+
+    public DampingInstanceDiscovery(InstanceDiscovery delegate) {
+        this(delegate, ABSENCES_PROP, GRACE_PROP);
+    }
+
+    /**
+     * @param delegate discovery to damp
+     * @param absences number of consecutive polls a host must be missing from before it is removed
+     * @param graceMs time a host may be missing before it is removed
+     */
+    public DampingInstanceDiscovery(InstanceDiscovery delegate, DynamicIntProperty absences, DynamicLongProperty graceMs) {
+        Preconditions.checkNotNull(delegate);
+        Preconditions.checkNotNull(absences);
+        Preconditions.checkNotNull(graceMs);
+        this.delegate = delegate;
+        this.absences = absences;
+        this.graceMs = graceMs;
+    }
+
+    private static InstanceDiscovery loadDelegate() {
+        String className = DELEGATE_PROP.get();
+        Preconditions.checkState(!Strings.isNullOrEmpty(className), DELEGATE_PROPERTY_NAME + " must be supplied!");
+        return CompositeInstanceDiscovery.loadClass(className)
+                .orElseThrow(() -> new IllegalStateException("Could not load delegate " + className));
+    }
+
+    /**
+     * Closes the wrapped discovery
+     */
+    @Override
+    public void close() {
+        DiscoveryResources.closeQuietly(delegate);
+    }
+
+    @Override
+    public synchronized Collection<Instance> getInstanceList() throws Exception {
+        try {
+            return fetchInstanceList();
+        } catch (Exception e) {
+            // a failed poll is not an absence, the previous hosts are kept as they are
+            log.error("Error loading instances from {}, keeping {} instances", delegate.getClass(), published.size(), e);
+            return new ArrayList<>(published.values());
+        }
+    }
+
+    @Override
+    public synchronized Collection<Instance> fetchInstanceList() throws Exception {
+        Collection<Instance> instances = FallibleInstanceDiscovery.fetch(delegate);
+        return damp(instances == null ? Collections.emptyList() : instances, System.currentTimeMillis());
+    }
+
+    /**
+     * Adds the recently missing hosts of the previous poll to the current instances
+     * @param instances instances returned by the delegate
+     * @param now current time
+     * @return instances to publish
+     */
+    List<Instance> damp(Collection<Instance> instances, long now) {
+        Map<InstanceKey, Instance> current = new LinkedHashMap<>();
+        for (Instance instance : instances) {
+            current.put(new InstanceKey(instance), instance);
+        }
+        // hosts that came back start over
+        missing.keySet().removeAll(current.keySet());
+
+        int suppressed = 0;
+        for (Map.Entry<InstanceKey, Instance> entry : published.entrySet()) {
+            if (current.containsKey(entry.getKey())) {
+                continue;
+            }
+
+            Absence absence = missing.computeIfAbsent(entry.getKey(), k -> new Absence(now));
+            absence.polls++;
+            if (absence.polls >= absences.get() || now - absence.since >= graceMs.get()) {
+                log.debug("Removing {} after {} polls and {}ms", entry.getKey(), absence.polls, now - absence.since);
+                missing.remove(entry.getKey());
+            } else {
+                current.put(entry.getKey(), entry.getValue());
+                suppressed++;
+            }
+        }
+
+        if (suppressed > 0) {
+            metrics.increment("discovery_removals_suppressed_total", metricLabels, suppressed);
+            log.debug("Kept {} missing instances", suppressed);
+        }
+        metrics.setGauge("discovery_instances_damped", metricLabels, suppressed);
+        published = current;
+        return new ArrayList<>(current.values());
+    }
+
+    /**
+     * A host missing from the wrapped discovery
+     */
+    private static class Absence {
+        private final long since;
+        private int polls;
+
+        Absence(long since) {
+            this.since = since;
+        }
+    }
+}
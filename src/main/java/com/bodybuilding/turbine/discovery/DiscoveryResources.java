@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Releases the background threads held by discovery implementations. Wrapping discoveries close the discoveries and
+ * event sources they were created with.
+ */
+final class DiscoveryResources {
+    private static final Logger log = LoggerFactory.getLogger(DiscoveryResources.class);
+
+    private DiscoveryResources() {
+    }
+
+    /**
+     * Closes a discovery or event source if it holds resources, logging instead of throwing on failure
+     * @param resource discovery or event source
+     */
+    static void closeQuietly(Object resource) {
+        if (!(resource instanceof Closeable)) {
+            return;
+        }
+        try {
+            ((Closeable) resource).close();
+        } catch (IOException e) {
+            log.warn("Error closing {}", resource.getClass(), e);
+        }
+    }
+}
@@ -17,22 +17,46 @@
 package com.bodybuilding.turbine.discovery;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.MapMaker;
 import com.netflix.config.DynamicPropertyFactory;
 import com.netflix.config.DynamicStringProperty;
 import com.netflix.turbine.discovery.Instance;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
 /**
- * Maps an EC2 Instance object to a Turbine Instance object
+ * Maps an EC2 Instance object to a Turbine Instance object.
+ * The host field of each cluster is resolved once and cached until its ec2.hostField properties change.
+ * Turbine instances are kept in a weak registry by host and cluster, and a host that is unchanged since the last poll
+ * maps to the same Instance object. Cluster names are interned, so polls only allocate for hosts that changed.
  */
 class Ec2InstanceMapper {
     private static final Logger log = LoggerFactory.getLogger(Ec2InstanceMapper.class);
-    private static final Ec2InstanceMapper INSTANCE = new Ec2InstanceMapper();
     public static final String HOST_FIELD_PROPERTY_NAME = "ec2.hostField";
+    // Turbine instance attribute holding the EC2 instance id
+    public static final String INSTANCE_ID_ATTRIBUTE = "instanceId";
     private static final DynamicStringProperty DEFAULT_HOST_FIELD = DynamicPropertyFactory.getInstance().getStringProperty(HOST_FIELD_PROPERTY_NAME, "private_ip");
+    // created after DEFAULT_HOST_FIELD, the constructor registers a callback on it
+    private static final Ec2InstanceMapper INSTANCE = new Ec2InstanceMapper();
+
+    // entries are dropped once no discovery result references the instance any more
+    private final ConcurrentMap<InstanceKey, Instance> registry = new MapMaker().weakValues().makeMap();
+    private final Interner<String> clusterNames = Interners.newWeakInterner();
+    private final ConcurrentMap<String, HostField> hostFieldByCluster = new ConcurrentHashMap<>();
+    // per cluster override properties, created once so that each registers a single callback
+    private final ConcurrentMap<String, DynamicStringProperty> clusterHostFieldProperties = new ConcurrentHashMap<>();
 
     private Ec2InstanceMapper() {
+        DEFAULT_HOST_FIELD.addCallback(hostFieldByCluster::clear);
     }
 
     public static Ec2InstanceMapper getInstance() {
@@ -46,28 +70,107 @@ class Ec2InstanceMapper {
      * @return Turbine instance
      */
     public Instance createTurbineInstance(String clusterName, com.amazonaws.services.ec2.model.Instance ec2Instance) {
-        String hostField = DynamicPropertyFactory.getInstance().getStringProperty("ec2.hostField." + clusterName, null).get();
+        String cluster = clusterNames.intern(clusterName);
+        return createTurbineInstance(cluster, getHostField(cluster), ec2Instance);
+    }
+
+    /**
+     * Maps EC2 Instances of a single cluster to Turbine instances, resolving the host field once
+     * @param clusterName name of the cluster for these instances
+     * @param ec2Instances EC2 instance models
+     * @return Turbine instances, in the same order
+     */
+    public List<Instance> mapAll(String clusterName, List<com.amazonaws.services.ec2.model.Instance> ec2Instances) {
+        String cluster = clusterNames.intern(clusterName);
+        HostField hostField = getHostField(cluster);
+        List<Instance> instances = new ArrayList<>(ec2Instances.size());
+        for (com.amazonaws.services.ec2.model.Instance ec2Instance : ec2Instances) {
+            instances.add(createTurbineInstance(cluster, hostField, ec2Instance));
+        }
+        return instances;
+    }
+
+    /**
+     * Checks if a discovery subclass still overrides the deprecated per-instance createTurbineInstance hook
+     * @param clazz class of the discovery
+     * @param base discovery class that declares the hook
+     * @return true if a class between clazz and base declares the hook
+     */
+    static boolean overridesCreateTurbineInstance(Class<?> clazz, Class<?> base) {
+        for (Class<?> c = clazz; c != null && c != base; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("createTurbineInstance", String.class, com.amazonaws.services.ec2.model.Instance.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // not declared here, check the superclass
+            }
+        }
+        return false;
+    }
+
+    private Instance createTurbineInstance(String clusterName, HostField hostField,
+                                           com.amazonaws.services.ec2.model.Instance ec2Instance) {
+        String host = hostField.extractor.apply(ec2Instance);
+        boolean up = ec2Instance.getState().getName().equals("running");
+        String instanceId = ec2Instance.getInstanceId();
+        InstanceKey key = new InstanceKey(host, clusterName);
+        Instance existing = registry.get(key);
+        if (existing != null && existing.isUp() == up
+                && Objects.equals(existing.getAttributes().get(INSTANCE_ID_ATTRIBUTE), instanceId)) {
+            return existing;
+        }
+
+        Instance instance = new Instance(host, clusterName, up);
+        if (instanceId != null) {
+            instance.getAttributes().put(INSTANCE_ID_ATTRIBUTE, instanceId);
+        }
+        registry.put(key, instance);
+        return instance;
+    }
+
+    private HostField getHostField(String clusterName) {
+        return hostFieldByCluster.computeIfAbsent(clusterName, this::resolveHostField);
+    }
+
+    private HostField resolveHostField(String clusterName) {
+        DynamicStringProperty clusterProperty = clusterHostFieldProperties.computeIfAbsent(clusterName, c -> {
+            DynamicStringProperty p = DynamicPropertyFactory.getInstance().getStringProperty(HOST_FIELD_PROPERTY_NAME + "." + c, null);
+            p.addCallback(() -> hostFieldByCluster.remove(c));
+            return p;
+        });
+
+        String hostField = clusterProperty.get();
         if(Strings.isNullOrEmpty(hostField)) {
             hostField = DEFAULT_HOST_FIELD.get();
         }
 
         hostField = Strings.nullToEmpty(hostField);
-
-        String host;
-        if(hostField.equalsIgnoreCase("private_dns")) {
-            host = ec2Instance.getPrivateDnsName();
-        } else if(hostField.equalsIgnoreCase("private_ip")) {
-            host = ec2Instance.getPrivateIpAddress();
-        } else if(hostField.equalsIgnoreCase("public_dns")) {
-            host = ec2Instance.getPublicDnsName();
-        } else if(hostField.equalsIgnoreCase("public_ip")) {
-            host = ec2Instance.getPublicIpAddress();
-        } else {
-            log.warn("{} is not a valid value for property {} it should be one of " +
-                    "[private_dns, private_ip, public_dns, public_ip]. Falling back to private_ip", hostField, "ec2.hostField");
-            host = ec2Instance.getPrivateIpAddress();
+        for (HostField field : HostField.values()) {
+            if (field.propertyValue.equalsIgnoreCase(hostField)) {
+                return field;
+            }
         }
 
-        return new Instance(host, clusterName, ec2Instance.getState().getName().equals("running"));
+        log.warn("{} is not a valid value for property {} it should be one of " +
+                "[private_dns, private_ip, public_dns, public_ip]. Falling back to private_ip", hostField, "ec2.hostField");
+        return HostField.PRIVATE_IP;
+    }
+
+    /**
+     * EC2 instance field used as the Turbine host name
+     */
+    private enum HostField {
+        PRIVATE_DNS("private_dns", com.amazonaws.services.ec2.model.Instance::getPrivateDnsName),
+        PRIVATE_IP("private_ip", com.amazonaws.services.ec2.model.Instance::getPrivateIpAddress),
+        PUBLIC_DNS("public_dns", com.amazonaws.services.ec2.model.Instance::getPublicDnsName),
+        PUBLIC_IP("public_ip", com.amazonaws.services.ec2.model.Instance::getPublicIpAddress);
+
+        private final String propertyValue;
+        private final Function<com.amazonaws.services.ec2.model.Instance, String> extractor;
+
+        HostField(String propertyValue, Function<com.amazonaws.services.ec2.model.Instance, String> extractor) {
+            this.propertyValue = propertyValue;
+            this.extractor = extractor;
+        }
     }
 }
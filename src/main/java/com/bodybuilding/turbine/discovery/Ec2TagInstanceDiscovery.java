@@ -16,12 +16,14 @@
 
 package com.bodybuilding.turbine.discovery;
 
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.*;
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.netflix.config.DynamicPropertyFactory;
 import com.netflix.config.DynamicStringProperty;
@@ -30,63 +32,131 @@ import com.netflix.turbine.discovery.InstanceDiscovery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * Class that encapsulates an {@link InstanceDiscovery} implementation that locates Amazon EC2 Instances by Tag name.
- * The tag value is used as the turbine cluster name
+ * The tag value is used as the turbine cluster name. Every region in turbine.region is searched concurrently.
+ * Only instances in the states listed in ec2discovery.instanceStates, running by default, are returned.
  */
-public class Ec2TagInstanceDiscovery implements InstanceDiscovery{
+public class Ec2TagInstanceDiscovery implements ResolvableInstanceDiscovery, Closeable {
     private static final Logger log = LoggerFactory.getLogger(Ec2TagInstanceDiscovery.class);
     public static final String PROPERTY_NAME = "ec2discovery.tag";
     private static final DynamicStringProperty CLUSTER_TAG_KEY = DynamicPropertyFactory.getInstance()
             .getStringProperty(PROPERTY_NAME, null);
-
-    private final AmazonEC2Client ec2Client;
+    // instance-state-name values to discover, empty for all states
+    private static final DynamicStringProperty INSTANCE_STATES = DynamicPropertyFactory.getInstance()
+            .getStringProperty("ec2discovery.instanceStates", "running");
+    private static final Splitter SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+    private static final String METRICS_SOURCE = "ec2";
+    // keeps the instance-id filter of a single request well below the EC2 limit
+    private static final int INSTANCE_ID_BATCH_SIZE = 200;
+
+    private final Map<String, AmazonEC2Client> ec2Clients;
+    private final RegionFanOut regions;
+    private final DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+    private final AwsRateLimiter rateLimiter = AwsRateLimiter.getInstance();
+    // subclasses written against the per-instance hook keep getting called for every instance
+    private final boolean perInstanceHook = Ec2InstanceMapper.overridesCreateTurbineInstance(getClass(),
+            Ec2TagInstanceDiscovery.class);
 
     public Ec2TagInstanceDiscovery() {
-        this(new AmazonEC2Client());
+        this(AwsRegions.createClients(AmazonEC2Client::new));
     }
 
+    /**
+     * Discovers instances in the first configured region only
+     * @param ec2Client client, bound to the region by this constructor
+     */
     protected Ec2TagInstanceDiscovery(AmazonEC2Client ec2Client) {
-        Preconditions.checkNotNull(ec2Client);
-        this.ec2Client = ec2Client;
+        this(AwsRegions.firstRegion(Preconditions.checkNotNull(ec2Client)));
+    }
 
+    /**
+     * @param ec2Clients clients bound to their region, keyed by region name
+     */
+    protected Ec2TagInstanceDiscovery(Map<String, AmazonEC2Client> ec2Clients) {
+        Preconditions.checkArgument(!ec2Clients.isEmpty(), "at least one region is required");
         Preconditions.checkState(!Strings.isNullOrEmpty(CLUSTER_TAG_KEY.get()), PROPERTY_NAME + " must be supplied!");
-        String regionName = DynamicPropertyFactory.getInstance().getStringProperty("turbine.region", "us-east-1").get();
-        ec2Client.setRegion(Region.getRegion(Regions.fromName(regionName)));
-        log.debug("Set the ec2 region to [{}]", regionName);
+        this.ec2Clients = ImmutableMap.copyOf(ec2Clients);
+        this.regions = new RegionFanOut(METRICS_SOURCE, ec2Clients.keySet());
+        log.debug("Set the ec2 regions to {}", ec2Clients.keySet());
+    }
+
+    /**
+     * Stops the threads used to poll regions concurrently
+     */
+    @Override
+    public void close() {
+        regions.close();
     }
 
     @Override
     public Collection<Instance> getInstanceList() throws Exception {
         try {
-            Collection<Instance> instances = getInstancesInternal();
-            log.debug("Returning instances {}", instances);
-            return instances;
+            return fetchInstanceList();
         } catch (Exception e) {
             log.error("Failed to fetch ec2 instances with tag {}", CLUSTER_TAG_KEY.get(), e);
         }
         return Collections.emptyList();
     }
 
-    private Collection<Instance> getInstancesInternal() {
-        List<Filter> filterList = new ArrayList<>(1);
-        filterList.add(new Filter("tag-key", Lists.newArrayList(CLUSTER_TAG_KEY.get())));
+    @Override
+    public Collection<Instance> fetchInstanceList() throws Exception {
+        Collection<Instance> instances = metrics.timePoll(METRICS_SOURCE, this::getInstancesInternal);
+        log.debug("Returning instances {}", instances);
+        return instances;
+    }
 
+    @Override
+    public Collection<Instance> resolveInstances(Collection<String> instanceIds) throws Exception {
+        // instance ids are unique across regions, every region is asked for all of them
+        return regions.query(region -> {
+            Collection<Instance> instances = new ArrayList<>();
+            for (List<String> batch : Iterables.partition(instanceIds, INSTANCE_ID_BATCH_SIZE)) {
+                // a filter instead of instance ids, DescribeInstances fails on ids that no longer exist
+                instances.addAll(describeInstances(region, new Filter("instance-id", batch)));
+            }
+            return instances;
+        });
+    }
+
+    private Collection<Instance> getInstancesInternal() throws Exception {
+        return regions.poll(this::describeInstances);
+    }
+
+    private Collection<Instance> describeInstances(String region, Filter... filters) {
+        AmazonEC2Client ec2Client = ec2Clients.get(region);
+        List<Filter> filterList = new ArrayList<>(filters.length + 2);
+        filterList.add(new Filter("tag-key", Lists.newArrayList(CLUSTER_TAG_KEY.get())));
+        // only instances in the wanted states are returned and mapped
+        List<String> states = Lists.newArrayList(SPLITTER.split(INSTANCE_STATES.get()));
+        if (!states.isEmpty()) {
+            filterList.add(new Filter("instance-state-name", states));
+        }
+        Collections.addAll(filterList, filters);
 
         String nextToken = null;
         Collection<Instance> instances = new ArrayList<>();
         do {
+            if (nextToken != null) {
+                // spread out page requests of concurrent pollers
+                rateLimiter.pageJitter();
+            }
             DescribeInstancesRequest request = new DescribeInstancesRequest();
             request.setFilters(filterList);
             request.setNextToken(nextToken);
-            DescribeInstancesResult results = ec2Client.describeInstances(request);
+            DescribeInstancesResult results = rateLimiter.execute(METRICS_SOURCE, region, "ec2", "DescribeInstances",
+                    () -> ec2Client.describeInstances(request));
             nextToken = results.getNextToken();
-            instances.addAll(processReservations(results.getReservations()));
+            instances.addAll(processReservations(region, results.getReservations()));
         } while (!Strings.isNullOrEmpty(nextToken));
 
         return instances;
@@ -95,13 +165,13 @@ public class Ec2TagInstanceDiscovery implements InstanceDiscovery{
     /**
      * Converts EC2 reservations to Turbine instance
      *
+     * @param region region of the reservations
      * @param reservations
      * @return
      */
-    private List<Instance> processReservations(List<Reservation> reservations) {
-        List<Instance> instances = new ArrayList<>();
-
-        // add all instances from each of the reservations - after converting to Turbine instance
+    List<Instance> processReservations(String region, List<Reservation> reservations) {
+        // instances are grouped by cluster so the host field of each cluster is resolved once per page
+        Map<String, List<com.amazonaws.services.ec2.model.Instance>> ec2InstancesByCluster = new LinkedHashMap<>();
         reservations.stream()
                 .flatMap(r -> r.getInstances().stream())
                 .forEach(ec2Instance -> {
@@ -113,18 +183,41 @@ public class Ec2TagInstanceDiscovery implements InstanceDiscovery{
                             .orElse(null);
 
                     if (clusterName != null) {
-                        instances.add(createTurbineInstance(clusterName, ec2Instance));
+                        ec2InstancesByCluster.computeIfAbsent(AwsRegions.clusterName(clusterName, region),
+                                c -> new ArrayList<>()).add(ec2Instance);
                     }
                 });
+
+        List<Instance> instances = new ArrayList<>();
+        ec2InstancesByCluster.forEach((cluster, ec2Instances) ->
+                instances.addAll(createTurbineInstances(cluster, ec2Instances)));
         return instances;
     }
 
+    /**
+     * Maps EC2 Instances of a single cluster to Turbine instances.
+     * @param clusterName name of the cluster for these instances
+     * @param ec2Instances EC2 instance models
+     * @return Turbine instances, in the same order
+     */
+    protected List<Instance> createTurbineInstances(String clusterName, List<com.amazonaws.services.ec2.model.Instance> ec2Instances) {
+        if (perInstanceHook) {
+            return ec2Instances.stream()
+                    .map(i -> createTurbineInstance(clusterName, i))
+                    .collect(Collectors.toList());
+        }
+        return Ec2InstanceMapper.getInstance().mapAll(clusterName, ec2Instances);
+    }
+
     /**
      * Maps a EC2 Instance to a Turbine instance.
      * @param clusterName name of the cluster for this instance
      * @param ec2Instance EC2 instance model
      * @return Turbine instance
+     * @deprecated override {@link #createTurbineInstances(String, List)}, which maps all instances of a cluster at
+     * once. This hook is only called when a subclass overrides it.
      */
+    @Deprecated
     protected Instance createTurbineInstance(String clusterName, com.amazonaws.services.ec2.model.Instance ec2Instance) {
         return Ec2InstanceMapper.getInstance().createTurbineInstance(clusterName, ec2Instance);
     }
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+import com.netflix.turbine.discovery.Instance;
+import com.netflix.turbine.discovery.InstanceDiscovery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link InstanceDiscovery} that keeps an in-memory instance table instead of rescanning the fleet on every poll.
+ * The table is seeded by a full scan of the wrapped discovery and then updated from an {@link InstanceEventSource}:
+ * changed instances are looked up by id, terminated instances are dropped. A slow periodic full scan reconciles
+ * the table with any events that were missed.
+ */
+public class EventDrivenInstanceDiscovery implements FallibleInstanceDiscovery, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(EventDrivenInstanceDiscovery.class);
+    public static final String DELEGATE_PROPERTY_NAME = "EventDrivenInstanceDiscovery.delegate";
+    private static final DynamicStringProperty DELEGATE_PROP = DynamicPropertyFactory.getInstance()
+            .getStringProperty(DELEGATE_PROPERTY_NAME, null);
+    private static final DynamicStringProperty EVENT_SOURCE_PROP = DynamicPropertyFactory.getInstance()
+            .getStringProperty("EventDrivenInstanceDiscovery.eventSource", SqsInstanceEventSource.class.getName());
+    private static final DynamicLongProperty RECONCILE_INTERVAL_PROP = DynamicPropertyFactory.getInstance()
+            .getLongProperty("EventDrivenInstanceDiscovery.reconcileIntervalMs", 600000);
+    // pause after a failed poll of the event source
+    private static final long ERROR_BACKOFF_MS = 1000;
+    // reconciliation scans are spread by up to +/- 10% of the interval
+    private static final double JITTER = 0.1;
+    private static final String METRICS_SOURCE = "events";
+
+    private final ResolvableInstanceDiscovery delegate;
+    private final InstanceEventSource eventSource;
+    private final DynamicLongProperty reconcileIntervalMs;
+    private final ExecutorService eventExecutor;
+    private final ScheduledExecutorService reconcileExecutor;
+    private final DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+
+    private final Object lock = new Object();
+    // instances keyed by EC2 instance id, guarded by lock
+    private final Map<String, Instance> instancesById = new HashMap<>();
+    // ids changed by events while a reconciliation scan is running, guarded by lock
+    private final Set<String> changedDuringScan = new HashSet<>();
+    private boolean scanning;
+    // number of completed reconciliation scans, guarded by lock
+    private long scanGeneration;
+    private volatile boolean seeded;
+    private volatile Collection<Instance> instances = ImmutableList.of();
+
+    public EventDrivenInstanceDiscovery() {
+        this(loadDelegate(), loadEventSource());
+    }
+
+    public EventDrivenInstanceDiscovery(ResolvableInstanceDiscovery delegate, InstanceEventSource eventSource) {
+        this(delegate, eventSource, RECONCILE_INTERVAL_PROP);
+    }
+
+    /**
+     * @param delegate discovery used for full scans and to look up changed instances
+     * @param eventSource source of instance change events
+     * @param reconcileIntervalMs time between full reconciliation scans
+     */
+    public EventDrivenInstanceDiscovery(ResolvableInstanceDiscovery delegate, InstanceEventSource eventSource,
+                                        DynamicLongProperty reconcileIntervalMs) {
+        Preconditions.checkNotNull(delegate);
+        Preconditions.checkNotNull(eventSource);
+        Preconditions.checkNotNull(reconcileIntervalMs);
+        this.delegate = delegate;
+        this.eventSource = eventSource;
+        this.reconcileIntervalMs = reconcileIntervalMs;
+        this.eventExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("event-discovery-events-%d").build());
+        this.reconcileExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("event-discovery-reconcile-%d").build());
+    }
+
+    private static ResolvableInstanceDiscovery loadDelegate() {
+        String className = DELEGATE_PROP.get();
+        Preconditions.checkState(!Strings.isNullOrEmpty(className), DELEGATE_PROPERTY_NAME + " must be supplied!");
+        InstanceDiscovery discovery = CompositeInstanceDiscovery.loadClass(className)
+                .orElseThrow(() -> new IllegalStateException("Could not load delegate " + className));
+        Preconditions.checkState(discovery instanceof ResolvableInstanceDiscovery,
+                className + " does not implement " + ResolvableInstanceDiscovery.class.getSimpleName());
+        return (ResolvableInstanceDiscovery) discovery;
+    }
+
+    private static InstanceEventSource loadEventSource() {
+        String className = EVENT_SOURCE_PROP.get();
+        try {
+            return (InstanceEventSource) Class.forName(className).newInstance();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not load event source " + className, e);
+        }
+    }
+
+    /**
+     * Stops consuming events and reconciling, and closes the event source and the wrapped discovery
+     */
+    @Override
+    public void close() {
+        eventExecutor.shutdownNow();
+        reconcileExecutor.shutdownNow();
+        DiscoveryResources.closeQuietly(eventSource);
+        DiscoveryResources.closeQuietly(delegate);
+    }
+
+    @Override
+    public Collection<Instance> getInstanceList() throws Exception {
+        try {
+            return fetchInstanceList();
+        } catch (Exception e) {
+            log.error("Error seeding instances from {}", delegate.getClass(), e);
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Collection<Instance> fetchInstanceList() throws Exception {
+        if (!seeded) {
+            seed();
+        }
+        return instances;
+    }
+
+    private synchronized void seed() throws Exception {
+        if (seeded) {
+            return;
+        }
+        // the first call waits for the full scan, a failed scan is retried by the next call
+        reconcile();
+        seeded = true;
+        eventExecutor.execute(this::consumeEvents);
+        scheduleReconcile();
+    }
+
+    /**
+     * Replaces the instance table with a full scan of the delegate. Instances changed by events while the scan
+     * was running keep their event state, the scan may have seen them before the change.
+     */
+    void reconcile() throws Exception {
+        synchronized (lock) {
+            scanning = true;
+            changedDuringScan.clear();
+        }
+
+        Collection<Instance> scanned;
+        try {
+            scanned = FallibleInstanceDiscovery.fetch(delegate);
+        } catch (Exception e) {
+            synchronized (lock) {
+                scanning = false;
+            }
+            throw e;
+        }
+
+        synchronized (lock) {
+            Map<String, Instance> table = new HashMap<>();
+            scanned.forEach(i -> table.put(getInstanceId(i), i));
+            for (String id : changedDuringScan) {
+                Instance current = instancesById.get(id);
+                if (current == null) {
+                    table.remove(id);
+                } else {
+                    table.put(id, current);
+                }
+            }
+            instancesById.clear();
+            instancesById.putAll(table);
+            scanning = false;
+            scanGeneration++;
+            publish();
+        }
+    }
+
+    /**
+     * Applies a batch of events to the instance table. A lookup that overlaps a completed reconciliation scan is
+     * repeated, so an older lookup never overwrites the scan result.
+     * @param events instance events, a later event for the same instance overrides an earlier one
+     * @throws Exception if changed instances could not be looked up, in which case no event is applied
+     */
+    void apply(List<InstanceEvent> events) throws Exception {
+        Map<String, InstanceEvent.Type> typeById = new LinkedHashMap<>();
+        events.forEach(e -> typeById.put(e.getInstanceId(), e.getType()));
+
+        List<String> changedIds = new ArrayList<>();
+        typeById.forEach((id, type) -> {
+            if (type == InstanceEvent.Type.CHANGED) {
+                changedIds.add(id);
+            }
+        });
+        long generation;
+        synchronized (lock) {
+            generation = scanGeneration;
+        }
+        boolean applied = false;
+        while (!applied) {
+            Collection<Instance> resolved = changedIds.isEmpty()
+                    ? Collections.emptyList() : delegate.resolveInstances(changedIds);
+
+            synchronized (lock) {
+                if (scanGeneration != generation) {
+                    // a scan completed while the ids were looked up and may hold newer state, look them up again
+                    generation = scanGeneration;
+                    continue;
+                }
+                // ids that were not resolved no longer belong to a cluster
+                typeById.keySet().forEach(instancesById::remove);
+                resolved.forEach(i -> instancesById.put(getInstanceId(i), i));
+                if (scanning) {
+                    changedDuringScan.addAll(typeById.keySet());
+                }
+                publish();
+                applied = true;
+            }
+        }
+
+        typeById.values().forEach(type -> metrics.increment("discovery_events_total",
+                DiscoveryMetrics.labels("source", METRICS_SOURCE, "type", type.name().toLowerCase()), 1));
+        log.debug("Applied {} instance events", events.size());
+    }
+
+    private void publish() {
+        instances = ImmutableList.copyOf(instancesById.values());
+        metrics.recordPoll(METRICS_SOURCE, instances);
+    }
+
+    private void consumeEvents() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<InstanceEvent> events = eventSource.poll();
+                if (!events.isEmpty()) {
+                    apply(events);
+                    eventSource.acknowledge(events);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Error applying instance events from {}", eventSource.getClass(), e);
+                metrics.increment("discovery_event_failures_total", DiscoveryMetrics.labels("source", METRICS_SOURCE), 1);
+                try {
+                    Thread.sleep(ERROR_BACKOFF_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private void scheduleReconcile() {
+        long interval = Math.max(1, reconcileIntervalMs.get());
+        long jitter = (long) (interval * JITTER);
+        long delay = interval + (jitter > 0 ? ThreadLocalRandom.current().nextLong(-jitter, jitter + 1) : 0);
+        reconcileExecutor.schedule(() -> {
+            try {
+                reconcile();
+            } catch (Exception e) {
+                log.error("Error reconciling instances from {}, keeping {} instances", delegate.getClass(),
+                        instances.size(), e);
+            } finally {
+                scheduleReconcile();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static String getInstanceId(Instance instance) {
+        String instanceId = instance.getAttributes().get(Ec2InstanceMapper.INSTANCE_ID_ATTRIBUTE);
+        // instances without an id can not be matched to events, they are only updated by reconciliation
+        return instanceId != null ? instanceId : instance.getHostname();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.netflix.turbine.discovery.Instance;
+import com.netflix.turbine.discovery.InstanceDiscovery;
+
+import java.util.Collection;
+
+/**
+ * An {@link InstanceDiscovery} that can report failures to the caller. {@link #getInstanceList()} logs failures and
+ * returns an empty list, which callers that keep their own state cannot tell apart from an empty fleet.
+ */
+public interface FallibleInstanceDiscovery extends InstanceDiscovery {
+
+    /**
+     * Returns the current instances, throwing if they could not be fetched
+     * @return collection of Turbine instances
+     * @throws Exception if the instances could not be fetched
+     */
+    Collection<Instance> fetchInstanceList() throws Exception;
+
+    /**
+     * Fetches instances from any InstanceDiscovery, propagating failures when the implementation supports it
+     * @param discovery discovery to fetch from
+     * @return collection of Turbine instances
+     * @throws Exception if the instances could not be fetched
+     */
+    static Collection<Instance> fetch(InstanceDiscovery discovery) throws Exception {
+        if (discovery instanceof FallibleInstanceDiscovery) {
+            return ((FallibleInstanceDiscovery) discovery).fetchInstanceList();
+        }
+        return discovery.getInstanceList();
+    }
+}
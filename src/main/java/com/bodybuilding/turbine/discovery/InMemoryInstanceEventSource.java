@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.base.Preconditions;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link InstanceEventSource} backed by an in-memory queue. Events are published by the application, e.g. from a
+ * webhook, or by tests.
+ */
+public class InMemoryInstanceEventSource implements InstanceEventSource {
+    private static final DynamicLongProperty WAIT_MS = DynamicPropertyFactory.getInstance()
+            .getLongProperty("InMemoryInstanceEventSource.waitMs", 1000);
+
+    private final BlockingQueue<InstanceEvent> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Publishes an event to the consuming discovery
+     * @param event instance event
+     */
+    public void publish(InstanceEvent event) {
+        Preconditions.checkNotNull(event);
+        queue.add(event);
+    }
+
+    /**
+     * Parses and publishes an EC2 state-change or Auto Scaling lifecycle message
+     * @param message JSON message
+     * @return true if the message was an instance event
+     */
+    public boolean publish(String message) {
+        return InstanceEvents.parse(message, null).map(e -> queue.add(e)).orElse(false);
+    }
+
+    @Override
+    public List<InstanceEvent> poll() throws InterruptedException {
+        List<InstanceEvent> events = new ArrayList<>();
+        InstanceEvent first = queue.poll(WAIT_MS.get(), TimeUnit.MILLISECONDS);
+        if (first != null) {
+            events.add(first);
+            queue.drainTo(events);
+        }
+        return events;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A change to a single EC2 instance, as reported by an {@link InstanceEventSource}
+ */
+public class InstanceEvent {
+
+    public enum Type {
+        /**
+         * The instance was launched or changed state and has to be described again
+         */
+        CHANGED,
+        /**
+         * The instance is terminating and can be dropped without describing it
+         */
+        TERMINATED
+    }
+
+    private final String instanceId;
+    private final Type type;
+    // source specific handle used to acknowledge the event, e.g. an SQS receipt handle
+    private final String receipt;
+
+    public InstanceEvent(String instanceId, Type type) {
+        this(instanceId, type, null);
+    }
+
+    InstanceEvent(String instanceId, Type type, String receipt) {
+        Preconditions.checkNotNull(instanceId);
+        Preconditions.checkNotNull(type);
+        this.instanceId = instanceId;
+        this.type = type;
+        this.receipt = receipt;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    String getReceipt() {
+        return receipt;
+    }
+
+    @Override
+    public String toString() {
+        return "InstanceEvent{" + instanceId + ", " + type + "}";
+    }
+}
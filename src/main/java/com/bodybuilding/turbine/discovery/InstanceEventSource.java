@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Source of EC2 instance change events consumed by {@link EventDrivenInstanceDiscovery}.
+ * Implementations need a public no-arg constructor to be configured by class name.
+ */
+public interface InstanceEventSource {
+
+    /**
+     * Waits for the next batch of events
+     * @return events, empty if none arrived before the source's wait time elapsed
+     * @throws Exception if the source could not be read
+     */
+    List<InstanceEvent> poll() throws Exception;
+
+    /**
+     * Called once polled events have been applied, sources that redeliver unacknowledged events can drop them now
+     * @param events events returned by {@link #poll()}
+     */
+    default void acknowledge(Collection<InstanceEvent> events) {
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Parses EC2 state-change and Auto Scaling lifecycle messages into {@link InstanceEvent}s. Supported are
+ * CloudWatch Events (both EC2 and Auto Scaling detail types), Auto Scaling notifications and lifecycle hook
+ * messages, optionally wrapped in an SNS notification.
+ */
+final class InstanceEvents {
+    private static final Logger log = LoggerFactory.getLogger(InstanceEvents.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final Set<String> TERMINATED_STATES = ImmutableSet.of("shutting-down", "terminated");
+
+    private InstanceEvents() {
+    }
+
+    /**
+     * Parses a message
+     * @param message JSON message
+     * @param receipt source specific handle stored on the event
+     * @return the event, or empty if the message is not about an instance
+     */
+    static Optional<InstanceEvent> parse(String message, String receipt) {
+        JsonNode node;
+        try {
+            node = objectMapper.readTree(message);
+        } catch (IOException e) {
+            log.warn("Ignoring message that is not valid JSON: {}", message);
+            return Optional.empty();
+        }
+        if (node == null || !node.isObject()) {
+            return Optional.empty();
+        }
+
+        if ("Notification".equals(node.path("Type").asText()) && node.path("Message").isTextual()) {
+            return parse(node.path("Message").asText(), receipt);
+        }
+
+        JsonNode body = node.has("detail") ? node.path("detail") : node;
+        String instanceId = firstText(body, "instance-id", "EC2InstanceId");
+        if (Strings.isNullOrEmpty(instanceId)) {
+            return Optional.empty();
+        }
+
+        boolean terminated = TERMINATED_STATES.contains(body.path("state").asText())
+                || isTermination(node.path("detail-type").asText())
+                || isTermination(body.path("Event").asText())
+                || isTermination(body.path("LifecycleTransition").asText());
+        return Optional.of(new InstanceEvent(instanceId,
+                terminated ? InstanceEvent.Type.TERMINATED : InstanceEvent.Type.CHANGED, receipt));
+    }
+
+    private static String firstText(JsonNode node, String... fields) {
+        for (String field : fields) {
+            if (node.path(field).isTextual()) {
+                return node.path(field).asText();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isTermination(String eventName) {
+        // e.g. "EC2 Instance Terminate Successful", "autoscaling:EC2_INSTANCE_TERMINATING"
+        return eventName.toLowerCase().contains("terminat");
+    }
+}
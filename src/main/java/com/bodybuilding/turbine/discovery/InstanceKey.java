@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bodybuilding.turbine.discovery;
+
+import com.netflix.turbine.discovery.Instance;
+
+import java.util.Objects;
+
+/**
+ * Identity of a Turbine instance, its host and cluster, regardless of its up state and attributes
+ */
+class InstanceKey {
+    private final String host;
+    private final String cluster;
+
+    InstanceKey(String host, String cluster) {
+        this.host = host;
+        this.cluster = cluster;
+    }
+
+    InstanceKey(Instance instance) {
+        this(instance.getHostname(), instance.getCluster());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof InstanceKey)) {
+            return false;
+        }
+        InstanceKey other = (InstanceKey) o;
+        return Objects.equals(host, other.host) && Objects.equals(cluster, other.cluster);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(host, cluster);
+    }
+
+    @Override
+    public String toString() {
+        return host + "/" + cluster;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bodybuilding.turbine.discovery;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.netflix.turbine.discovery.Instance;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzipped json file holding the last good instance list, so a restarted Turbine can connect to instances before
+ * the first scan completes. The file is replaced with an atomic rename, readers never see a partial write.
+ */
+class InstanceSnapshotFile {
+    private static final int VERSION = 1;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final Path path;
+
+    InstanceSnapshotFile(Path path) {
+        Preconditions.checkNotNull(path);
+        this.path = path.toAbsolutePath();
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Writes the instances to a temporary file next to the snapshot, then renames it over the snapshot
+     * @param instances instances to store
+     * @param timestamp time the instances were discovered
+     */
+    void write(Collection<Instance> instances, long timestamp) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp));
+                 JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+                generator.writeStartObject();
+                generator.writeNumberField("version", VERSION);
+                generator.writeNumberField("timestamp", timestamp);
+                generator.writeArrayFieldStart("instances");
+                for (Instance instance : instances) {
+                    generator.writeStartObject();
+                    generator.writeStringField("host", instance.getHostname());
+                    generator.writeStringField("cluster", instance.getCluster());
+                    generator.writeBooleanField("up", instance.isUp());
+                    if (!instance.getAttributes().isEmpty()) {
+                        generator.writeObjectFieldStart("attributes");
+                        for (Map.Entry<String, String> attribute : instance.getAttributes().entrySet()) {
+                            generator.writeStringField(attribute.getKey(), attribute.getValue());
+                        }
+                        generator.writeEndObject();
+                    }
+                    generator.writeEndObject();
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            try {
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Reads the snapshot
+     * @return stored instances, or empty if no snapshot has been written
+     * @throws IOException if the snapshot can not be read or is not in a known format
+     */
+    Optional<Contents> read() throws IOException {
+        JsonNode root;
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(path))) {
+            root = OBJECT_MAPPER.readTree(in);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+
+        if (root == null || root.path("version").asInt() != VERSION) {
+            throw new IOException("Unsupported snapshot format in " + path);
+        }
+
+        ImmutableList.Builder<Instance> instances = ImmutableList.builder();
+        for (JsonNode node : root.path("instances")) {
+            Instance instance = new Instance(node.path("host").asText(), node.path("cluster").asText(),
+                    node.path("up").asBoolean());
+            Iterator<Map.Entry<String, JsonNode>> attributes = node.path("attributes").fields();
+            while (attributes.hasNext()) {
+                Map.Entry<String, JsonNode> attribute = attributes.next();
+                instance.getAttributes().put(attribute.getKey(), attribute.getValue().asText());
+            }
+            instances.add(instance);
+        }
+        return Optional.of(new Contents(instances.build(), root.path("timestamp").asLong()));
+    }
+
+    /**
+     * Instances read from a snapshot
+     */
+    static class Contents {
+        private final Collection<Instance> instances;
+        private final long timestamp;
+
+        Contents(Collection<Instance> instances, long timestamp) {
+            this.instances = instances;
+            this.timestamp = timestamp;
+        }
+
+        Collection<Instance> getInstances() {
+            return instances;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import java.util.Collection;
+
+/**
+ * Source of the Turbine nodes that share the clusters of a {@link ShardedInstanceDiscovery}.
+ * Implementations need a public no-arg constructor to be configured by class name.
+ */
+public interface PeerSource {
+
+    /**
+     * Returns the ids of all nodes, including this one. Ids must match the ShardedInstanceDiscovery.self setting of
+     * each node.
+     * @return node ids
+     * @throws Exception if the peers could not be looked up
+     */
+    Collection<String> getPeers() throws Exception;
+}
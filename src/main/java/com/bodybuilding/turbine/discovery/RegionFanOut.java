@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.turbine.discovery.Instance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs a discovery call in every region concurrently and merges the results. A slow or failing region does not
+ * delay the others: it is waited for until turbine.region.timeoutMs and then contributes its last successful result.
+ * A single region is called on the caller's thread.
+ */
+class RegionFanOut implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(RegionFanOut.class);
+    private static final DynamicLongProperty TIMEOUT_MS = DynamicPropertyFactory.getInstance()
+            .getLongProperty("turbine.region.timeoutMs", 30000);
+
+    /**
+     * Discovery call for a single region
+     */
+    interface RegionCall {
+        Collection<Instance> call(String region) throws Exception;
+    }
+
+    private final String source;
+    private final List<String> regions;
+    private final ExecutorService executor;
+    // guarded by this
+    private final Map<String, Future<Collection<Instance>>> inFlight = new LinkedHashMap<>();
+    private final Map<String, Collection<Instance>> lastResults = new LinkedHashMap<>();
+    private final DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+
+    /**
+     * @param source discovery source label for metrics and thread names
+     * @param regions region names
+     */
+    RegionFanOut(String source, Collection<String> regions) {
+        this.source = source;
+        this.regions = ImmutableList.copyOf(regions);
+        this.executor = this.regions.size() < 2 ? null : Executors.newFixedThreadPool(this.regions.size(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(source + "-region-%d").build());
+    }
+
+    /**
+     * Stops the threads polling the regions
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Polls all regions. Regions that fail or time out contribute their previous result.
+     * @param call discovery call
+     * @return merged instances
+     * @throws Exception if no region returned a current or previous result
+     */
+    synchronized Collection<Instance> poll(RegionCall call) throws Exception {
+        if (executor == null) {
+            return call.call(regions.get(0));
+        }
+
+        for (String region : regions) {
+            // a region still running from a previous poll is not called again
+            inFlight.computeIfAbsent(region, r -> executor.submit(() -> call.call(r)));
+        }
+
+        List<Instance> instances = new ArrayList<>();
+        Exception failure = null;
+        boolean anyResult = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS.get());
+        for (String region : regions) {
+            Future<Collection<Instance>> future = inFlight.get(region);
+            try {
+                Collection<Instance> result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                inFlight.remove(region);
+                lastResults.put(region, result);
+            } catch (TimeoutException e) {
+                log.warn("{} discovery in {} did not finish in {}ms, using its previous result", source, region, TIMEOUT_MS.get());
+                metrics.increment("discovery_region_timeouts_total", DiscoveryMetrics.labels("source", source, "region", region), 1);
+            } catch (ExecutionException e) {
+                inFlight.remove(region);
+                log.error("{} discovery in {} failed, using its previous result", source, region, e.getCause());
+                metrics.increment("discovery_region_failures_total", DiscoveryMetrics.labels("source", source, "region", region), 1);
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+
+            Collection<Instance> result = lastResults.get(region);
+            if (result != null) {
+                instances.addAll(result);
+                anyResult = true;
+            }
+        }
+
+        if (!anyResult && failure != null) {
+            throw failure;
+        }
+        return instances;
+    }
+
+    /**
+     * Calls all regions and waits for every result, for lookups that have no previous result to fall back to
+     * @param call discovery call
+     * @return merged instances
+     * @throws Exception if any region failed or timed out
+     */
+    Collection<Instance> query(RegionCall call) throws Exception {
+        if (executor == null) {
+            return call.call(regions.get(0));
+        }
+
+        Map<String, Future<Collection<Instance>>> futures = new LinkedHashMap<>();
+        regions.forEach(r -> futures.put(r, executor.submit(() -> call.call(r))));
+        List<Instance> instances = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS.get());
+        try {
+            for (Future<Collection<Instance>> future : futures.values()) {
+                instances.addAll(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            futures.values().forEach(f -> f.cancel(true));
+        }
+        return instances;
+    }
+
+    /**
+     * @return region names
+     */
+    List<String> getRegions() {
+        return Collections.unmodifiableList(regions);
+    }
+}
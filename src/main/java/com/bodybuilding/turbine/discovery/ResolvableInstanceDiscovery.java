@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.netflix.turbine.discovery.Instance;
+
+import java.util.Collection;
+
+/**
+ * A {@link FallibleInstanceDiscovery} that can also look up individual EC2 instances, so that callers can apply
+ * single instance changes without a full scan. Instances carry their EC2 instance id in the
+ * {@link Ec2InstanceMapper#INSTANCE_ID_ATTRIBUTE} attribute.
+ */
+public interface ResolvableInstanceDiscovery extends FallibleInstanceDiscovery {
+
+    /**
+     * Looks up the given EC2 instances
+     * @param instanceIds EC2 instance ids
+     * @return Turbine instances of the ids that still exist and belong to a cluster
+     * @throws Exception if the instances could not be fetched
+     */
+    Collection<Instance> resolveInstances(Collection<String> instanceIds) throws Exception;
+}
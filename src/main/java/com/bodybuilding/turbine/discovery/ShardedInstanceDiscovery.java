@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+import com.netflix.turbine.discovery.Instance;
+import com.netflix.turbine.discovery.InstanceDiscovery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.stream.Collectors;
+
+/**
+ * {@link InstanceDiscovery} decorator that spreads clusters across several Turbine nodes. Clusters are assigned to
+ * the nodes returned by a {@link PeerSource} with a {@link ConsistentHashRing}, and only the instances of clusters
+ * owned by this node are returned. If the peers can not be looked up the previous ring is kept.
+ * The clusters seen before filtering are published with {@link #getClusterAssignment()}, so every node can list all
+ * clusters along with the node serving them.
+ */
+public class ShardedInstanceDiscovery implements FallibleInstanceDiscovery, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ShardedInstanceDiscovery.class);
+    public static final String DELEGATE_PROPERTY_NAME = "ShardedInstanceDiscovery.delegate";
+    private static final DynamicStringProperty DELEGATE_PROP = DynamicPropertyFactory.getInstance()
+            .getStringProperty(DELEGATE_PROPERTY_NAME, null);
+    private static final DynamicStringProperty SELF_PROP = DynamicPropertyFactory.getInstance()
+            .getStringProperty("ShardedInstanceDiscovery.self", null);
+    private static final DynamicStringProperty PEER_SOURCE_PROP = DynamicPropertyFactory.getInstance()
+            .getStringProperty("ShardedInstanceDiscovery.peerSource", StaticPeerSource.class.getName());
+    private static final DynamicIntProperty VIRTUAL_NODES = DynamicPropertyFactory.getInstance()
+            .getIntProperty("ShardedInstanceDiscovery.virtualNodes", 100);
+    private static final String METRICS_SOURCE = "sharded";
+
+    // clusters and ring of the most recent poll, used to report cluster ownership
+    private static volatile ClusterAssignment activeAssignment;
+
+    private final InstanceDiscovery delegate;
+    private final PeerSource peerSource;
+    private final String self;
+    private final DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+    private ConsistentHashRing ring;
+    private Set<String> ringPeers = Collections.emptySet();
+    private int ringVirtualNodes;
+    private volatile ClusterAssignment published;
+
+    public ShardedInstanceDiscovery() {
+        this(loadDelegate(), loadPeerSource(), getSelf());
+    }
+
+    /**
+     * @param delegate discovery returning the instances of all clusters
+     * @param peerSource source of the nodes sharing the clusters
+     * @param self id of this node in the peer list
+     */
+    public ShardedInstanceDiscovery(InstanceDiscovery delegate, PeerSource peerSource, String self) {
+        Preconditions.checkNotNull(delegate);
+        Preconditions.checkNotNull(peerSource);
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(self), "self must be supplied");
+        this.delegate = delegate;
+        this.peerSource = peerSource;
+        this.self = self;
+    }
+
+    private static InstanceDiscovery loadDelegate() {
+        String className = DELEGATE_PROP.get();
+        Preconditions.checkState(!Strings.isNullOrEmpty(className), DELEGATE_PROPERTY_NAME + " must be supplied!");
+        return CompositeInstanceDiscovery.loadClass(className)
+                .orElseThrow(() -> new IllegalStateException("Could not load delegate " + className));
+    }
+
+    private static PeerSource loadPeerSource() {
+        String className = PEER_SOURCE_PROP.get();
+        try {
+            return (PeerSource) Class.forName(className).newInstance();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not load peer source " + className, e);
+        }
+    }
+
+    private static String getSelf() {
+        String self = SELF_PROP.get();
+        if (!Strings.isNullOrEmpty(self)) {
+            return self;
+        }
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("ShardedInstanceDiscovery.self must be supplied, the local host name is unknown", e);
+        }
+    }
+
+    /**
+     * Returns the node owning a cluster, according to the ring of the most recent poll
+     * @param cluster cluster name
+     * @return owning node id, or empty if no ShardedInstanceDiscovery has polled
+     */
+    public static Optional<String> getClusterOwner(String cluster) {
+        return getActiveRing().map(r -> r.getOwner(cluster));
+    }
+
+    /**
+     * @return the ring of the most recent poll of any ShardedInstanceDiscovery
+     */
+    public static Optional<ConsistentHashRing> getActiveRing() {
+        return getClusterAssignment().map(ClusterAssignment::getRing);
+    }
+
+    /**
+     * Returns all clusters seen by the most recent poll of any ShardedInstanceDiscovery, including the ones owned by
+     * other nodes, along with the ring assigning them
+     * @return cluster assignment, or empty if no ShardedInstanceDiscovery has polled
+     */
+    public static Optional<ClusterAssignment> getClusterAssignment() {
+        return Optional.ofNullable(activeAssignment);
+    }
+
+    /**
+     * Withdraws the cluster assignment published by this discovery and closes the wrapped discovery and peer source
+     */
+    @Override
+    public void close() {
+        ClusterAssignment assignment = published;
+        if (assignment != null && activeAssignment == assignment) {
+            activeAssignment = null;
+        }
+        DiscoveryResources.closeQuietly(delegate);
+        DiscoveryResources.closeQuietly(peerSource);
+    }
+
+    @Override
+    public Collection<Instance> getInstanceList() throws Exception {
+        try {
+            return fetchInstanceList();
+        } catch (Exception e) {
+            log.error("Error getting instances from {}", delegate.getClass(), e);
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public synchronized Collection<Instance> fetchInstanceList() throws Exception {
+        ConsistentHashRing current = updateRing();
+        Collection<Instance> instances = FallibleInstanceDiscovery.fetch(delegate);
+
+        Set<String> owned = new HashSet<>();
+        Set<String> skipped = new HashSet<>();
+        Set<String> up = new HashSet<>();
+        // ownership is resolved once per cluster, not per instance
+        List<Instance> filtered = instances.stream()
+                .filter(i -> {
+                    String cluster = i.getCluster();
+                    if (i.isUp()) {
+                        up.add(cluster);
+                    }
+                    if (owned.contains(cluster)) {
+                        return true;
+                    }
+                    if (skipped.contains(cluster)) {
+                        return false;
+                    }
+                    boolean isOwner = self.equals(current.getOwner(cluster));
+                    (isOwner ? owned : skipped).add(cluster);
+                    return isOwner;
+                })
+                .collect(Collectors.toList());
+        publishAssignment(current, up);
+
+        metrics.setGauge("discovery_shard_clusters", DiscoveryMetrics.labels("source", METRICS_SOURCE, "node", self), owned.size());
+        metrics.setGauge("discovery_shard_peers", DiscoveryMetrics.labels("source", METRICS_SOURCE), current.getNodes().size());
+        log.debug("Node {} owns {} of {} clusters", self, owned.size(), owned.size() + skipped.size());
+        return filtered;
+    }
+
+    /**
+     * Rebuilds the ring if the peers changed
+     * @return current ring
+     */
+    private ConsistentHashRing updateRing() {
+        Set<String> peers;
+        try {
+            peers = ImmutableSet.copyOf(peerSource.getPeers());
+        } catch (Exception e) {
+            if (ring == null) {
+                // owning everything duplicates work on other nodes, owning nothing would drop clusters
+                log.error("Error looking up peers, owning all clusters until they are known", e);
+                peers = ImmutableSet.of(self);
+            } else {
+                log.error("Error looking up peers, keeping the previous peers {}", ringPeers, e);
+                peers = ringPeers;
+            }
+        }
+
+        if (!peers.contains(self)) {
+            log.warn("This node {} is not in the peer list {}, adding it", self, peers);
+            peers = ImmutableSet.<String>builder().addAll(peers).add(self).build();
+        }
+
+        int virtualNodes = Math.max(1, VIRTUAL_NODES.get());
+        if (ring == null || !peers.equals(ringPeers) || virtualNodes != ringVirtualNodes) {
+            log.info("Sharding clusters across {}", peers);
+            ring = new ConsistentHashRing(peers, virtualNodes);
+            ringPeers = peers;
+            ringVirtualNodes = virtualNodes;
+        }
+        return ring;
+    }
+
+    /**
+     * Publishes the clusters with up instances, keeping the previous assignment if nothing changed so readers can
+     * tell changes apart by identity
+     */
+    private void publishAssignment(ConsistentHashRing current, Set<String> clusterNames) {
+        ClusterAssignment previous = activeAssignment;
+        if (previous != null && previous.ring == current && previous.self.equals(self)
+                && previous.clusterNames.equals(clusterNames)) {
+            return;
+        }
+        published = new ClusterAssignment(current, self, clusterNames);
+        activeAssignment = published;
+    }
+
+    /**
+     * Immutable set of clusters along with the ring assigning them to nodes and the node that saw them
+     */
+    public static final class ClusterAssignment {
+        private final ConsistentHashRing ring;
+        private final String self;
+        private final SortedSet<String> clusterNames;
+
+        /**
+         * @param ring ring assigning clusters to nodes
+         * @param self id of the node the clusters were seen by
+         * @param clusterNames names of all clusters, owned by any node
+         */
+        public ClusterAssignment(ConsistentHashRing ring, String self, Collection<String> clusterNames) {
+            this.ring = Preconditions.checkNotNull(ring);
+            this.self = Preconditions.checkNotNull(self);
+            this.clusterNames = ImmutableSortedSet.copyOf(clusterNames);
+        }
+
+        public ConsistentHashRing getRing() {
+            return ring;
+        }
+
+        public String getSelf() {
+            return self;
+        }
+
+        /**
+         * @return sorted names of all clusters, owned by any node
+         */
+        public SortedSet<String> getClusterNames() {
+            return clusterNames;
+        }
+
+        public String getOwner(String cluster) {
+            return ring.getOwner(cluster);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * {@link InstanceEventSource} that long polls an SQS queue subscribed to EC2 state-change and Auto Scaling
+ * lifecycle events. Messages are deleted once their events have been applied, messages that are not
+ * instance events are deleted right away.
+ */
+public class SqsInstanceEventSource implements InstanceEventSource {
+    private static final Logger log = LoggerFactory.getLogger(SqsInstanceEventSource.class);
+    public static final String QUEUE_URL_PROPERTY_NAME = "SqsInstanceEventSource.queueUrl";
+    private static final DynamicStringProperty QUEUE_URL = DynamicPropertyFactory.getInstance()
+            .getStringProperty(QUEUE_URL_PROPERTY_NAME, null);
+    // region of the queue, defaults to the first region of turbine.region
+    private static final DynamicStringProperty REGION = DynamicPropertyFactory.getInstance()
+            .getStringProperty("SqsInstanceEventSource.region", null);
+    private static final DynamicIntProperty WAIT_SECONDS = DynamicPropertyFactory.getInstance()
+            .getIntProperty("SqsInstanceEventSource.waitSeconds", 20);
+    // SQS returns and deletes at most 10 messages per request
+    private static final int MAX_MESSAGES = 10;
+    private static final String METRICS_SOURCE = "sqs";
+
+    private final AmazonSQSClient sqsClient;
+    private final String queueUrl;
+    private final DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+
+    public SqsInstanceEventSource() {
+        this(new AmazonSQSClient());
+    }
+
+    protected SqsInstanceEventSource(AmazonSQSClient sqsClient) {
+        Preconditions.checkNotNull(sqsClient);
+        Preconditions.checkState(!Strings.isNullOrEmpty(QUEUE_URL.get()), QUEUE_URL_PROPERTY_NAME + " must be supplied!");
+        this.sqsClient = sqsClient;
+        this.queueUrl = QUEUE_URL.get();
+
+        String regionName = REGION.get();
+        if (Strings.isNullOrEmpty(regionName)) {
+            regionName = AwsRegions.getRegionNames().get(0);
+        }
+        sqsClient.setRegion(Region.getRegion(Regions.fromName(regionName)));
+        log.debug("Set the sqs region to [{}]", regionName);
+    }
+
+    @Override
+    public List<InstanceEvent> poll() {
+        ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+                .withMaxNumberOfMessages(MAX_MESSAGES)
+                .withWaitTimeSeconds(WAIT_SECONDS.get());
+        List<Message> messages = metrics.timeAwsCall(METRICS_SOURCE, "ReceiveMessage",
+                () -> sqsClient.receiveMessage(request)).getMessages();
+
+        List<InstanceEvent> events = new ArrayList<>(messages.size());
+        List<String> ignored = new ArrayList<>();
+        for (Message message : messages) {
+            Optional<InstanceEvent> event = InstanceEvents.parse(message.getBody(), message.getReceiptHandle());
+            if (event.isPresent()) {
+                events.add(event.get());
+            } else {
+                log.debug("Ignoring message {}", message.getMessageId());
+                ignored.add(message.getReceiptHandle());
+            }
+        }
+        delete(ignored);
+        return events;
+    }
+
+    @Override
+    public void acknowledge(Collection<InstanceEvent> events) {
+        delete(events.stream().map(InstanceEvent::getReceipt).filter(Objects::nonNull).collect(Collectors.toList()));
+    }
+
+    private void delete(List<String> receiptHandles) {
+        for (List<String> batch : Iterables.partition(receiptHandles, MAX_MESSAGES)) {
+            List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), batch.get(i)));
+            }
+            try {
+                metrics.timeAwsCall(METRICS_SOURCE, "DeleteMessageBatch",
+                        () -> sqsClient.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries)));
+            } catch (RuntimeException e) {
+                // the messages are redelivered after their visibility timeout, applying them twice is harmless
+                log.warn("Error deleting {} messages from {}", entries.size(), queueUrl, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.config.DynamicStringProperty;
+
+import java.util.Collection;
+
+/**
+ * {@link PeerSource} reading a comma separated list of node ids from the ShardedInstanceDiscovery.peers property
+ */
+public class StaticPeerSource implements PeerSource {
+    public static final String PEERS_PROPERTY_NAME = "ShardedInstanceDiscovery.peers";
+    private static final DynamicStringProperty PEERS = DynamicPropertyFactory.getInstance()
+            .getStringProperty(PEERS_PROPERTY_NAME, "");
+    private static final Splitter SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    @Override
+    public Collection<String> getPeers() {
+        return Lists.newArrayList(SPLITTER.split(PEERS.get()));
+    }
+}
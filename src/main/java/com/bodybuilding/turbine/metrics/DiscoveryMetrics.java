@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.metrics;
+
+import com.amazonaws.AmazonServiceException;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.netflix.turbine.discovery.Instance;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide registry of discovery metrics: AWS call latency, pages, errors and throttles per operation, poll
+ * latency, instance counts per cluster and the instances added and removed by each poll.
+ * Metrics are identified by a name and a source label (ec2, asg, composite, ...), and can be rendered as json
+ * or in the Prometheus text format.
+ */
+public class DiscoveryMetrics {
+    private static final DiscoveryMetrics INSTANCE = new DiscoveryMetrics();
+    private static final Set<String> THROTTLING_ERROR_CODES = ImmutableSet.of("Throttling", "ThrottlingException",
+            "RequestLimitExceeded", "RequestThrottled", "RequestThrottledException", "TooManyRequestsException");
+
+    private final ConcurrentMap<MetricKey, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<MetricKey, AtomicLong> gauges = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<MetricKey, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Set<Instance>> lastPoll = new ConcurrentHashMap<>();
+
+    DiscoveryMetrics() {
+    }
+
+    public static DiscoveryMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks if an exception is an AWS throttling error
+     * @param t exception thrown by an AWS client
+     * @return true if the request was throttled
+     */
+    public static boolean isThrottlingError(Throwable t) {
+        if (!(t instanceof AmazonServiceException)) {
+            return false;
+        }
+        AmazonServiceException e = (AmazonServiceException) t;
+        return e.getStatusCode() == 429 || THROTTLING_ERROR_CODES.contains(e.getErrorCode());
+    }
+
+    /**
+     * Executes an AWS request, recording its latency, the page it returned and any error or throttling
+     * @param source discovery source label
+     * @param operation AWS operation name, e.g. DescribeInstances
+     * @param call the request
+     * @return result of the request
+     */
+    public <T> T timeAwsCall(String source, String operation, Supplier<T> call) {
+        Map<String, String> labels = labels("source", source, "operation", operation);
+        long start = System.nanoTime();
+        try {
+            T result = call.get();
+            increment("discovery_aws_pages_total", labels, 1);
+            return result;
+        } catch (RuntimeException e) {
+            increment(isThrottlingError(e) ? "discovery_aws_throttles_total" : "discovery_aws_errors_total", labels, 1);
+            throw e;
+        } finally {
+            histogram("discovery_aws_latency_ms", labels).record((System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    /**
+     * Executes a discovery poll, recording its latency and either its result or its failure
+     * @param source discovery source label
+     * @param poll the poll
+     * @return instances returned by the poll
+     */
+    public Collection<Instance> timePoll(String source, Callable<Collection<Instance>> poll) throws Exception {
+        Map<String, String> labels = labels("source", source);
+        long start = System.nanoTime();
+        try {
+            Collection<Instance> instances = poll.call();
+            recordPoll(source, instances);
+            return instances;
+        } catch (Exception e) {
+            increment("discovery_poll_failures_total", labels, 1);
+            throw e;
+        } finally {
+            histogram("discovery_poll_latency_ms", labels).record((System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    /**
+     * Records the result of a poll: instance count per cluster and the instances added and removed since the
+     * previous poll of the same source
+     * @param source discovery source label
+     * @param instances instances returned by the poll
+     */
+    public void recordPoll(String source, Collection<Instance> instances) {
+        Set<Instance> current = new HashSet<>(instances);
+        Set<Instance> previous = lastPoll.put(source, current);
+        if (previous == null) {
+            previous = Collections.emptySet();
+        }
+
+        Map<String, String> labels = labels("source", source);
+        int added = Sets.difference(current, previous).size();
+        int removed = Sets.difference(previous, current).size();
+        setGauge("discovery_poll_added", labels, added);
+        setGauge("discovery_poll_removed", labels, removed);
+        increment("discovery_instances_added_total", labels, added);
+        increment("discovery_instances_removed_total", labels, removed);
+        setGauge("discovery_instances", labels, current.size());
+
+        Map<String, Long> perCluster = new HashMap<>();
+        current.forEach(i -> perCluster.merge(i.getCluster(), 1L, Long::sum));
+        // drop gauges of clusters that no longer have instances
+        gauges.keySet().removeIf(k -> k.name.equals("discovery_cluster_instances")
+                && source.equals(k.labels.get("source")) && !perCluster.containsKey(k.labels.get("cluster")));
+        perCluster.forEach((cluster, count) ->
+                setGauge("discovery_cluster_instances", labels("source", source, "cluster", cluster), count));
+    }
+
+    /**
+     * Adds to a counter
+     * @param name metric name
+     * @param labels metric labels
+     * @param amount amount to add
+     */
+    public void increment(String name, Map<String, String> labels, long amount) {
+        counters.computeIfAbsent(new MetricKey(name, labels), k -> new LongAdder()).add(amount);
+    }
+
+    /**
+     * Sets a gauge
+     * @param name metric name
+     * @param labels metric labels
+     * @param value new value
+     */
+    public void setGauge(String name, Map<String, String> labels, long value) {
+        gauges.computeIfAbsent(new MetricKey(name, labels), k -> new AtomicLong()).set(value);
+    }
+
+    /**
+     * Returns a latency histogram, creating it if needed
+     * @param name metric name
+     * @param labels metric labels
+     * @return histogram
+     */
+    public LatencyHistogram histogram(String name, Map<String, String> labels) {
+        return histograms.computeIfAbsent(new MetricKey(name, labels), k -> new LatencyHistogram());
+    }
+
+    /**
+     * Builds a label map from alternating names and values
+     * @param namesAndValues label name, label value, ...
+     * @return ordered label map
+     */
+    public static Map<String, String> labels(String... namesAndValues) {
+        Map<String, String> labels = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+            labels.put(namesAndValues[i], String.valueOf(namesAndValues[i + 1]));
+        }
+        return labels;
+    }
+
+    /**
+     * Returns the current value of a counter, 0 if it does not exist
+     */
+    public long getCounter(String name, Map<String, String> labels) {
+        LongAdder counter = counters.get(new MetricKey(name, labels));
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Returns the current value of a gauge, 0 if it does not exist
+     */
+    public long getGauge(String name, Map<String, String> labels) {
+        AtomicLong gauge = gauges.get(new MetricKey(name, labels));
+        return gauge == null ? 0 : gauge.get();
+    }
+
+    /**
+     * Returns all metrics as a json friendly map of metric type to "name{labels}" to value
+     * @return nested map of metric values
+     */
+    public Map<String, Map<String, Object>> toMap() {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        Map<String, Object> counterValues = new LinkedHashMap<>();
+        counters.forEach((k, v) -> counterValues.put(k.toString(), v.sum()));
+        Map<String, Object> gaugeValues = new LinkedHashMap<>();
+        gauges.forEach((k, v) -> gaugeValues.put(k.toString(), v.get()));
+        Map<String, Object> histogramValues = new LinkedHashMap<>();
+        histograms.forEach((k, v) -> {
+            Map<String, Object> h = new LinkedHashMap<>();
+            h.put("count", v.getCount());
+            h.put("sum", v.getSum());
+            Map<String, Long> buckets = new LinkedHashMap<>();
+            long[] cumulative = v.getCumulativeCounts();
+            for (int i = 0; i < cumulative.length; i++) {
+                buckets.put(bucketLabel(i), cumulative[i]);
+            }
+            h.put("buckets", buckets);
+            histogramValues.put(k.toString(), h);
+        });
+        result.put("counters", counterValues);
+        result.put("gauges", gaugeValues);
+        result.put("histograms", histogramValues);
+        return result;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format
+     * @param writer output
+     */
+    public void writePrometheus(Writer writer) throws IOException {
+        String lastName = null;
+        for (Map.Entry<MetricKey, LongAdder> e : counters.entrySet()) {
+            lastName = writeType(writer, lastName, e.getKey().name, "counter");
+            writer.write(e.getKey() + " " + e.getValue().sum() + "\n");
+        }
+        for (Map.Entry<MetricKey, AtomicLong> e : gauges.entrySet()) {
+            lastName = writeType(writer, lastName, e.getKey().name, "gauge");
+            writer.write(e.getKey() + " " + e.getValue().get() + "\n");
+        }
+        for (Map.Entry<MetricKey, LatencyHistogram> e : histograms.entrySet()) {
+            MetricKey key = e.getKey();
+            lastName = writeType(writer, lastName, key.name, "histogram");
+            long[] cumulative = e.getValue().getCumulativeCounts();
+            for (int i = 0; i < cumulative.length; i++) {
+                Map<String, String> labels = new LinkedHashMap<>(key.labels);
+                labels.put("le", bucketLabel(i));
+                writer.write(new MetricKey(key.name + "_bucket", labels) + " " + cumulative[i] + "\n");
+            }
+            writer.write(new MetricKey(key.name + "_sum", key.labels) + " " + e.getValue().getSum() + "\n");
+            writer.write(new MetricKey(key.name + "_count", key.labels) + " " + e.getValue().getCount() + "\n");
+        }
+        writer.flush();
+    }
+
+    private static String writeType(Writer writer, String lastName, String name, String type) throws IOException {
+        if (!name.equals(lastName)) {
+            writer.write("# TYPE " + name + " " + type + "\n");
+        }
+        return name;
+    }
+
+    private static String bucketLabel(int index) {
+        return index < LatencyHistogram.BUCKETS_MS.length ? String.valueOf(LatencyHistogram.BUCKETS_MS[index]) : "+Inf";
+    }
+
+    /**
+     * Metric name plus labels, ordered so that all series of a metric are adjacent
+     */
+    private static class MetricKey implements Comparable<MetricKey> {
+        private final String name;
+        private final Map<String, String> labels;
+        private final String text;
+
+        MetricKey(String name, Map<String, String> labels) {
+            this.name = name;
+            this.labels = labels;
+            StringBuilder sb = new StringBuilder(name);
+            if (!labels.isEmpty()) {
+                sb.append('{');
+                labels.forEach((k, v) -> sb.append(k).append("=\"").append(escape(v)).append("\","));
+                sb.setCharAt(sb.length() - 1, '}');
+            }
+            this.text = sb.toString();
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+
+        @Override
+        public int compareTo(MetricKey o) {
+            int c = name.compareTo(o.name);
+            return c != 0 ? c : text.compareTo(o.text);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MetricKey && text.equals(((MetricKey) o).text);
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cumulative latency histogram with fixed millisecond buckets, in the style of a Prometheus histogram
+ */
+public class LatencyHistogram {
+    static final long[] BUCKETS_MS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    // one slot per bucket plus the +Inf bucket
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS_MS.length + 1);
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Records one observation
+     * @param millis latency in milliseconds
+     */
+    public void record(long millis) {
+        int i = 0;
+        while (i < BUCKETS_MS.length && millis > BUCKETS_MS[i]) {
+            i++;
+        }
+        counts.incrementAndGet(i);
+        sum.add(millis);
+    }
+
+    /**
+     * @return total number of observations
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of all observations in milliseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the cumulative count of observations less than or equal to each bucket bound, the last element being
+     * the +Inf bucket
+     * @return cumulative bucket counts
+     */
+    public long[] getCumulativeCounts() {
+        long[] cumulative = new long[counts.length()];
+        long running = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            running += counts.get(i);
+            cumulative[i] = running;
+        }
+        return cumulative;
+    }
+}
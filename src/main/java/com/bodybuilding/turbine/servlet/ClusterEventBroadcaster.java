@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.servlet;
+
+import com.bodybuilding.turbine.discovery.ClusterNameIndex;
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Pushes cluster membership changes to all connected {@link ClusterStreamServlet} clients. A single thread renders
+ * the events: a new client first receives the full cluster list, after that every client receives the same
+ * pre-rendered delta of added, removed and resized clusters. Idle connections get a comment line as keepalive.
+ * Events are queued per client and written by a writer pool, so a client that stops reading only stalls itself.
+ * A client whose queue is full or whose write takes longer than the write timeout is dropped; the EventSource
+ * reconnects and starts over with the full list, as skipping a delta would leave it with the wrong clusters.
+ */
+class ClusterEventBroadcaster {
+    private static final Logger log = LoggerFactory.getLogger(ClusterEventBroadcaster.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final DynamicLongProperty HEARTBEAT_MS = DynamicPropertyFactory.getInstance()
+            .getLongProperty("ClusterStreamServlet.heartbeatMs", 15000);
+    private static final DynamicLongProperty WRITE_TIMEOUT_MS = DynamicPropertyFactory.getInstance()
+            .getLongProperty("ClusterStreamServlet.writeTimeoutMs", 10000);
+    private static final DynamicIntProperty WRITER_THREADS = DynamicPropertyFactory.getInstance()
+            .getIntProperty("ClusterStreamServlet.writerThreads", 4);
+    // events are only queued while a write is in progress, a client this far behind is not reading
+    private static final int MAX_QUEUED_EVENTS = 16;
+    private static final long IDLE = Long.MIN_VALUE;
+    private static final byte[] HEARTBEAT = ": keepalive\n\n".getBytes(StandardCharsets.UTF_8);
+    // how long EventSource clients wait before reconnecting
+    private static final long RETRY_MS = 5000;
+
+    private final Supplier<ClusterNameIndex.Snapshot> snapshots;
+    private final DynamicLongProperty heartbeatMs;
+    private final DynamicLongProperty writeTimeoutMs;
+    private final Executor writer;
+    private final ConcurrentMap<AsyncContext, Client> clients = new ConcurrentHashMap<>();
+    private final Queue<AsyncContext> pending = new ConcurrentLinkedQueue<>();
+    // holds at most one wake up, signals while one is pending are merged
+    private final BlockingQueue<Boolean> signals = new ArrayBlockingQueue<>(1);
+    private final DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+
+    // only accessed by the broadcaster thread
+    private long lastVersion = -1;
+    private SortedMap<String, Integer> lastClusters = ImmutableSortedMap.of();
+    private long lastWriteNanos = System.nanoTime();
+
+    /**
+     * @param snapshots source of the current cluster index snapshot
+     * @param heartbeatMs interval after which idle clients get a keepalive
+     * @param writeTimeoutMs time after which a client blocked in a write is dropped
+     * @param writer executor writing the queued events of the clients
+     */
+    ClusterEventBroadcaster(Supplier<ClusterNameIndex.Snapshot> snapshots, DynamicLongProperty heartbeatMs,
+                            DynamicLongProperty writeTimeoutMs, Executor writer) {
+        Preconditions.checkNotNull(snapshots);
+        Preconditions.checkNotNull(heartbeatMs);
+        Preconditions.checkNotNull(writeTimeoutMs);
+        Preconditions.checkNotNull(writer);
+        this.snapshots = snapshots;
+        this.heartbeatMs = heartbeatMs;
+        this.writeTimeoutMs = writeTimeoutMs;
+        this.writer = writer;
+    }
+
+    /**
+     * Returns the broadcaster for the global ClusterNameIndex, starting its thread on first use
+     * @return shared broadcaster
+     */
+    static ClusterEventBroadcaster getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Adds a client, the full cluster list is sent to it by the broadcaster thread
+     * @param context started async context of the client request
+     */
+    void register(AsyncContext context) {
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                remove(context);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                remove(context);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                remove(context);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        pending.add(context);
+        signal();
+    }
+
+    /**
+     * Wakes up the broadcaster thread
+     */
+    void signal() {
+        signals.offer(Boolean.TRUE);
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                // wakes up often enough to drop clients stalled in a write
+                signals.poll(Math.max(1, Math.min(heartbeatMs.get(), writeTimeoutMs.get())), TimeUnit.MILLISECONDS);
+                broadcast();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Error broadcasting cluster changes", e);
+            }
+        }
+    }
+
+    /**
+     * Queues the delta since the previous call for all clients, the full list for new clients and a keepalive for
+     * clients that were idle for the heartbeat interval, and drops clients stalled in a write
+     */
+    void broadcast() throws JsonProcessingException {
+        dropStalledClients();
+        ClusterNameIndex.Snapshot snapshot = snapshots.get();
+        boolean wrote = false;
+        if (snapshot.getVersion() != lastVersion) {
+            SortedMap<String, Integer> clusters = getClusters(snapshot);
+            if (!clients.isEmpty()) {
+                byte[] delta = renderDelta(snapshot.getVersion(), lastClusters, clusters);
+                if (delta != null) {
+                    clients.values().forEach(c -> send(c, delta));
+                    wrote = true;
+                }
+            }
+            lastVersion = snapshot.getVersion();
+            lastClusters = clusters;
+        }
+
+        if (!pending.isEmpty()) {
+            byte[] full = renderClusters(lastVersion, lastClusters);
+            AsyncContext context;
+            while ((context = pending.poll()) != null) {
+                Client client = new Client(context);
+                clients.put(context, client);
+                send(client, full);
+            }
+        }
+
+        if (wrote) {
+            lastWriteNanos = System.nanoTime();
+        } else if (System.nanoTime() - lastWriteNanos >= TimeUnit.MILLISECONDS.toNanos(heartbeatMs.get())) {
+            clients.values().forEach(c -> send(c, HEARTBEAT));
+            lastWriteNanos = System.nanoTime();
+        }
+        metrics.setGauge("discovery_stream_clients", DiscoveryMetrics.labels(), clients.size());
+    }
+
+    /**
+     * Queues an event for a client and schedules its writer, dropping the client if it is too far behind
+     */
+    private void send(Client client, byte[] event) {
+        if (!client.events.offer(event)) {
+            log.debug("Dropping cluster stream client with {} unsent events", MAX_QUEUED_EVENTS);
+            drop(client);
+            return;
+        }
+        schedule(client);
+    }
+
+    private void schedule(Client client) {
+        if (!client.scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            writer.execute(() -> writeQueued(client));
+        } catch (RejectedExecutionException e) {
+            log.debug("Dropping cluster stream client, the writer was shut down", e);
+            drop(client);
+        }
+    }
+
+    /**
+     * Writes the queued events of a client, runs on the writer executor with at most one task per client
+     */
+    private void writeQueued(Client client) {
+        try {
+            ServletResponse response = client.context.getResponse();
+            byte[] event;
+            while ((event = client.events.poll()) != null) {
+                client.writeStartNanos = System.nanoTime();
+                response.getOutputStream().write(event);
+                response.flushBuffer();
+                client.writeStartNanos = IDLE;
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Dropping cluster stream client", e);
+            drop(client);
+            return;
+        }
+        client.scheduled.set(false);
+        // an event queued after the last poll but before the flag was cleared would otherwise wait for the next one
+        if (!client.events.isEmpty()) {
+            schedule(client);
+        }
+    }
+
+    private void dropStalledClients() {
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMs.get());
+        long now = System.nanoTime();
+        for (Client client : clients.values()) {
+            long started = client.writeStartNanos;
+            if (started != IDLE && now - started > timeoutNanos) {
+                log.debug("Dropping cluster stream client blocked in a write for {}ms",
+                        TimeUnit.NANOSECONDS.toMillis(now - started));
+                drop(client);
+            }
+        }
+    }
+
+    /**
+     * Removes a client and completes its request, which lets the container close the connection and fail a write
+     * that is blocked on it
+     */
+    private void drop(Client client) {
+        remove(client.context);
+        client.events.clear();
+        client.writeStartNanos = IDLE;
+        try {
+            client.context.complete();
+        } catch (RuntimeException ignored) {
+            // the container already recycled the request
+        }
+    }
+
+    private void remove(AsyncContext context) {
+        clients.remove(context);
+        pending.remove(context);
+    }
+
+    int getClientCount() {
+        return clients.size() + pending.size();
+    }
+
+    private static SortedMap<String, Integer> getClusters(ClusterNameIndex.Snapshot snapshot) {
+        ImmutableSortedMap.Builder<String, Integer> clusters = ImmutableSortedMap.naturalOrder();
+        snapshot.getClusterNames().forEach(c -> clusters.put(c, snapshot.getHostCount(c)));
+        return clusters.build();
+    }
+
+    /**
+     * Renders the full cluster list event
+     * @param version index version
+     * @param clusters up host count by cluster name
+     * @return event bytes
+     */
+    static byte[] renderClusters(long version, Map<String, Integer> clusters) throws JsonProcessingException {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("version", version);
+        data.put("clusters", clusters);
+        return ("retry: " + RETRY_MS + "\n" + event("clusters", version, data)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Renders the changes between two cluster lists
+     * @param version index version of the current list
+     * @param previous up host count by cluster name, as last sent
+     * @param current current up host count by cluster name
+     * @return event bytes, null if the monitored clusters and their host counts did not change
+     */
+    static byte[] renderDelta(long version, Map<String, Integer> previous, Map<String, Integer> current)
+            throws JsonProcessingException {
+        Map<String, Integer> added = new LinkedHashMap<>();
+        Map<String, Integer> changed = new LinkedHashMap<>();
+        List<String> removed = new ArrayList<>();
+        current.forEach((cluster, count) -> {
+            Integer before = previous.get(cluster);
+            if (before == null) {
+                added.put(cluster, count);
+            } else if (!before.equals(count)) {
+                changed.put(cluster, count);
+            }
+        });
+        previous.keySet().stream().filter(c -> !current.containsKey(c)).forEach(removed::add);
+        if (added.isEmpty() && changed.isEmpty() && removed.isEmpty()) {
+            return null;
+        }
+
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("version", version);
+        data.put("added", added);
+        data.put("removed", removed);
+        data.put("changed", changed);
+        return event("delta", version, data).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String event(String name, long version, Map<String, Object> data) throws JsonProcessingException {
+        // single line json, so the data needs no further escaping
+        return "event: " + name + "\nid: " + version + "\ndata: " + OBJECT_MAPPER.writeValueAsString(data) + "\n\n";
+    }
+
+    /**
+     * Connected client along with its unsent events
+     */
+    private static class Client {
+        private final AsyncContext context;
+        private final BlockingQueue<byte[]> events = new ArrayBlockingQueue<>(MAX_QUEUED_EVENTS);
+        // set while a writer task is queued or running, so events of a client are written in order
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile long writeStartNanos = IDLE;
+
+        Client(AsyncContext context) {
+            this.context = context;
+        }
+    }
+
+    private static class Holder {
+        private static final ClusterEventBroadcaster INSTANCE = create();
+
+        private static ClusterEventBroadcaster create() {
+            ClusterNameIndex index = ClusterNameIndex.getInstance();
+            Executor writer = Executors.newFixedThreadPool(Math.max(1, WRITER_THREADS.get()),
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cluster-stream-writer-%d").build());
+            ClusterEventBroadcaster broadcaster = new ClusterEventBroadcaster(index::getSnapshot, HEARTBEAT_MS,
+                    WRITE_TIMEOUT_MS, writer);
+            index.addListener(s -> broadcaster.signal());
+            Thread thread = new Thread(broadcaster::run, "cluster-stream-broadcaster");
+            thread.setDaemon(true);
+            thread.start();
+            return broadcaster;
+        }
+    }
+}
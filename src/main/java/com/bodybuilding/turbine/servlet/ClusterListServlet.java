@@ -17,9 +17,17 @@
 package com.bodybuilding.turbine.servlet;
 
 import com.bodybuilding.turbine.discovery.ClusterListUtil;
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.bodybuilding.turbine.discovery.ClusterNameIndex;
+import com.bodybuilding.turbine.discovery.ShardedInstanceDiscovery;
+import com.bodybuilding.turbine.discovery.ShardedInstanceDiscovery.ClusterAssignment;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.Hashing;
 import com.netflix.config.DynamicPropertyFactory;
 import com.netflix.config.DynamicStringProperty;
 import com.netflix.turbine.data.TurbineData;
@@ -34,23 +42,49 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.SortedSet;
+import java.util.zip.GZIPOutputStream;
 
 /**
- * Returns the list of currently tracked cluster names as a json list
+ * Returns the list of currently tracked cluster names as a json list. When clusters are sharded with
+ * {@link ShardedInstanceDiscovery} the clusters of all nodes are listed along with the node that owns them, and the
+ * stream URLs of clusters owned by another node point at that node. The peer URL is the request URL with the host
+ * replaced by the node id, unless ShardedInstanceDiscovery.peerUrl is set to a template such as http://{peer}:8080.
+ * The rendered response is cached per turbine and dashboard URL until the set of clusters changes, and is served with
+ * a strong ETag (answering If-None-Match with 304) and gzip compressed when the client accepts it.
+ * A subset can be requested with the prefix, offset and limit parameters; such pages are streamed from the sorted
+ * cluster index without caching, with the number of matching clusters in the X-Total-Count header.
  */
 public class ClusterListServlet extends HttpServlet {
     private static final Logger log = LoggerFactory.getLogger(ClusterListServlet.class);
-    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String PREFIX_PARAM = "prefix";
+    private static final String OFFSET_PARAM = "offset";
+    private static final String LIMIT_PARAM = "limit";
     private static final DynamicStringProperty DASHBOARD_URL = DynamicPropertyFactory.getInstance()
             .getStringProperty("hystrix.dashboard.url", null);
+    private static final DynamicStringProperty PEER_URL = DynamicPropertyFactory.getInstance()
+            .getStringProperty("ShardedInstanceDiscovery.peerUrl", null);
+    private static final String PEER_PLACEHOLDER = "{peer}";
+    private static final Splitter HEADER_SPLITTER = Splitter.on(",").trimResults().omitEmptyStrings();
+    // entries differ only by the host name/port clients use, past this the least recently used ones are evicted
+    private static final int MAX_CACHED_RESPONSES = 64;
+
+    private final Cache<String, RenderedClusterList> responseCache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_RESPONSES).build();
+    private volatile String turbineMapping;
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
@@ -60,44 +94,291 @@ public class ClusterListServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         try {
-            response.setHeader("Cache-Control", "no-cache, no-store, max-age=0, must-revalidate");
+            response.setHeader("Cache-Control", "no-cache, max-age=0, must-revalidate");
             response.setHeader("Pragma", "no-cache");
 
-            String servletPathRegex = Pattern.quote(request.getServletPath());
-            Set<String> clusterNames = ClusterListUtil.getClusterNames();
-            Optional<String> dashboardUrl = getDashboardUrl(getServletContext(), request);
-            String turbinePath = getTurbineMapping(getServletContext());
-            String turbineBaseUrl = request.getRequestURL().toString().replaceFirst(servletPathRegex, turbinePath + "?cluster=");
-            log.debug("Using turbine URL: {}", turbineBaseUrl);
-            log.debug("Using dashboard URL: {}", dashboardUrl);
-            ClusterMonitorFactory<?> clusterMonitorFactory = PluginsFactory.getClusterMonitorFactory();
-            List<ClusterInfo> clusters = clusterNames.stream()
-                    .filter(c -> {
-                        ClusterMonitor<? extends TurbineData> m = clusterMonitorFactory.getClusterMonitor(c);
-                        if(m == null) {
-                            log.debug("Cluster {} does not have a ClusterMonitor", c);
-                        }
-                        return m != null;
-                    })
-                    .map(c -> {
-                        String turbineUrl = turbineBaseUrl + encodeUrl(c);
-                        if (dashboardUrl.isPresent()) {
-                            String link = dashboardUrl.get() + encodeUrl(turbineBaseUrl + c) + "&title=" + encodeUrl(c);
-                            return new ClusterInfo(c, turbineUrl, link);
-                        } else {
-                            return new ClusterInfo(c, turbineUrl);
-                        }
-                    }).collect(Collectors.toList());
+            ClusterNameIndex.Snapshot snapshot = ClusterListUtil.getClusterSnapshot();
+            if (isPageRequest(request)) {
+                writePage(request, response, snapshot);
+                return;
+            }
+
+            RenderedClusterList rendered = getRenderedClusterList(request, snapshot);
+
+            response.setHeader("ETag", rendered.etag);
+            response.setHeader("Vary", "Accept-Encoding");
+            if (matchesEtag(request.getHeader("If-None-Match"), rendered.etag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            byte[] body = rendered.json;
+            if (acceptsGzip(request.getHeader("Accept-Encoding"))) {
+                response.setHeader("Content-Encoding", "gzip");
+                body = rendered.gzippedJson;
+            }
 
             response.setHeader("Content-Type", "application/json;charset=UTF-8");
-            OBJECT_MAPPER.writeValue(response.getOutputStream(), clusters);
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
             response.getOutputStream().flush();
         } catch (Exception e) {
             log.error("Error returning list of clusters", e);
         }
     }
 
-    private String encodeUrl(String url) {
+    /**
+     * Returns the cached response for the URLs this request renders, rendering it again if the clusters or the
+     * cluster assignment changed since it was cached
+     */
+    private RenderedClusterList getRenderedClusterList(HttpServletRequest request, ClusterNameIndex.Snapshot clusters) throws IOException {
+        String turbineBaseUrl = getTurbineBaseUrl(request);
+        Optional<String> dashboardUrl = getDashboardUrl(getServletContext(), request);
+        Optional<ClusterAssignment> assignment = ShardedInstanceDiscovery.getClusterAssignment();
+        // keyed by the rendered URLs, so requests that differ only in path or parameters share an entry
+        String key = turbineBaseUrl + '\n' + dashboardUrl.orElse("");
+        RenderedClusterList rendered = responseCache.getIfPresent(key);
+        if (rendered != null && rendered.clusterSetVersion == clusters.getVersion()
+                && rendered.assignment == assignment.orElse(null)) {
+            return rendered;
+        }
+
+        log.debug("Using turbine URL: {}", turbineBaseUrl);
+        log.debug("Using dashboard URL: {}", dashboardUrl);
+
+        byte[] json = renderClusterList(getClusterNames(clusters, assignment), turbineBaseUrl, dashboardUrl,
+                PluginsFactory.getClusterMonitorFactory(), assignment);
+        rendered = new RenderedClusterList(clusters.getVersion(), assignment.orElse(null), json);
+        responseCache.put(key, rendered);
+        return rendered;
+    }
+
+    /**
+     * Serializes the cluster list as json
+     * @param clusterNames names of the clusters to list
+     * @param turbineBaseUrl turbine stream URL that the cluster name is appended to
+     * @param dashboardUrl Hystrix Dashboard URL, if links to the dashboard should be included
+     * @param clusterMonitorFactory factory used to skip clusters without a ClusterMonitor
+     * @return UTF-8 json bytes
+     */
+    static byte[] renderClusterList(Collection<String> clusterNames, String turbineBaseUrl, Optional<String> dashboardUrl,
+                                    ClusterMonitorFactory<?> clusterMonitorFactory) throws IOException {
+        return renderClusterList(clusterNames, turbineBaseUrl, dashboardUrl, clusterMonitorFactory, Optional.empty());
+    }
+
+    /**
+     * Serializes the cluster list as json, including the owner of each cluster
+     * @param clusterNames names of the clusters to list
+     * @param turbineBaseUrl turbine stream URL of this node that the cluster name is appended to
+     * @param dashboardUrl Hystrix Dashboard URL, if links to the dashboard should be included
+     * @param clusterMonitorFactory factory used to skip clusters without a ClusterMonitor
+     * @param assignment assignment of clusters to nodes, if clusters are sharded
+     * @return UTF-8 json bytes
+     */
+    static byte[] renderClusterList(Collection<String> clusterNames, String turbineBaseUrl, Optional<String> dashboardUrl,
+                                    ClusterMonitorFactory<?> clusterMonitorFactory,
+                                    Optional<ClusterAssignment> assignment) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(clusterNames.size() * 128 + 2);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            writeClusterList(generator, clusterNames, turbineBaseUrl, dashboardUrl, clusterMonitorFactory, assignment);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the clusters to list: the clusters of all nodes when sharded, otherwise the ones tracked by this node
+     */
+    private static SortedSet<String> getClusterNames(ClusterNameIndex.Snapshot snapshot,
+                                                     Optional<ClusterAssignment> assignment) {
+        return assignment.map(ClusterAssignment::getClusterNames).orElse(snapshot.getClusterNames());
+    }
+
+    /**
+     * Writes the cluster list as a json array while iterating the cluster names, without building the list first
+     * @param generator generator to write to
+     * @param clusterNames names of the clusters to list
+     * @param turbineBaseUrl turbine stream URL of this node that the cluster name is appended to
+     * @param dashboardUrl Hystrix Dashboard URL, if links to the dashboard should be included
+     * @param clusterMonitorFactory factory used to skip clusters without a ClusterMonitor
+     * @param assignment assignment of clusters to nodes, if clusters are sharded
+     */
+    static void writeClusterList(JsonGenerator generator, Iterable<String> clusterNames, String turbineBaseUrl,
+                                 Optional<String> dashboardUrl, ClusterMonitorFactory<?> clusterMonitorFactory,
+                                 Optional<ClusterAssignment> assignment) throws IOException {
+        Map<String, String> ownerBaseUrls = new HashMap<>();
+        generator.writeStartArray();
+        for (String c : clusterNames) {
+            ClusterMonitor<? extends TurbineData> m = clusterMonitorFactory.getClusterMonitor(c);
+            if (m == null) {
+                log.debug("Cluster {} does not have a ClusterMonitor", c);
+                continue;
+            }
+
+            String owner = null;
+            String baseUrl = turbineBaseUrl;
+            if (assignment.isPresent()) {
+                ClusterAssignment a = assignment.get();
+                owner = a.getOwner(c);
+                if (!owner.equals(a.getSelf())) {
+                    baseUrl = ownerBaseUrls.computeIfAbsent(owner, o -> getPeerTurbineBaseUrl(turbineBaseUrl, o));
+                }
+            }
+
+            generator.writeStartObject();
+            generator.writeStringField("name", c);
+            if (dashboardUrl.isPresent()) {
+                generator.writeStringField("link",
+                        dashboardUrl.get() + encodeUrl(baseUrl + c) + "&title=" + encodeUrl(c));
+            }
+            generator.writeStringField("turbineStream", baseUrl + encodeUrl(c));
+            if (owner != null) {
+                generator.writeStringField("owner", owner);
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    private static boolean isPageRequest(HttpServletRequest request) {
+        return request.getParameter(PREFIX_PARAM) != null || request.getParameter(OFFSET_PARAM) != null
+                || request.getParameter(LIMIT_PARAM) != null;
+    }
+
+    /**
+     * Streams the clusters selected by the prefix, offset and limit parameters
+     */
+    private void writePage(HttpServletRequest request, HttpServletResponse response, ClusterNameIndex.Snapshot snapshot)
+            throws IOException {
+        int offset;
+        int limit;
+        try {
+            offset = parseNonNegative(request.getParameter(OFFSET_PARAM), 0);
+            limit = parseNonNegative(request.getParameter(LIMIT_PARAM), Integer.MAX_VALUE);
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "offset and limit must be non-negative integers");
+            return;
+        }
+
+        ClusterMonitorFactory<?> clusterMonitorFactory = PluginsFactory.getClusterMonitorFactory();
+        Optional<ClusterAssignment> assignment = ShardedInstanceDiscovery.getClusterAssignment();
+        // clusters without a ClusterMonitor are not listed, so they must not take up page slots or be counted
+        List<String> matching = selectMonitored(selectPrefix(getClusterNames(snapshot, assignment),
+                request.getParameter(PREFIX_PARAM)), clusterMonitorFactory);
+        Iterable<String> page = Iterables.limit(Iterables.skip(matching, offset), limit);
+        String turbineBaseUrl = getTurbineBaseUrl(request);
+        Optional<String> dashboardUrl = getDashboardUrl(getServletContext(), request);
+
+        response.setHeader("Content-Type", "application/json;charset=UTF-8");
+        response.setHeader("Vary", "Accept-Encoding");
+        response.setHeader("X-Total-Count", String.valueOf(matching.size()));
+        OutputStream out = response.getOutputStream();
+        if (acceptsGzip(request.getHeader("Accept-Encoding"))) {
+            response.setHeader("Content-Encoding", "gzip");
+            out = new GZIPOutputStream(out);
+        }
+        // closing the generator closes and finishes the gzip stream
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            writeClusterList(generator, page, turbineBaseUrl, dashboardUrl, clusterMonitorFactory, assignment);
+        }
+    }
+
+    /**
+     * Returns the clusters starting with a prefix as a view of the sorted cluster names
+     * @param clusterNames sorted cluster names
+     * @param prefix cluster name prefix, may be null or empty
+     * @return matching clusters, in order
+     */
+    static SortedSet<String> selectPrefix(SortedSet<String> clusterNames, String prefix) {
+        if (Strings.isNullOrEmpty(prefix)) {
+            return clusterNames;
+        }
+        // every name starting with the prefix sorts between the prefix and the prefix followed by the highest char
+        return clusterNames.subSet(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    /**
+     * Returns the clusters that have a ClusterMonitor, the ones {@link #writeClusterList} lists
+     * @param clusterNames cluster names
+     * @param clusterMonitorFactory factory used to skip clusters without a ClusterMonitor
+     * @return monitored clusters, in order
+     */
+    static List<String> selectMonitored(Iterable<String> clusterNames, ClusterMonitorFactory<?> clusterMonitorFactory) {
+        List<String> monitored = new ArrayList<>();
+        for (String c : clusterNames) {
+            if (clusterMonitorFactory.getClusterMonitor(c) != null) {
+                monitored.add(c);
+            }
+        }
+        return monitored;
+    }
+
+    private static int parseNonNegative(String value, int defaultValue) {
+        if (Strings.isNullOrEmpty(value)) {
+            return defaultValue;
+        }
+        int parsed = Integer.parseInt(value.trim());
+        if (parsed < 0) {
+            throw new NumberFormatException("negative value " + value);
+        }
+        return parsed;
+    }
+
+    /**
+     * Checks an If-None-Match header against the current ETag
+     * @param ifNoneMatch header value, may be null
+     * @param etag current ETag
+     * @return true if the client already has the current representation
+     */
+    static boolean matchesEtag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : HEADER_SPLITTER.split(ifNoneMatch)) {
+            // If-None-Match uses the weak comparison function
+            if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if an Accept-Encoding header allows a gzip response. An explicit gzip coding takes precedence over "*".
+     * @param acceptEncoding header value, may be null
+     * @return true if gzip is accepted
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Boolean wildcard = null;
+        for (String coding : HEADER_SPLITTER.split(acceptEncoding)) {
+            int paramStart = coding.indexOf(';');
+            String name = (paramStart < 0 ? coding : coding.substring(0, paramStart)).trim();
+            boolean accepted = paramStart < 0 || !isZeroQuality(coding.substring(paramStart + 1));
+            if (name.equalsIgnoreCase("gzip")) {
+                return accepted;
+            }
+            if (name.equals("*") && wildcard == null) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+
+    private static boolean isZeroQuality(String params) {
+        String q = params.replace(" ", "");
+        if (!q.startsWith("q=")) {
+            return false;
+        }
+        try {
+            return Double.parseDouble(q.substring(2)) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String encodeUrl(String url) {
         try {
             return URLEncoder.encode(url, "UTF-8");
         } catch (UnsupportedEncodingException e) {
@@ -105,12 +386,50 @@ public class ClusterListServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Replaces the first occurrence of the servlet path in the request URL
+     */
+    private static String replaceServletPath(String requestUrl, String servletPath, String replacement) {
+        int index = requestUrl.indexOf(servletPath);
+        if (index < 0) {
+            return requestUrl;
+        }
+        return requestUrl.substring(0, index) + replacement + requestUrl.substring(index + servletPath.length());
+    }
+
+    /**
+     * Returns the turbine stream URL of another node
+     * @param turbineBaseUrl turbine stream URL of this node
+     * @param peer node id, a host name or host:port unless ShardedInstanceDiscovery.peerUrl is set
+     * @return turbine stream URL of the peer that the cluster name is appended to
+     */
+    static String getPeerTurbineBaseUrl(String turbineBaseUrl, String peer) {
+        URI uri = URI.create(turbineBaseUrl);
+        String pathAndQuery = uri.getRawPath() + '?' + uri.getRawQuery();
+        String template = PEER_URL.get();
+        if (!Strings.isNullOrEmpty(template)) {
+            return template.replace(PEER_PLACEHOLDER, peer) + pathAndQuery;
+        }
+        // node ids default to host names, so the peer is expected on the same scheme and port
+        String authority = peer.indexOf(':') >= 0 || uri.getPort() < 0 ? peer : peer + ':' + uri.getPort();
+        return uri.getScheme() + "://" + authority + pathAndQuery;
+    }
+
+    private String getTurbineBaseUrl(HttpServletRequest request) {
+        return replaceServletPath(request.getRequestURL().toString(), request.getServletPath(),
+                getTurbineMapping(getServletContext()) + "?cluster=");
+    }
+
     /**
      * Returns the Turbine servlet mapping.
      * @param sc ServletContext
      * @return
      */
     private String getTurbineMapping(ServletContext sc) {
+        if (turbineMapping != null) {
+            return turbineMapping;
+        }
+
         Optional<String> mapping = ServletMappingUtil.findServletMapping(sc, "turbinestreamservlet").filter(s -> !s.isEmpty())
                 .map(s -> s.stream().findFirst().get());
 
@@ -118,7 +437,8 @@ public class ClusterListServlet extends HttpServlet {
             throw new RuntimeException("Could not find servlet registered with name turbinestreamservlet");
         }
 
-        return mapping.get();
+        turbineMapping = mapping.get();
+        return turbineMapping;
     }
 
     /**
@@ -141,31 +461,35 @@ public class ClusterListServlet extends HttpServlet {
             if(!dashboardUrl.startsWith("/")) {
                 dashboardUrl = "/" + dashboardUrl;
             }
-            dashboardUrl = request.getRequestURL().toString().replaceFirst(Pattern.quote(request.getServletPath()),
-                    dashboardUrl);
+            dashboardUrl = replaceServletPath(request.getRequestURL().toString(), request.getServletPath(), dashboardUrl);
         }
         return Optional.ofNullable(dashboardUrl);
     }
 
+    /**
+     * Serialized cluster list along with what it was rendered from
+     */
+    private static class RenderedClusterList {
+        private final long clusterSetVersion;
+        private final ClusterAssignment assignment;
+        private final byte[] json;
+        private final byte[] gzippedJson;
+        private final String etag;
 
-    @JsonInclude(JsonInclude.Include.NON_NULL)
-    private static class ClusterInfo {
-        @JsonProperty(required = true)
-        private String name;
-        @JsonProperty
-        private String link;
-        @JsonProperty
-        private String turbineStream;
-
-        public ClusterInfo(String name, String turbineStream) {
-            this.name = name;
-            this.turbineStream = turbineStream;
+        RenderedClusterList(long clusterSetVersion, ClusterAssignment assignment, byte[] json) throws IOException {
+            this.clusterSetVersion = clusterSetVersion;
+            this.assignment = assignment;
+            this.json = json;
+            this.gzippedJson = gzip(json);
+            this.etag = "\"" + Hashing.sha1().hashBytes(json) + "\"";
         }
 
-        public ClusterInfo(String name, String turbineStream, String link) {
-            this.name = name;
-            this.link = link;
-            this.turbineStream = turbineStream;
+        private static byte[] gzip(byte[] bytes) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(bytes);
+            }
+            return out.toByteArray();
         }
     }
 }
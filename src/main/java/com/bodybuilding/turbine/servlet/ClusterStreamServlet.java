@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.servlet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Server-Sent Events stream of cluster membership. A client receives a "clusters" event with the up host count of
+ * every cluster, followed by "delta" events with the added, removed and resized clusters as they change.
+ * The servlet must be mapped with async-supported enabled; connections are held by the container and written
+ * by one shared broadcaster, which drops clients that stop reading.
+ */
+public class ClusterStreamServlet extends HttpServlet {
+    private static final Logger log = LoggerFactory.getLogger(ClusterStreamServlet.class);
+
+    private volatile ClusterEventBroadcaster broadcaster;
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        broadcaster = ClusterEventBroadcaster.getInstance();
+    }
+
+    /**
+     * For unit tests
+     */
+    void setBroadcaster(ClusterEventBroadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (!request.isAsyncSupported()) {
+            log.error("ClusterStreamServlet has to be mapped with async-supported enabled");
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Async support is not enabled");
+            return;
+        }
+
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        // keeps proxies such as nginx from buffering the stream
+        response.setHeader("X-Accel-Buffering", "no");
+        response.flushBuffer();
+
+        AsyncContext context = request.startAsync();
+        context.setTimeout(0);
+        broadcaster.register(context);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.servlet;
+
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Returns the discovery metrics as json, or in the Prometheus text format when requested with ?format=prometheus
+ * or an Accept header of text/plain
+ */
+public class DiscoveryMetricsServlet extends HttpServlet {
+    private static final Logger log = LoggerFactory.getLogger(DiscoveryMetricsServlet.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        try {
+            response.setHeader("Cache-Control", "no-cache, no-store, max-age=0, must-revalidate");
+            DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+            if (wantsPrometheus(request)) {
+                response.setHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                Writer writer = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+                metrics.writePrometheus(writer);
+            } else {
+                response.setHeader("Content-Type", "application/json;charset=UTF-8");
+                OBJECT_MAPPER.writeValue(response.getOutputStream(), metrics.toMap());
+            }
+            response.getOutputStream().flush();
+        } catch (Exception e) {
+            log.error("Error returning discovery metrics", e);
+        }
+    }
+
+    private static boolean wantsPrometheus(HttpServletRequest request) {
+        String format = request.getParameter("format");
+        if (format != null) {
+            return format.equalsIgnoreCase("prometheus");
+        }
+        String accept = request.getHeader("Accept");
+        return accept != null && accept.contains("text/plain");
+    }
+}
@@ -19,25 +19,39 @@ package com.bodybuilding.turbine.discovery;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.autoscaling.AmazonAutoScalingClient;
+import com.amazonaws.services.autoscaling.model.Activity;
 import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.AutoScalingInstanceDetails;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingInstancesRequest;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingInstancesResult;
 import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
 import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsResult;
+import com.amazonaws.services.autoscaling.model.DescribeScalingActivitiesRequest;
+import com.amazonaws.services.autoscaling.model.DescribeScalingActivitiesResult;
+import com.amazonaws.services.autoscaling.model.DescribeTagsRequest;
+import com.amazonaws.services.autoscaling.model.DescribeTagsResult;
 import com.amazonaws.services.autoscaling.model.TagDescription;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.ec2.model.*;
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.io.Closer;
 import com.netflix.config.ConfigurationManager;
 import com.netflix.turbine.discovery.Instance;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static com.bodybuilding.turbine.discovery.AsgTagInstanceDiscovery.TAG_PROPERTY_NAME;
@@ -52,22 +66,35 @@ public class AsgTagInstanceDiscoveryTest {
     @Mock
     private AmazonAutoScalingClient asgClient;
 
+    private final Closer closer = Closer.create();
+
     @Before
     public void setup() {
         ConfigurationManager.getConfigInstance().addProperty(TAG_PROPERTY_NAME, TAG_KEY);
     }
 
+    @After
+    public void teardown() throws IOException {
+        closer.close();
+        ConfigurationManager.getConfigInstance().clearProperty("asgdiscovery.describeInstances.batchSize");
+        ConfigurationManager.getConfigInstance().clearProperty("asgdiscovery.describeTags.enabled");
+        ConfigurationManager.getConfigInstance().clearProperty("asgdiscovery.excludedLifecycleStates");
+        ConfigurationManager.getConfigInstance().clearProperty("asgdiscovery.excludeUnhealthy");
+        ConfigurationManager.getConfigInstance().clearProperty("asgdiscovery.incremental.enabled");
+        ConfigurationManager.getConfigInstance().clearProperty("asgdiscovery.fullScanIntervalMs");
+    }
+
     @Test(expected = IllegalStateException.class)
     public void requiresTagProperty() {
         ConfigurationManager.getConfigInstance().addProperty(TAG_PROPERTY_NAME, "");
-        new AsgTagInstanceDiscovery();
+        closer.register(new AsgTagInstanceDiscovery());
     }
 
     @Test
     public void getInstances_emptyList() throws Exception {
         when(asgClient.describeAutoScalingGroups(anyObject())).thenReturn(new DescribeAutoScalingGroupsResult());
 
-        AsgTagInstanceDiscovery discovery = new AsgTagInstanceDiscovery(asgClient, ec2Client);
+        AsgTagInstanceDiscovery discovery = closer.register(new AsgTagInstanceDiscovery(asgClient, ec2Client));
         Collection<Instance> instanceList = discovery.getInstanceList();
         assertNotNull(instanceList);
         assertTrue(instanceList.isEmpty());
@@ -109,7 +136,7 @@ public class AsgTagInstanceDiscoveryTest {
             return new DescribeInstancesResult().withReservations(new Reservation().withInstances(ec2Instances));
         });
 
-        Collection<Instance> instanceList = new AsgTagInstanceDiscovery(asgClient, ec2Client).getInstanceList();
+        Collection<Instance> instanceList = closer.register(new AsgTagInstanceDiscovery(asgClient, ec2Client)).getInstanceList();
         assertNotNull(instanceList);
         assertEquals(4, instanceList.size());
         Set<String> validClusters = Sets.newHashSet("Cluster1", "Cluster2");
@@ -121,13 +148,243 @@ public class AsgTagInstanceDiscoveryTest {
     @Test
     public void testGetInstances_awsException() throws Exception {
         when(asgClient.describeAutoScalingGroups(any(DescribeAutoScalingGroupsRequest.class))).thenThrow(new AmazonClientException("Unit Test Intentional Exception"));
-        Collection<Instance> instanceList = new AsgTagInstanceDiscovery(asgClient, ec2Client).getInstanceList();
+        Collection<Instance> instanceList = closer.register(new AsgTagInstanceDiscovery(asgClient, ec2Client)).getInstanceList();
         assertNotNull(instanceList);
         assertTrue(instanceList.isEmpty());
     }
 
 
 
+    @Test
+    public void getInstances_batchesAcrossGroups() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("asgdiscovery.describeInstances.batchSize", 2);
+        AutoScalingGroup group1 = new AutoScalingGroup()
+                .withTags(new TagDescription().withKey(TAG_KEY).withValue("Cluster1"))
+                .withInstances(createMockInstance("id1"), createMockInstance("id2"), createMockInstance("id3"));
+
+        AutoScalingGroup group2 = new AutoScalingGroup()
+                .withTags(new TagDescription().withKey(TAG_KEY).withValue("Cluster2"))
+                .withInstances(createMockInstance("id4"), createMockInstance("id5"));
+
+        when(asgClient.describeAutoScalingGroups(anyObject())).thenReturn(new DescribeAutoScalingGroupsResult()
+                .withAutoScalingGroups(group1, group2));
+
+        AtomicInteger requests = new AtomicInteger();
+        when(ec2Client.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(m -> {
+            DescribeInstancesRequest req = m.getArgumentAt(0, DescribeInstancesRequest.class);
+            requests.incrementAndGet();
+            assertTrue(req.getInstanceIds().size() <= 2);
+            return createResult(req.getInstanceIds());
+        });
+
+        Collection<Instance> instanceList = closer.register(new AsgTagInstanceDiscovery(asgClient, ec2Client)).getInstanceList();
+        assertEquals(5, instanceList.size());
+        assertEquals(3, requests.get());
+        assertEquals(3, instanceList.stream().filter(i -> i.getCluster().equals("Cluster1")).count());
+        assertEquals(2, instanceList.stream().filter(i -> i.getCluster().equals("Cluster2")).count());
+    }
+
+    @Test
+    public void getInstances_followsDescribeInstancesPages() throws Exception {
+        AutoScalingGroup group = new AutoScalingGroup()
+                .withTags(new TagDescription().withKey(TAG_KEY).withValue("Cluster1"))
+                .withInstances(createMockInstance("id1"), createMockInstance("id2"));
+
+        when(asgClient.describeAutoScalingGroups(anyObject())).thenReturn(new DescribeAutoScalingGroupsResult()
+                .withAutoScalingGroups(group));
+
+        when(ec2Client.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(m -> {
+            DescribeInstancesRequest req = m.getArgumentAt(0, DescribeInstancesRequest.class);
+            if (req.getNextToken() == null) {
+                return createResult(Lists.newArrayList("id1")).withNextToken("page2");
+            }
+            return createResult(Lists.newArrayList("id2"));
+        });
+
+        Collection<Instance> instanceList = closer.register(new AsgTagInstanceDiscovery(asgClient, ec2Client)).getInstanceList();
+        assertEquals(2, instanceList.size());
+        verify(ec2Client, times(2)).describeInstances(any(DescribeInstancesRequest.class));
+    }
+
+    @Test
+    public void getInstances_emptyGroupsSkipDescribeInstances() throws Exception {
+        AutoScalingGroup group = new AutoScalingGroup()
+                .withTags(new TagDescription().withKey(TAG_KEY).withValue("Cluster1"));
+
+        when(asgClient.describeAutoScalingGroups(anyObject())).thenReturn(new DescribeAutoScalingGroupsResult()
+                .withAutoScalingGroups(group));
+
+        Collection<Instance> instanceList = closer.register(new AsgTagInstanceDiscovery(asgClient, ec2Client)).getInstanceList();
+        assertTrue(instanceList.isEmpty());
+        verify(ec2Client, never()).describeInstances(any(DescribeInstancesRequest.class));
+    }
+
+    @Test
+    public void getInstances_describeTags() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("asgdiscovery.describeTags.enabled", true);
+        when(asgClient.describeTags(any(DescribeTagsRequest.class))).thenAnswer(m -> {
+            DescribeTagsRequest req = m.getArgumentAt(0, DescribeTagsRequest.class);
+            assertEquals("key", req.getFilters().get(0).getName());
+            assertEquals(Lists.newArrayList(TAG_KEY), req.getFilters().get(0).getValues());
+            if (req.getNextToken() == null) {
+                return new DescribeTagsResult().withNextToken("page2").withTags(new TagDescription()
+                        .withResourceId("group1").withResourceType("auto-scaling-group").withKey(TAG_KEY).withValue("Cluster1"));
+            }
+            return new DescribeTagsResult().withTags(new TagDescription()
+                    .withResourceId("group2").withResourceType("auto-scaling-group").withKey(TAG_KEY).withValue("Cluster2"));
+        });
+
+        when(asgClient.describeAutoScalingGroups(any(DescribeAutoScalingGroupsRequest.class))).thenAnswer(m -> {
+            DescribeAutoScalingGroupsRequest req = m.getArgumentAt(0, DescribeAutoScalingGroupsRequest.class);
+            assertEquals(Lists.newArrayList("group1", "group2"), req.getAutoScalingGroupNames());
+            return new DescribeAutoScalingGroupsResult().withAutoScalingGroups(
+                    new AutoScalingGroup().withAutoScalingGroupName("group1")
+                            .withTags(new TagDescription().withKey(TAG_KEY).withValue("Cluster1"))
+                            .withInstances(createMockInstance("id1")),
+                    new AutoScalingGroup().withAutoScalingGroupName("group2")
+                            .withTags(new TagDescription().withKey(TAG_KEY).withValue("Cluster2"))
+                            .withInstances(createMockInstance("id2")));
+        });
+
+        when(ec2Client.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(m ->
+                createResult(m.getArgumentAt(0, DescribeInstancesRequest.class).getInstanceIds()));
+
+        Collection<Instance> instanceList = closer.register(new AsgTagInstanceDiscovery(asgClient, ec2Client)).getInstanceList();
+        assertEquals(2, instanceList.size());
+        assertEquals(Sets.newHashSet("Cluster1", "Cluster2"),
+                instanceList.stream().map(Instance::getCluster).collect(Collectors.toSet()));
+        verify(asgClient, times(1)).describeAutoScalingGroups(any(DescribeAutoScalingGroupsRequest.class));
+    }
+
+    @Test
+    public void resolveInstances() throws Exception {
+        when(asgClient.describeAutoScalingInstances(any(DescribeAutoScalingInstancesRequest.class))).thenReturn(
+                new DescribeAutoScalingInstancesResult().withAutoScalingInstances(
+                        new AutoScalingInstanceDetails().withInstanceId("id1").withAutoScalingGroupName("group1")));
+        when(asgClient.describeAutoScalingGroups(any(DescribeAutoScalingGroupsRequest.class))).thenAnswer(m -> {
+            DescribeAutoScalingGroupsRequest req = m.getArgumentAt(0, DescribeAutoScalingGroupsRequest.class);
+            assertEquals(Lists.newArrayList("group1"), req.getAutoScalingGroupNames());
+            return new DescribeAutoScalingGroupsResult().withAutoScalingGroups(
+                    new AutoScalingGroup().withAutoScalingGroupName("group1")
+                            .withTags(new TagDescription().withKey(TAG_KEY).withValue("Cluster1"))
+                            .withInstances(createMockInstance("id1"), createMockInstance("id3")));
+        });
+        when(ec2Client.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(m -> {
+            DescribeInstancesRequest req = m.getArgumentAt(0, DescribeInstancesRequest.class);
+            // only the requested instance of the group is described
+            assertEquals(Lists.newArrayList("id1"), req.getInstanceIds());
+            return createResult(req.getInstanceIds());
+        });
+
+        Collection<Instance> instances = closer.register(new AsgTagInstanceDiscovery(asgClient, ec2Client))
+                .resolveInstances(Lists.newArrayList("id1", "id2"));
+        assertEquals(1, instances.size());
+        Instance instance = instances.iterator().next();
+        assertEquals("Cluster1", instance.getCluster());
+        assertEquals("id1", instance.getAttributes().get(Ec2InstanceMapper.INSTANCE_ID_ATTRIBUTE));
+    }
+
+    @Test
+    public void getInstances_skipsInstancesNotInService() throws Exception {
+        AutoScalingGroup group = new AutoScalingGroup()
+                .withTags(new TagDescription().withKey(TAG_KEY).withValue("Cluster1"))
+                .withInstances(createMockInstance("id1").withLifecycleState("InService").withHealthStatus("Healthy"),
+                        createMockInstance("id2").withLifecycleState("Terminating:Wait").withHealthStatus("Healthy"),
+                        createMockInstance("id3").withLifecycleState("Pending"),
+                        createMockInstance("id4").withLifecycleState("InService").withHealthStatus("Unhealthy"),
+                        createMockInstance("id5"));
+        when(asgClient.describeAutoScalingGroups(anyObject())).thenReturn(new DescribeAutoScalingGroupsResult()
+                .withAutoScalingGroups(group));
+        when(ec2Client.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(m -> {
+            DescribeInstancesRequest req = m.getArgumentAt(0, DescribeInstancesRequest.class);
+            assertEquals(Sets.newHashSet("id1", "id5"), Sets.newHashSet(req.getInstanceIds()));
+            return createResult(req.getInstanceIds());
+        });
+
+        DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+        long skippedBefore = metrics.getCounter("discovery_instances_skipped_total",
+                DiscoveryMetrics.labels("source", "asg", "reason", "Terminating:Wait"));
+        Collection<Instance> instanceList = closer.register(new AsgTagInstanceDiscovery(asgClient, ec2Client)).getInstanceList();
+        assertEquals(2, instanceList.size());
+        assertEquals(skippedBefore + 1, metrics.getCounter("discovery_instances_skipped_total",
+                DiscoveryMetrics.labels("source", "asg", "reason", "Terminating:Wait")));
+    }
+
+    @Test
+    public void getInstances_excludedStatesConfigurable() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("asgdiscovery.excludedLifecycleStates", "Standby");
+        ConfigurationManager.getConfigInstance().setProperty("asgdiscovery.excludeUnhealthy", false);
+        AutoScalingGroup group = new AutoScalingGroup()
+                .withTags(new TagDescription().withKey(TAG_KEY).withValue("Cluster1"))
+                .withInstances(createMockInstance("id1").withLifecycleState("Pending"),
+                        createMockInstance("id2").withLifecycleState("Standby"),
+                        createMockInstance("id3").withLifecycleState("InService").withHealthStatus("Unhealthy"));
+        when(asgClient.describeAutoScalingGroups(anyObject())).thenReturn(new DescribeAutoScalingGroupsResult()
+                .withAutoScalingGroups(group));
+        when(ec2Client.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(m ->
+                createResult(m.getArgumentAt(0, DescribeInstancesRequest.class).getInstanceIds()));
+
+        Collection<Instance> instanceList = closer.register(new AsgTagInstanceDiscovery(asgClient, ec2Client)).getInstanceList();
+        assertEquals(2, instanceList.size());
+    }
+
+    @Test
+    public void getInstances_incremental() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("asgdiscovery.incremental.enabled", true);
+        AutoScalingGroup group1 = new AutoScalingGroup().withAutoScalingGroupName("asg1")
+                .withTags(new TagDescription().withKey(TAG_KEY).withValue("Cluster1"))
+                .withInstances(createMockInstance("id1"), createMockInstance("id2"));
+        AutoScalingGroup group2 = new AutoScalingGroup().withAutoScalingGroupName("asg2")
+                .withTags(new TagDescription().withKey(TAG_KEY).withValue("Cluster2"))
+                .withInstances(createMockInstance("id3"));
+        AutoScalingGroup scaledGroup1 = new AutoScalingGroup().withAutoScalingGroupName("asg1")
+                .withTags(new TagDescription().withKey(TAG_KEY).withValue("Cluster1"))
+                .withInstances(createMockInstance("id2"), createMockInstance("id4"));
+        when(asgClient.describeAutoScalingGroups(any(DescribeAutoScalingGroupsRequest.class))).thenAnswer(m ->
+                m.getArgumentAt(0, DescribeAutoScalingGroupsRequest.class).getAutoScalingGroupNames().isEmpty()
+                        ? new DescribeAutoScalingGroupsResult().withAutoScalingGroups(group1, group2)
+                        : new DescribeAutoScalingGroupsResult().withAutoScalingGroups(scaledGroup1));
+        List<Collection<String>> describedIds = Lists.newArrayList();
+        when(ec2Client.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(m -> {
+            List<String> ids = m.getArgumentAt(0, DescribeInstancesRequest.class).getInstanceIds();
+            describedIds.add(Sets.newHashSet(ids));
+            return createResult(ids);
+        });
+        when(asgClient.describeScalingActivities(any(DescribeScalingActivitiesRequest.class)))
+                .thenReturn(new DescribeScalingActivitiesResult().withActivities(new Activity()
+                        .withAutoScalingGroupName("asg1").withStartTime(new Date()).withEndTime(new Date())))
+                .thenReturn(new DescribeScalingActivitiesResult());
+
+        AsgTagInstanceDiscovery discovery = closer.register(new AsgTagInstanceDiscovery(asgClient, ec2Client));
+        assertEquals(3, discovery.getInstanceList().size());
+
+        // only the group with activity is described, and only its new instance
+        Collection<Instance> instanceList = discovery.getInstanceList();
+        assertEquals(Sets.newHashSet("id2", "id3", "id4"), instanceList.stream()
+                .map(i -> i.getAttributes().get(Ec2InstanceMapper.INSTANCE_ID_ATTRIBUTE)).collect(Collectors.toSet()));
+        assertEquals(Sets.newHashSet("id4"), describedIds.get(describedIds.size() - 1));
+
+        // no activity, nothing is described
+        assertEquals(3, discovery.getInstanceList().size());
+        verify(asgClient, times(2)).describeAutoScalingGroups(any(DescribeAutoScalingGroupsRequest.class));
+        assertEquals(2, describedIds.size());
+
+        // a full scan is due again
+        ConfigurationManager.getConfigInstance().setProperty("asgdiscovery.fullScanIntervalMs", 0);
+        assertEquals(3, discovery.getInstanceList().size());
+        verify(asgClient, times(3)).describeAutoScalingGroups(any(DescribeAutoScalingGroupsRequest.class));
+    }
+
+    private static DescribeInstancesResult createResult(Collection<String> instanceIds) {
+        List<com.amazonaws.services.ec2.model.Instance> ec2Instances = instanceIds.stream()
+                .map(id -> new com.amazonaws.services.ec2.model.Instance()
+                        .withInstanceId(id)
+                        .withState(new InstanceState().withName("running"))
+                        .withPublicDnsName("www.public.com"))
+                .collect(Collectors.toList());
+        return new DescribeInstancesResult().withReservations(new Reservation().withInstances(ec2Instances));
+    }
+
     private static com.amazonaws.services.autoscaling.model.Instance createMockInstance(String id) {
         return new com.amazonaws.services.autoscaling.model.Instance().withInstanceId(id);
     }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryPolicy;
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
+import com.netflix.config.ConfigurationManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AwsRateLimiterTest {
+    private final DiscoveryMetrics metrics = DiscoveryMetrics.getInstance();
+    private final AwsRateLimiter limiter = new AwsRateLimiter(metrics);
+
+    @Before
+    public void setup() {
+        ConfigurationManager.getConfigInstance().setProperty("discovery.aws.throttleBackoffMs", 1);
+    }
+
+    @After
+    public void teardown() {
+        ConfigurationManager.getConfigInstance().clearProperty("discovery.aws.throttleBackoffMs");
+        ConfigurationManager.getConfigInstance().clearProperty("discovery.aws.throttleRetries");
+    }
+
+    @Test
+    public void testRetriesThrottledRequest() {
+        AtomicInteger calls = new AtomicInteger();
+        String result = limiter.execute("test", "ec2", "RetryTest", () -> {
+            if (calls.incrementAndGet() == 1) {
+                throw throttlingException();
+            }
+            return "result";
+        });
+
+        assertEquals("result", result);
+        assertEquals(2, calls.get());
+        assertEquals(1, metrics.getCounter("discovery_aws_retries_total",
+                DiscoveryMetrics.labels("source", "test", "operation", "RetryTest")));
+    }
+
+    @Test
+    public void testThrottleReducesRate() {
+        double initialRate = limiter.getRate("ec2", "RateTest");
+        AtomicInteger calls = new AtomicInteger();
+        limiter.execute("test", "ec2", "RateTest", () -> {
+            if (calls.incrementAndGet() == 1) {
+                throw throttlingException();
+            }
+            return "ok";
+        });
+        double reducedRate = limiter.getRate("ec2", "RateTest");
+        assertTrue(reducedRate < initialRate);
+
+        limiter.execute("test", "ec2", "RateTest", () -> "ok");
+        assertTrue(limiter.getRate("ec2", "RateTest") > reducedRate);
+    }
+
+    @Test(expected = AmazonServiceException.class)
+    public void testGivesUpAfterMaxRetries() {
+        ConfigurationManager.getConfigInstance().setProperty("discovery.aws.throttleRetries", 2);
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            limiter.execute("test", "ec2", "GiveUpTest", () -> {
+                calls.incrementAndGet();
+                throw throttlingException();
+            });
+        } finally {
+            assertEquals(3, calls.get());
+        }
+    }
+
+    @Test
+    public void testDoesNotRetryOtherErrors() {
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            limiter.execute("test", "ec2", "ErrorTest", () -> {
+                calls.incrementAndGet();
+                throw new AmazonClientException("Unit Test Intentional Exception");
+            });
+            fail("expected exception");
+        } catch (AmazonClientException e) {
+            assertEquals(1, calls.get());
+        }
+    }
+
+    @Test
+    public void testClientConfigurationLeavesThrottlingToLimiter() {
+        RetryPolicy.RetryCondition retryCondition = AwsRateLimiter.clientConfiguration().getRetryPolicy()
+                .getRetryCondition();
+        AmazonServiceException unavailable = new AmazonServiceException("Unit Test Intentional Exception");
+        unavailable.setStatusCode(503);
+
+        assertFalse(retryCondition.shouldRetry(null, throttlingException(), 0));
+        assertTrue(retryCondition.shouldRetry(null, unavailable, 0));
+    }
+
+    private static AmazonServiceException throttlingException() {
+        AmazonServiceException e = new AmazonServiceException("Rate exceeded");
+        e.setErrorCode("RequestLimitExceeded");
+        e.setStatusCode(503);
+        return e;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Closer;
+import com.netflix.config.ConfigurationManager;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.turbine.discovery.Instance;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CachingInstanceDiscoveryTest {
+    private static final DynamicLongProperty TTL = DynamicPropertyFactory.getInstance()
+            .getLongProperty("CachingInstanceDiscoveryTest.ttlMs", 60000);
+    private static final DynamicLongProperty MAX_STALE = DynamicPropertyFactory.getInstance()
+            .getLongProperty("CachingInstanceDiscoveryTest.maxStaleMs", 60000);
+    private static final DynamicLongProperty SNAPSHOT_MAX_AGE = DynamicPropertyFactory.getInstance()
+            .getLongProperty("CachingInstanceDiscoveryTest.snapshotMaxAgeMs", 60000);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    FallibleInstanceDiscovery delegate;
+
+    private final Closer closer = Closer.create();
+
+    @After
+    public void teardown() throws IOException {
+        closer.close();
+        ConfigurationManager.getConfigInstance().clearProperty("CachingInstanceDiscoveryTest.ttlMs");
+        ConfigurationManager.getConfigInstance().clearProperty("CachingInstanceDiscoveryTest.maxStaleMs");
+        ConfigurationManager.getConfigInstance().clearProperty("CachingInstanceDiscoveryTest.snapshotMaxAgeMs");
+    }
+
+    @Test
+    public void servesSnapshotBetweenRefreshes() throws Exception {
+        when(delegate.fetchInstanceList()).thenReturn(Lists.newArrayList(new Instance("host1", "cluster1", true)));
+        CachingInstanceDiscovery discovery = closer.register(new CachingInstanceDiscovery(delegate, TTL, MAX_STALE));
+
+        assertEquals(1, discovery.getInstanceList().size());
+        assertEquals(1, discovery.getInstanceList().size());
+        verify(delegate, times(1)).fetchInstanceList();
+    }
+
+    @Test
+    public void refreshesInBackground() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("CachingInstanceDiscoveryTest.ttlMs", 20);
+        when(delegate.fetchInstanceList())
+                .thenReturn(Lists.newArrayList(new Instance("host1", "cluster1", true)))
+                .thenReturn(Lists.newArrayList(new Instance("host1", "cluster1", true), new Instance("host2", "cluster1", true)));
+        CachingInstanceDiscovery discovery = closer.register(new CachingInstanceDiscovery(delegate, TTL, MAX_STALE));
+
+        assertEquals(1, discovery.getInstanceList().size());
+        verify(delegate, timeout(5000).atLeast(2)).fetchInstanceList();
+        Thread.sleep(50);
+        assertEquals(2, discovery.getInstanceList().size());
+    }
+
+    @Test
+    public void keepsLastKnownGoodOnFailure() throws Exception {
+        when(delegate.fetchInstanceList())
+                .thenReturn(Lists.newArrayList(new Instance("host1", "cluster1", true)))
+                .thenThrow(new RuntimeException("Unit Test Intentional Exception"));
+        CachingInstanceDiscovery discovery = closer.register(new CachingInstanceDiscovery(delegate, TTL, MAX_STALE));
+
+        assertEquals(1, discovery.getInstanceList().size());
+        discovery.refresh();
+        assertEquals(1, discovery.getInstanceList().size());
+        verify(delegate, times(2)).fetchInstanceList();
+    }
+
+    @Test
+    public void fetchThrowsWhileRefreshFails() throws Exception {
+        when(delegate.fetchInstanceList())
+                .thenReturn(Lists.newArrayList(new Instance("host1", "cluster1", true)))
+                .thenThrow(new RuntimeException("Unit Test Intentional Exception"))
+                .thenReturn(Lists.newArrayList(new Instance("host2", "cluster1", true)));
+        CachingInstanceDiscovery discovery = closer.register(new CachingInstanceDiscovery(delegate, TTL, MAX_STALE));
+
+        assertEquals("host1", discovery.fetchInstanceList().iterator().next().getHostname());
+        discovery.refresh();
+        try {
+            discovery.fetchInstanceList();
+            fail("Expected the failed refresh to be reported");
+        } catch (IllegalStateException e) {
+            assertEquals("Unit Test Intentional Exception", e.getCause().getMessage());
+        }
+        // the last known-good snapshot is still served to plain callers
+        assertEquals("host1", discovery.getInstanceList().iterator().next().getHostname());
+
+        discovery.refresh();
+        assertEquals("host2", discovery.fetchInstanceList().iterator().next().getHostname());
+    }
+
+    @Test
+    public void stopsServingPastMaxStaleness() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("CachingInstanceDiscoveryTest.maxStaleMs", 20);
+        when(delegate.fetchInstanceList()).thenReturn(Lists.newArrayList(new Instance("host1", "cluster1", true)));
+        CachingInstanceDiscovery discovery = closer.register(new CachingInstanceDiscovery(delegate, TTL, MAX_STALE));
+
+        assertEquals(1, discovery.getInstanceList().size());
+        Thread.sleep(50);
+        Collection<Instance> instanceList = discovery.getInstanceList();
+        assertTrue(instanceList.isEmpty());
+    }
+
+    @Test
+    public void servesSnapshotFileWhileFirstLoadRuns() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("instances.json.gz");
+        when(delegate.fetchInstanceList()).thenReturn(Lists.newArrayList(new Instance("host1", "cluster1", true)));
+        closer.register(new CachingInstanceDiscovery(delegate, TTL, MAX_STALE, Optional.of(file), SNAPSHOT_MAX_AGE)).getInstanceList();
+        assertTrue(file.toFile().exists());
+
+        CountDownLatch loading = new CountDownLatch(1);
+        FallibleInstanceDiscovery restarted = mock(FallibleInstanceDiscovery.class);
+        when(restarted.fetchInstanceList()).thenAnswer(i -> {
+            loading.await();
+            return Lists.newArrayList(new Instance("host2", "cluster1", true));
+        });
+        CachingInstanceDiscovery discovery = closer.register(new CachingInstanceDiscovery(restarted, TTL, MAX_STALE, Optional.of(file),
+                SNAPSHOT_MAX_AGE));
+
+        assertEquals("host1", discovery.getInstanceList().iterator().next().getHostname());
+        loading.countDown();
+        verify(restarted, timeout(5000)).fetchInstanceList();
+        Thread.sleep(50);
+        assertEquals("host2", discovery.getInstanceList().iterator().next().getHostname());
+    }
+
+    @Test
+    public void ignoresSnapshotFilePastMaxAge() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("instances.json.gz");
+        new InstanceSnapshotFile(file).write(Lists.newArrayList(new Instance("host1", "cluster1", true)),
+                System.currentTimeMillis() - 120000);
+        when(delegate.fetchInstanceList()).thenReturn(Lists.newArrayList(new Instance("host2", "cluster1", true)));
+        CachingInstanceDiscovery discovery = closer.register(new CachingInstanceDiscovery(delegate, TTL, MAX_STALE, Optional.of(file),
+                SNAPSHOT_MAX_AGE));
+
+        Collection<Instance> instanceList = discovery.getInstanceList();
+        assertEquals(1, instanceList.size());
+        assertEquals("host2", instanceList.iterator().next().getHostname());
+        assertFalse(new InstanceSnapshotFile(file).read().get().getTimestamp() < System.currentTimeMillis() - 60000);
+    }
+
+    @Test
+    public void rewritesUnchangedSnapshotBeforeItExpires() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("CachingInstanceDiscoveryTest.snapshotMaxAgeMs", 200);
+        Path file = folder.getRoot().toPath().resolve("instances.json.gz");
+        when(delegate.fetchInstanceList()).thenReturn(Lists.newArrayList(new Instance("host1", "cluster1", true)));
+        CachingInstanceDiscovery discovery = closer.register(new CachingInstanceDiscovery(delegate, TTL, MAX_STALE, Optional.of(file),
+                SNAPSHOT_MAX_AGE));
+        discovery.getInstanceList();
+        long firstWrite = new InstanceSnapshotFile(file).read().get().getTimestamp();
+
+        Thread.sleep(150);
+        discovery.refresh();
+        assertTrue(new InstanceSnapshotFile(file).read().get().getTimestamp() > firstWrite);
+
+        // the first write is now past the max age, the unchanged list verified by the refresh is not
+        Thread.sleep(100);
+        CountDownLatch loading = new CountDownLatch(1);
+        FallibleInstanceDiscovery restarted = mock(FallibleInstanceDiscovery.class);
+        when(restarted.fetchInstanceList()).thenAnswer(i -> {
+            loading.await();
+            return Lists.newArrayList(new Instance("host1", "cluster1", true));
+        });
+        Collection<Instance> instanceList = closer.register(new CachingInstanceDiscovery(restarted, TTL, MAX_STALE, Optional.of(file),
+                SNAPSHOT_MAX_AGE)).getInstanceList();
+        loading.countDown();
+        assertEquals(1, instanceList.size());
+        assertEquals("host1", instanceList.iterator().next().getHostname());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void requiresDelegateProperty() {
+        closer.register(new CachingInstanceDiscovery());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.collect.Lists;
+import com.netflix.turbine.discovery.Instance;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ClusterNameIndexTest {
+
+    @Test
+    public void testHostsUp() {
+        ClusterNameIndex index = new ClusterNameIndex(c -> !c.equals("unmonitored"), Collections::emptySet);
+        assertTrue(index.getSnapshot().getClusterNames().isEmpty());
+
+        index.hostsUp(Lists.newArrayList(
+                new Instance("host1", "clusterB", true),
+                new Instance("host2", "clusterB", true),
+                new Instance("host3", "clusterA", true),
+                new Instance("host4", "unmonitored", true)));
+
+        ClusterNameIndex.Snapshot snapshot = index.getSnapshot();
+        assertEquals(Lists.newArrayList("clusterA", "clusterB"), Lists.newArrayList(snapshot.getClusterNames()));
+        assertEquals(2, snapshot.getHostCount("clusterB"));
+        assertEquals(1, snapshot.getHostCount("clusterA"));
+        assertEquals(0, snapshot.getHostCount("missing"));
+    }
+
+    @Test
+    public void testVersionOnlyChangesWithContent() {
+        ClusterNameIndex index = new ClusterNameIndex(c -> true, Collections::emptySet);
+        index.hostsUp(Lists.newArrayList(new Instance("host1", "clusterA", true)));
+        ClusterNameIndex.Snapshot first = index.getSnapshot();
+
+        index.hostsUp(Lists.newArrayList(new Instance("host1", "clusterA", true)));
+        assertSame(first, index.getSnapshot());
+
+        index.hostsUp(Lists.newArrayList(new Instance("host1", "clusterA", true), new Instance("host2", "clusterA", true)));
+        ClusterNameIndex.Snapshot second = index.getSnapshot();
+        assertNotEquals(first.getVersion(), second.getVersion());
+        assertEquals(first.getClusterNames(), second.getClusterNames());
+    }
+
+    @Test
+    public void testHostsDownRecountsUpHosts() {
+        List<Instance> up = Lists.newArrayList(
+                new Instance("host1", "clusterA", true),
+                new Instance("host2", "clusterB", true));
+        ClusterNameIndex index = new ClusterNameIndex(c -> true, () -> up);
+        index.hostsUp(up);
+        assertEquals(Lists.newArrayList("clusterA", "clusterB"), Lists.newArrayList(index.getSnapshot().getClusterNames()));
+
+        Instance down = up.remove(1);
+        index.hostsDown(Lists.newArrayList(new Instance(down.getHostname(), down.getCluster(), false)));
+        assertEquals(Lists.newArrayList("clusterA"), Lists.newArrayList(index.getSnapshot().getClusterNames()));
+
+        // InstanceObservable only calls hostsDown once the last host is gone
+        up.clear();
+        index.hostsDown(Lists.newArrayList(new Instance("host1", "clusterA", false)));
+        assertTrue(index.getSnapshot().getClusterNames().isEmpty());
+        assertEquals(0, index.getSnapshot().getHostCount("clusterA"));
+    }
+
+    @Test
+    public void testListenersOnlyNotifiedOfChanges() {
+        List<Instance> up = Lists.newArrayList(new Instance("host1", "clusterA", true));
+        ClusterNameIndex index = new ClusterNameIndex(c -> true, () -> up);
+        List<ClusterNameIndex.Snapshot> notified = new ArrayList<>();
+        index.addListener(notified::add);
+
+        index.hostsUp(up);
+        index.hostsUp(up);
+        assertEquals(1, notified.size());
+        assertSame(index.getSnapshot(), notified.get(0));
+
+        up.clear();
+        index.hostsDown(Lists.newArrayList(new Instance("host1", "clusterA", false)));
+        assertEquals(2, notified.size());
+        assertTrue(notified.get(1).getClusterNames().isEmpty());
+    }
+}
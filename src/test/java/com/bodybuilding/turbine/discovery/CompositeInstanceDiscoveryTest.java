@@ -17,27 +17,37 @@
 package com.bodybuilding.turbine.discovery;
 
 import com.google.common.collect.Lists;
+import com.google.common.io.Closer;
 import com.netflix.config.ConfigurationManager;
 import com.netflix.turbine.discovery.Instance;
 import com.netflix.turbine.discovery.InstanceDiscovery;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
 public class CompositeInstanceDiscoveryTest {
-
     @Mock
     InstanceDiscovery discovery1;
 
@@ -47,6 +57,14 @@ public class CompositeInstanceDiscoveryTest {
     @Mock
     InstanceDiscovery exceptionThrowingDiscovery;
 
+    @Mock
+    InstanceDiscovery slowDiscovery;
+
+    @Mock
+    FallibleInstanceDiscovery fallibleDiscovery;
+
+    private final Closer closer = Closer.create();
+
     @Before
     public void setup() throws Exception {
         when(discovery1.getInstanceList()).thenReturn(Lists.newArrayList(
@@ -64,9 +82,20 @@ public class CompositeInstanceDiscoveryTest {
         when(exceptionThrowingDiscovery.getInstanceList()).thenThrow(new RuntimeException("Error getting instances"));
     }
 
+    @After
+    public void teardown() throws IOException {
+        closer.close();
+        ConfigurationManager.getConfigInstance().clearProperty("CompositeInstanceDiscovery.timeoutMs");
+        ConfigurationManager.getConfigInstance().clearProperty("CompositeInstanceDiscovery.priority");
+        ConfigurationManager.getConfigInstance().clearProperty("CompositeInstanceDiscovery.PrimaryDiscovery.refreshMs");
+        ConfigurationManager.getConfigInstance().clearProperty("CompositeInstanceDiscovery.circuitBreaker.failureThreshold");
+        ConfigurationManager.getConfigInstance().clearProperty("CompositeInstanceDiscovery.circuitBreaker.openMs");
+        ConfigurationManager.getConfigInstance().clearProperty("CompositeInstanceDiscovery.lastGoodMaxAgeMs");
+    }
+
     @Test
     public void testGetInstanceList_oneDelegate() throws Exception {
-        CompositeInstanceDiscovery discovery = new CompositeInstanceDiscovery(Lists.newArrayList(discovery1));
+        CompositeInstanceDiscovery discovery = closer.register(new CompositeInstanceDiscovery(Lists.newArrayList(discovery1)));
         Collection<Instance> instanceList = discovery.getInstanceList();
 
         assertEquals(3, instanceList.size());
@@ -74,7 +103,7 @@ public class CompositeInstanceDiscoveryTest {
 
     @Test
     public void testGetInstanceList_multipleDelegate() throws Exception {
-        CompositeInstanceDiscovery discovery = new CompositeInstanceDiscovery(Lists.newArrayList(discovery1, discovery2));
+        CompositeInstanceDiscovery discovery = closer.register(new CompositeInstanceDiscovery(Lists.newArrayList(discovery1, discovery2)));
         Collection<Instance> instanceList = discovery.getInstanceList();
 
         assertEquals(6, instanceList.size());
@@ -83,23 +112,159 @@ public class CompositeInstanceDiscoveryTest {
 
     @Test
     public void testGetInstanceList_multipleDelegateAndException() throws Exception {
-        CompositeInstanceDiscovery discovery = new CompositeInstanceDiscovery(Lists.newArrayList(discovery1, discovery2,
-                exceptionThrowingDiscovery));
+        CompositeInstanceDiscovery discovery = closer.register(new CompositeInstanceDiscovery(Lists.newArrayList(discovery1, discovery2,
+                exceptionThrowingDiscovery)));
         Collection<Instance> instanceList = discovery.getInstanceList();
 
         assertEquals(6, instanceList.size());
         assertEquals(2, instanceList.stream().map(Instance::getCluster).collect(Collectors.toSet()).size());
     }
 
+    @Test
+    public void testGetInstanceList_slowDelegateUsesLastResult() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("CompositeInstanceDiscovery.timeoutMs", 200);
+        CountDownLatch release = new CountDownLatch(1);
+        when(slowDiscovery.getInstanceList())
+                .thenReturn(Lists.newArrayList(new Instance("host1", "slow", true)))
+                .thenAnswer(i -> {
+                    release.await(10, TimeUnit.SECONDS);
+                    return Lists.newArrayList(new Instance("host1", "slow", true), new Instance("host2", "slow", true));
+                });
+
+        CompositeInstanceDiscovery discovery = closer.register(new CompositeInstanceDiscovery(Lists.newArrayList(discovery1, slowDiscovery)));
+        assertEquals(4, discovery.getInstanceList().size());
+
+        // second call blocks past the deadline, the first result is reused
+        long start = System.currentTimeMillis();
+        assertEquals(4, discovery.getInstanceList().size());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        // the call still in flight is picked up by the next poll once it completes
+        release.countDown();
+        ConfigurationManager.getConfigInstance().setProperty("CompositeInstanceDiscovery.timeoutMs", 5000);
+        assertEquals(5, discovery.getInstanceList().size());
+    }
+
+    @Test
+    public void testGetInstanceList_dedupesByPriority() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("CompositeInstanceDiscovery.priority",
+                SecondaryDiscovery.class.getSimpleName());
+        PrimaryDiscovery primary = new PrimaryDiscovery(Lists.newArrayList(
+                new Instance("host1", "cluster1", true), new Instance("host2", "cluster1", true)));
+        SecondaryDiscovery secondary = new SecondaryDiscovery(Lists.newArrayList(
+                new Instance("host3", "cluster1", true), new Instance("host1", "cluster1", false),
+                new Instance("host1", "cluster2", true)));
+        CompositeInstanceDiscovery discovery = closer.register(new CompositeInstanceDiscovery(Lists.newArrayList(primary, secondary)));
+
+        Collection<Instance> instanceList = discovery.getInstanceList();
+        assertEquals(Lists.newArrayList("host1", "host2", "host3", "host1"),
+                instanceList.stream().map(Instance::getHostname).collect(Collectors.toList()));
+        // host1 keeps its first position but comes from the preferred delegate
+        assertFalse(instanceList.iterator().next().isUp());
+    }
+
+    @Test
+    public void testGetInstanceList_unchangedReturnsSameCollection() throws Exception {
+        CompositeInstanceDiscovery discovery = closer.register(new CompositeInstanceDiscovery(Lists.newArrayList(discovery1, discovery2)));
+        Collection<Instance> first = discovery.getInstanceList();
+        assertSame(first, discovery.getInstanceList());
+
+        when(discovery2.getInstanceList()).thenReturn(Lists.newArrayList(new Instance("host1", "discovery2", false)));
+        Collection<Instance> changed = discovery.getInstanceList();
+        assertEquals(4, changed.size());
+        assertFalse(first == changed);
+    }
+
+    @Test
+    public void testGetInstanceList_perDelegateRefresh() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("CompositeInstanceDiscovery.PrimaryDiscovery.refreshMs", 60000);
+        PrimaryDiscovery primary = new PrimaryDiscovery(Lists.newArrayList(new Instance("host1", "cluster1", true)));
+        SecondaryDiscovery secondary = new SecondaryDiscovery(Lists.newArrayList(new Instance("host2", "cluster1", true)));
+        CompositeInstanceDiscovery discovery = closer.register(new CompositeInstanceDiscovery(Lists.newArrayList(primary, secondary)));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(2, discovery.getInstanceList().size());
+        }
+        // the primary is served from its own cache between refreshes
+        assertEquals(1, primary.calls.get());
+        assertEquals(3, secondary.calls.get());
+    }
+
+    @Test
+    public void testGetInstanceList_circuitBreaker() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("CompositeInstanceDiscovery.circuitBreaker.failureThreshold", 2);
+        when(fallibleDiscovery.fetchInstanceList())
+                .thenReturn(Lists.newArrayList(new Instance("host1", "fallible", true)))
+                .thenThrow(new RuntimeException("Unit Test Intentional Exception"))
+                .thenThrow(new RuntimeException("Unit Test Intentional Exception"))
+                .thenReturn(Lists.newArrayList(new Instance("host2", "fallible", true)));
+        CompositeInstanceDiscovery discovery = closer.register(new CompositeInstanceDiscovery(Lists.newArrayList(fallibleDiscovery)));
+
+        assertEquals(1, discovery.getInstanceList().size());
+        // failures serve the last good result, the second one opens the circuit
+        assertEquals("host1", discovery.getInstanceList().iterator().next().getHostname());
+        assertEquals("host1", discovery.getInstanceList().iterator().next().getHostname());
+        assertEquals("host1", discovery.getInstanceList().iterator().next().getHostname());
+        verify(fallibleDiscovery, times(3)).fetchInstanceList();
+
+        // once the open time has passed a probe closes the circuit
+        ConfigurationManager.getConfigInstance().setProperty("CompositeInstanceDiscovery.circuitBreaker.openMs", 0);
+        assertEquals("host2", discovery.getInstanceList().iterator().next().getHostname());
+        verify(fallibleDiscovery, times(4)).fetchInstanceList();
+    }
+
+    @Test
+    public void testGetInstanceList_lastGoodMaxAge() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("CompositeInstanceDiscovery.lastGoodMaxAgeMs", 0);
+        when(fallibleDiscovery.fetchInstanceList())
+                .thenReturn(Lists.newArrayList(new Instance("host1", "fallible", true)))
+                .thenThrow(new RuntimeException("Unit Test Intentional Exception"));
+        CompositeInstanceDiscovery discovery = closer.register(new CompositeInstanceDiscovery(Lists.newArrayList(fallibleDiscovery)));
+
+        assertEquals(1, discovery.getInstanceList().size());
+        Thread.sleep(10);
+        assertTrue(discovery.getInstanceList().isEmpty());
+    }
+
+    @Test
+    public void testGetInstanceList_circuitBreakerWithRefreshInterval() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("CompositeInstanceDiscovery.PrimaryDiscovery.refreshMs", 20);
+        ConfigurationManager.getConfigInstance().setProperty("CompositeInstanceDiscovery.circuitBreaker.failureThreshold", 1);
+        ConfigurationManager.getConfigInstance().setProperty("CompositeInstanceDiscovery.lastGoodMaxAgeMs", 0);
+        PrimaryDiscovery primary = new PrimaryDiscovery(Lists.newArrayList(new Instance("host1", "cluster1", true)));
+        CompositeInstanceDiscovery discovery = closer.register(new CompositeInstanceDiscovery(Lists.newArrayList(primary)));
+        assertEquals(1, discovery.getInstanceList().size());
+
+        // the cached delegate's failed refreshes reach the breaker instead of its stale snapshot being served
+        primary.failing.set(true);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!discovery.getInstanceList().isEmpty()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        primary.failing.set(false);
+        int calls = primary.calls.get();
+        while (primary.calls.get() < calls + 2) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        // the circuit stays open although the cache has recovered
+        assertTrue(discovery.getInstanceList().isEmpty());
+
+        ConfigurationManager.getConfigInstance().setProperty("CompositeInstanceDiscovery.circuitBreaker.openMs", 0);
+        assertEquals(1, discovery.getInstanceList().size());
+    }
+
     @Test(expected = IllegalStateException.class)
     public void testGetInstanceList_noDelegates() throws Exception {
-        CompositeInstanceDiscovery discovery = new CompositeInstanceDiscovery(Lists.newArrayList());
+        CompositeInstanceDiscovery discovery = closer.register(new CompositeInstanceDiscovery(Lists.newArrayList()));
     }
 
     @Test
     public void testLoadClass() throws Exception {
         ConfigurationManager.getConfigInstance().addProperty("CompositeInstanceDiscovery.delegates", NoOpInstanceDiscovery.class.getName());
-        Collection<Instance> instanceList = new CompositeInstanceDiscovery().getInstanceList();
+        Collection<Instance> instanceList = closer.register(new CompositeInstanceDiscovery()).getInstanceList();
         assertNotNull(instanceList);
         assertEquals(1, NoOpInstanceDiscovery.instances.get());
     }
@@ -116,4 +281,29 @@ public class CompositeInstanceDiscoveryTest {
             return Collections.emptyList();
         }
     }
-}
\ No newline at end of file
+
+    public static class PrimaryDiscovery implements InstanceDiscovery {
+        private final Collection<Instance> instances;
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicBoolean failing = new AtomicBoolean();
+
+        PrimaryDiscovery(Collection<Instance> instances) {
+            this.instances = instances;
+        }
+
+        @Override
+        public Collection<Instance> getInstanceList() throws Exception {
+            calls.incrementAndGet();
+            if (failing.get()) {
+                throw new RuntimeException("Unit Test Intentional Exception");
+            }
+            return instances;
+        }
+    }
+
+    public static class SecondaryDiscovery extends PrimaryDiscovery {
+        SecondaryDiscovery(Collection<Instance> instances) {
+            super(instances);
+        }
+    }
+}
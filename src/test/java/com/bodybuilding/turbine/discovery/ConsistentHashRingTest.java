@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void assignmentIndependentOfNodeOrder() {
+        ConsistentHashRing ring1 = new ConsistentHashRing(Lists.newArrayList("a", "b", "c"), 100);
+        ConsistentHashRing ring2 = new ConsistentHashRing(Lists.newArrayList("c", "a", "b"), 100);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring1.getOwner("cluster" + i), ring2.getOwner("cluster" + i));
+        }
+    }
+
+    @Test
+    public void spreadsKeysAndMovesFewOnJoin() {
+        ConsistentHashRing three = new ConsistentHashRing(Lists.newArrayList("a", "b", "c"), 100);
+        ConsistentHashRing four = new ConsistentHashRing(Lists.newArrayList("a", "b", "c", "d"), 100);
+
+        Map<String, Integer> counts = new HashMap<>();
+        int moved = 0;
+        for (int i = 0; i < 3000; i++) {
+            String owner = three.getOwner("cluster" + i);
+            counts.merge(owner, 1, Integer::sum);
+            String newOwner = four.getOwner("cluster" + i);
+            if (!owner.equals(newOwner)) {
+                // keys only move to the new node
+                assertEquals("d", newOwner);
+                moved++;
+            }
+        }
+        counts.values().forEach(c -> assertTrue("uneven spread " + counts, c > 600 && c < 1400));
+        assertTrue("moved " + moved, moved > 300 && moved < 1200);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requiresNodes() {
+        new ConsistentHashRing(Lists.newArrayList(), 100);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bodybuilding.turbine.discovery;
+
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
+import com.google.common.collect.Lists;
+import com.netflix.config.ConfigurationManager;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.turbine.discovery.Instance;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DampingInstanceDiscoveryTest {
+    private static final DynamicIntProperty ABSENCES = DynamicPropertyFactory.getInstance()
+            .getIntProperty("DampingInstanceDiscoveryTest.absences", 3);
+    private static final DynamicLongProperty GRACE = DynamicPropertyFactory.getInstance()
+            .getLongProperty("DampingInstanceDiscoveryTest.graceMs", 60000);
+
+    @Mock
+    FallibleInstanceDiscovery delegate;
+
+    @After
+    public void teardown() {
+        ConfigurationManager.getConfigInstance().clearProperty("DampingInstanceDiscoveryTest.graceMs");
+    }
+
+    @Test
+    public void removesAfterConsecutiveAbsences() {
+        DampingInstanceDiscovery discovery = new DampingInstanceDiscovery(delegate, ABSENCES, GRACE);
+        long suppressed = suppressedRemovals();
+
+        assertEquals(Lists.newArrayList("host1", "host2"), hosts(discovery.damp(instances("host1", "host2"), 0)));
+        assertEquals(Lists.newArrayList("host1", "host2"), hosts(discovery.damp(instances("host1"), 1)));
+        assertEquals(Lists.newArrayList("host1", "host2"), hosts(discovery.damp(instances("host1"), 2)));
+        assertEquals(Lists.newArrayList("host1"), hosts(discovery.damp(instances("host1"), 3)));
+        assertEquals(2, suppressedRemovals() - suppressed);
+    }
+
+    @Test
+    public void returningHostStartsOver() {
+        DampingInstanceDiscovery discovery = new DampingInstanceDiscovery(delegate, ABSENCES, GRACE);
+
+        discovery.damp(instances("host1", "host2"), 0);
+        discovery.damp(instances("host1"), 1);
+        discovery.damp(instances("host1"), 2);
+        discovery.damp(instances("host1", "host2"), 3);
+        assertEquals(Lists.newArrayList("host1", "host2"), hosts(discovery.damp(instances("host1"), 4)));
+        assertEquals(Lists.newArrayList("host1", "host2"), hosts(discovery.damp(instances("host1"), 5)));
+    }
+
+    @Test
+    public void removesAfterGracePeriod() {
+        ConfigurationManager.getConfigInstance().setProperty("DampingInstanceDiscoveryTest.graceMs", 100);
+        DampingInstanceDiscovery discovery = new DampingInstanceDiscovery(delegate, ABSENCES, GRACE);
+
+        discovery.damp(instances("host1", "host2"), 0);
+        assertEquals(Lists.newArrayList("host1", "host2"), hosts(discovery.damp(instances("host1"), 1000)));
+        assertEquals(Lists.newArrayList("host1"), hosts(discovery.damp(instances("host1"), 1100)));
+    }
+
+    @Test
+    public void addsNewHostsImmediately() {
+        DampingInstanceDiscovery discovery = new DampingInstanceDiscovery(delegate, ABSENCES, GRACE);
+
+        discovery.damp(instances("host1"), 0);
+        assertEquals(Lists.newArrayList("host1", "host2"), hosts(discovery.damp(instances("host1", "host2"), 1)));
+    }
+
+    @Test
+    public void failedPollKeepsInstances() throws Exception {
+        when(delegate.fetchInstanceList())
+                .thenReturn(instances("host1", "host2"))
+                .thenThrow(new RuntimeException("Unit Test Intentional Exception"));
+        DampingInstanceDiscovery discovery = new DampingInstanceDiscovery(delegate, ABSENCES, GRACE);
+
+        assertEquals(2, discovery.getInstanceList().size());
+        assertEquals(Lists.newArrayList("host1", "host2"), hosts(discovery.getInstanceList()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void requiresDelegateProperty() {
+        new DampingInstanceDiscovery();
+    }
+
+    private static List<Instance> instances(String... hosts) {
+        return Lists.newArrayList(hosts).stream().map(h -> new Instance(h, "cluster1", true)).collect(Collectors.toList());
+    }
+
+    private static List<String> hosts(Collection<Instance> instances) {
+        return instances.stream().map(Instance::getHostname).collect(Collectors.toList());
+    }
+
+    private static long suppressedRemovals() {
+        return DiscoveryMetrics.getInstance().getCounter("discovery_removals_suppressed_total",
+                DiscoveryMetrics.labels("source", "damping"));
+    }
+}
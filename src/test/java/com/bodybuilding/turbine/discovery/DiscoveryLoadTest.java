@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bodybuilding.turbine.discovery;
+
+import com.bodybuilding.turbine.metrics.DiscoveryMetrics;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Closer;
+import com.netflix.config.ConfigurationManager;
+import com.netflix.turbine.discovery.Instance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the discovery plugins with the real SDK clients against {@link FakeAwsEndpoint}, reporting wall time, API
+ * calls and heap use. A small fleet is used by default, larger runs are configured with system properties, e.g.
+ * mvn test -Dtest=DiscoveryLoadTest -Dturbine.loadtest.instances=50000
+ */
+public class DiscoveryLoadTest {
+    private static final Logger log = LoggerFactory.getLogger(DiscoveryLoadTest.class);
+    private static final String TAG_KEY = "turbine-cluster";
+    private static final int INSTANCES = Integer.getInteger("turbine.loadtest.instances", 2000);
+    private static final int INSTANCES_PER_GROUP = Integer.getInteger("turbine.loadtest.instancesPerGroup", 50);
+    private static final int PAGE_SIZE = Integer.getInteger("turbine.loadtest.pageSize", 500);
+    private static final long LATENCY_MS = Long.getLong("turbine.loadtest.latencyMs", 0);
+    // every test uses its own region name, so it starts with fresh rate limiter buckets
+    private static final AtomicInteger REGIONS = new AtomicInteger();
+
+    private FakeAwsEndpoint aws;
+
+    private final Closer closer = Closer.create();
+
+    @Before
+    public void setup() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty(Ec2TagInstanceDiscovery.PROPERTY_NAME, TAG_KEY);
+        ConfigurationManager.getConfigInstance().setProperty(AsgTagInstanceDiscovery.TAG_PROPERTY_NAME, TAG_KEY);
+        ConfigurationManager.getConfigInstance().setProperty("discovery.aws.maxRequestsPerSecond", 1000);
+        ConfigurationManager.getConfigInstance().setProperty("discovery.aws.pageJitterMs", 0);
+        ConfigurationManager.getConfigInstance().setProperty("discovery.aws.throttleBackoffMs", 5);
+        aws = new FakeAwsEndpoint(TAG_KEY, Math.max(1, INSTANCES / INSTANCES_PER_GROUP), INSTANCES_PER_GROUP)
+                .withPageSize(PAGE_SIZE)
+                .withLatencyMs(LATENCY_MS);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        closer.close();
+        aws.close();
+        ConfigurationManager.getConfigInstance().clearProperty(Ec2TagInstanceDiscovery.PROPERTY_NAME);
+        ConfigurationManager.getConfigInstance().clearProperty(AsgTagInstanceDiscovery.TAG_PROPERTY_NAME);
+        ConfigurationManager.getConfigInstance().clearProperty("discovery.aws.maxRequestsPerSecond");
+        ConfigurationManager.getConfigInstance().clearProperty("discovery.aws.pageJitterMs");
+        ConfigurationManager.getConfigInstance().clearProperty("discovery.aws.throttleBackoffMs");
+        ConfigurationManager.getConfigInstance().clearProperty("asgdiscovery.describeTags.enabled");
+    }
+
+    @Test
+    public void ec2TagDiscovery() throws Exception {
+        Ec2TagInstanceDiscovery discovery = closer.register(new Ec2TagInstanceDiscovery(ImmutableMap.of(nextRegion(), aws.createEc2Client())));
+
+        Collection<Instance> instances = measure("ec2 tag", discovery::fetchInstanceList);
+        assertEquals(aws.getInstanceCount(), instances.size());
+        assertEquals(pages(aws.getInstanceCount(), PAGE_SIZE), aws.getCalls("DescribeInstances"));
+    }
+
+    @Test
+    public void asgTagDiscovery() throws Exception {
+        AsgTagInstanceDiscovery discovery = newAsgDiscovery();
+
+        Collection<Instance> instances = measure("asg", discovery::fetchInstanceList);
+        assertEquals(aws.getInstanceCount(), instances.size());
+        assertEquals(pages(aws.getInstanceCount() / INSTANCES_PER_GROUP, 50), aws.getCalls("DescribeAutoScalingGroups"));
+    }
+
+    @Test
+    public void asgTagDiscovery_describeTags() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("asgdiscovery.describeTags.enabled", true);
+        AsgTagInstanceDiscovery discovery = newAsgDiscovery();
+
+        Collection<Instance> instances = measure("asg describe tags", discovery::fetchInstanceList);
+        assertEquals(aws.getInstanceCount(), instances.size());
+        assertEquals(pages(aws.getInstanceCount() / INSTANCES_PER_GROUP, PAGE_SIZE), aws.getCalls("DescribeTags"));
+    }
+
+    @Test
+    public void throttledDiscoveryCompletes() throws Exception {
+        aws.withThrottleEvery(3);
+        String region = nextRegion();
+        Ec2TagInstanceDiscovery discovery = closer.register(new Ec2TagInstanceDiscovery(ImmutableMap.of(region, aws.createEc2Client())));
+        long retries = DiscoveryMetrics.getInstance().getCounter("discovery_aws_retries_total",
+                DiscoveryMetrics.labels("source", "ec2", "operation", "DescribeInstances"));
+
+        Collection<Instance> instances = measure("ec2 tag throttled", discovery::fetchInstanceList);
+        assertEquals(aws.getInstanceCount(), instances.size());
+        assertTrue(aws.getThrottled() > 0);
+        assertTrue(DiscoveryMetrics.getInstance().getCounter("discovery_aws_retries_total",
+                DiscoveryMetrics.labels("source", "ec2", "operation", "DescribeInstances")) > retries);
+    }
+
+    private AsgTagInstanceDiscovery newAsgDiscovery() {
+        String region = nextRegion();
+        return closer.register(new AsgTagInstanceDiscovery(ImmutableMap.of(region, aws.createAutoScalingClient()),
+                ImmutableMap.of(region, aws.createEc2Client())));
+    }
+
+    private static String nextRegion() {
+        return "fake-" + REGIONS.incrementAndGet();
+    }
+
+    private static int pages(int items, int pageSize) {
+        return Math.max(1, (items + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * Runs a discovery poll and logs its wall time, API calls and the heap retained by its result
+     */
+    private Collection<Instance> measure(String name, Callable<Collection<Instance>> poll) throws Exception {
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        Collection<Instance> instances = poll.call();
+        long wallMs = (System.nanoTime() - start) / 1000000;
+        long heapAfter = usedHeap();
+
+        log.info("{}: {} instances in {}ms, DescribeInstances={} DescribeAutoScalingGroups={} DescribeTags={} "
+                        + "throttled={}, retained heap ~{}KB", name, instances.size(), wallMs,
+                aws.getCalls("DescribeInstances"), aws.getCalls("DescribeAutoScalingGroups"),
+                aws.getCalls("DescribeTags"), aws.getThrottled(), Math.max(0, heapAfter - heapBefore) / 1024);
+        return instances;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
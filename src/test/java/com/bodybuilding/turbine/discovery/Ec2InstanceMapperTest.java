@@ -19,11 +19,15 @@ package com.bodybuilding.turbine.discovery;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceState;
 import com.netflix.config.ConfigurationManager;
+import com.google.common.collect.Lists;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.util.List;
+
 import static com.bodybuilding.turbine.discovery.Ec2InstanceMapper.HOST_FIELD_PROPERTY_NAME;
 import static org.junit.Assert.*;
 
@@ -37,6 +41,12 @@ public class Ec2InstanceMapperTest {
         ConfigurationManager.getConfigInstance().addProperty(HOST_FIELD_PROPERTY_NAME, "");
     }
 
+    @After
+    public void teardown() {
+        ConfigurationManager.getConfigInstance().clearProperty(HOST_FIELD_PROPERTY_NAME);
+        ConfigurationManager.getConfigInstance().clearProperty(HOST_FIELD_PROPERTY_NAME + ".test_cluster2");
+    }
+
     @Test
     public void createTurbineInstance_default() {
         Instance instance = createEc2Instance();
@@ -92,6 +102,52 @@ public class Ec2InstanceMapperTest {
         assertFalse(turbineInstance.isUp());
     }
 
+    @Test
+    public void createTurbineInstance_clusterOverrideChanges() {
+        Instance instance = createEc2Instance();
+        assertEquals("private_ip", mapper.createTurbineInstance("test_cluster2", instance).getHostname());
+
+        ConfigurationManager.getConfigInstance().setProperty(HOST_FIELD_PROPERTY_NAME + ".test_cluster2", "public_dns");
+        assertEquals("public_dns", mapper.createTurbineInstance("test_cluster2", instance).getHostname());
+        assertEquals("private_ip", mapper.createTurbineInstance("test_cluster1", instance).getHostname());
+
+        ConfigurationManager.getConfigInstance().setProperty(HOST_FIELD_PROPERTY_NAME + ".test_cluster2", "private_dns");
+        assertEquals("private_dns", mapper.createTurbineInstance("test_cluster2", instance).getHostname());
+    }
+
+    @Test
+    public void mapAll() {
+        ConfigurationManager.getConfigInstance().addProperty(HOST_FIELD_PROPERTY_NAME, "public_ip");
+        Instance stopped = createEc2Instance().withState(new InstanceState().withName("stopped"));
+        List<com.netflix.turbine.discovery.Instance> instances = mapper.mapAll("test_cluster1",
+                Lists.newArrayList(createEc2Instance(), stopped));
+
+        assertEquals(2, instances.size());
+        assertEquals("public_ip", instances.get(0).getHostname());
+        assertEquals("test_cluster1", instances.get(0).getCluster());
+        assertTrue(instances.get(0).isUp());
+        assertFalse(instances.get(1).isUp());
+    }
+
+    @Test
+    public void createTurbineInstance_reusesUnchangedInstances() {
+        com.netflix.turbine.discovery.Instance first = mapper.createTurbineInstance(new String("test_cluster3"),
+                createEc2Instance().withInstanceId("i-1"));
+        com.netflix.turbine.discovery.Instance second = mapper.createTurbineInstance(new String("test_cluster3"),
+                createEc2Instance().withInstanceId("i-1"));
+        assertSame(first, second);
+        assertSame(first.getCluster(), second.getCluster());
+
+        // a changed state or a new instance behind the same host maps to a new Instance
+        com.netflix.turbine.discovery.Instance stopped = mapper.createTurbineInstance("test_cluster3",
+                createEc2Instance().withInstanceId("i-1").withState(new InstanceState().withName("stopped")));
+        assertNotSame(first, stopped);
+        assertFalse(stopped.isUp());
+        com.netflix.turbine.discovery.Instance replaced = mapper.createTurbineInstance("test_cluster3",
+                createEc2Instance().withInstanceId("i-2"));
+        assertEquals("i-2", replaced.getAttributes().get(Ec2InstanceMapper.INSTANCE_ID_ATTRIBUTE));
+    }
+
     private Instance createEc2Instance() {
         return new Instance().withPrivateDnsName("private_dns")
                 .withPrivateIpAddress("private_ip")
@@ -18,13 +18,17 @@ package com.bodybuilding.turbine.discovery;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.InstanceState;
 import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.Tag;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closer;
 import com.netflix.config.ConfigurationManager;
 import com.netflix.turbine.discovery.Instance;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -32,13 +36,19 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import static com.bodybuilding.turbine.discovery.Ec2TagInstanceDiscovery.PROPERTY_NAME;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -46,6 +56,13 @@ public class Ec2TagInstanceDiscoveryTest {
     @Mock
     private AmazonEC2Client ec2Client;
 
+    private final Closer closer = Closer.create();
+
+    @After
+    public void teardown() throws IOException {
+        closer.close();
+    }
+
     @Before
     public void setup() {
         ConfigurationManager.getConfigInstance().addProperty(PROPERTY_NAME, "Tag");
@@ -54,21 +71,37 @@ public class Ec2TagInstanceDiscoveryTest {
     @Test(expected = IllegalStateException.class)
     public void requiresTagProperty() {
         ConfigurationManager.getConfigInstance().addProperty(PROPERTY_NAME, "");
-        new Ec2TagInstanceDiscovery();
+        closer.register(new Ec2TagInstanceDiscovery());
     }
 
     @Test
     public void testGetInstances_emptyList() throws Exception {
-        Ec2TagInstanceDiscovery discovery = new Ec2TagInstanceDiscovery(ec2Client);
+        Ec2TagInstanceDiscovery discovery = closer.register(new Ec2TagInstanceDiscovery(ec2Client));
         when(ec2Client.describeInstances(anyObject())).thenReturn(new DescribeInstancesResult());
         Collection<Instance> instanceList = discovery.getInstanceList();
         assertNotNull(instanceList);
         assertEquals(0, instanceList.size());
     }
 
+    @Test
+    public void resolveInstances_filtersByInstanceId() throws Exception {
+        Ec2TagInstanceDiscovery discovery = closer.register(new Ec2TagInstanceDiscovery(ec2Client));
+        when(ec2Client.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(m -> {
+            DescribeInstancesRequest req = m.getArgumentAt(0, DescribeInstancesRequest.class);
+            assertTrue(req.getInstanceIds().isEmpty());
+            assertEquals(3, req.getFilters().size());
+            assertEquals("instance-id", req.getFilters().get(2).getName());
+            assertEquals(Lists.newArrayList("i-1", "i-2"), req.getFilters().get(2).getValues());
+            return new DescribeInstancesResult();
+        });
+
+        assertTrue(discovery.resolveInstances(Lists.newArrayList("i-1", "i-2")).isEmpty());
+        verify(ec2Client, times(1)).describeInstances(any(DescribeInstancesRequest.class));
+    }
+
     @Test
     public void testGetInstances() throws Exception {
-        Ec2TagInstanceDiscovery discovery = new Ec2TagInstanceDiscovery(ec2Client);
+        Ec2TagInstanceDiscovery discovery = closer.register(new Ec2TagInstanceDiscovery(ec2Client));
         DescribeInstancesResult result = Mockito.mock(DescribeInstancesResult.class);
 
         List<Reservation> reservations = Lists.newArrayList(createReservationMock(), createReservationMock());
@@ -83,13 +116,92 @@ public class Ec2TagInstanceDiscoveryTest {
 
     @Test
     public void testGetInstances_awsException() throws Exception {
-        Ec2TagInstanceDiscovery discovery = new Ec2TagInstanceDiscovery(ec2Client);
+        Ec2TagInstanceDiscovery discovery = closer.register(new Ec2TagInstanceDiscovery(ec2Client));
         when(ec2Client.describeInstances(anyObject())).thenThrow(new AmazonClientException("Unit Test Intentional Exception"));
         Collection<Instance> instanceList = discovery.getInstanceList();
         assertNotNull(instanceList);
         assertEquals(0, instanceList.size());
     }
 
+    @Test
+    public void testGetInstances_stateFilter() throws Exception {
+        Ec2TagInstanceDiscovery discovery = closer.register(new Ec2TagInstanceDiscovery(ec2Client));
+        List<DescribeInstancesRequest> requests = new ArrayList<>();
+        when(ec2Client.describeInstances(any(DescribeInstancesRequest.class))).thenAnswer(m -> {
+            requests.add(m.getArgumentAt(0, DescribeInstancesRequest.class));
+            return new DescribeInstancesResult();
+        });
+
+        discovery.getInstanceList();
+        assertEquals("instance-state-name", requests.get(0).getFilters().get(1).getName());
+        assertEquals(Lists.newArrayList("running"), requests.get(0).getFilters().get(1).getValues());
+
+        ConfigurationManager.getConfigInstance().setProperty("ec2discovery.instanceStates", "pending, running");
+        try {
+            discovery.getInstanceList();
+            assertEquals(Lists.newArrayList("pending", "running"), requests.get(1).getFilters().get(1).getValues());
+
+            ConfigurationManager.getConfigInstance().setProperty("ec2discovery.instanceStates", "");
+            discovery.getInstanceList();
+            assertEquals(1, requests.get(2).getFilters().size());
+        } finally {
+            ConfigurationManager.getConfigInstance().clearProperty("ec2discovery.instanceStates");
+        }
+    }
+
+    @Test
+    public void testGetInstances_multipleRegions() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("turbine.region.qualifyClusterNames", true);
+        try {
+            AmazonEC2Client westClient = mock(AmazonEC2Client.class);
+            Map<String, AmazonEC2Client> clients = new LinkedHashMap<>();
+            clients.put("us-east-1", ec2Client);
+            clients.put("us-west-2", westClient);
+            when(ec2Client.describeInstances(anyObject())).thenReturn(new DescribeInstancesResult()
+                    .withReservations(new Reservation().withInstances(createInstanceMock("cluster1"))));
+            when(westClient.describeInstances(anyObject())).thenReturn(new DescribeInstancesResult()
+                    .withReservations(new Reservation().withInstances(createInstanceMock("cluster1"))));
+
+            Collection<Instance> instanceList = closer.register(new Ec2TagInstanceDiscovery(clients)).getInstanceList();
+            assertEquals(Sets.newHashSet("cluster1@us-east-1", "cluster1@us-west-2"),
+                    instanceList.stream().map(Instance::getCluster).collect(Collectors.toSet()));
+        } finally {
+            ConfigurationManager.getConfigInstance().clearProperty("turbine.region.qualifyClusterNames");
+        }
+    }
+
+    @Test
+    public void testGetInstances_failedRegionDoesNotHideOthers() throws Exception {
+        AmazonEC2Client westClient = mock(AmazonEC2Client.class);
+        Map<String, AmazonEC2Client> clients = new LinkedHashMap<>();
+        clients.put("us-east-1", ec2Client);
+        clients.put("us-west-2", westClient);
+        when(ec2Client.describeInstances(anyObject())).thenThrow(new AmazonClientException("Unit Test Intentional Exception"));
+        when(westClient.describeInstances(anyObject())).thenReturn(new DescribeInstancesResult()
+                .withReservations(new Reservation().withInstances(createInstanceMock("cluster1"))));
+
+        Collection<Instance> instanceList = closer.register(new Ec2TagInstanceDiscovery(clients)).fetchInstanceList();
+        assertEquals(1, instanceList.size());
+    }
+
+    @Test
+    public void processReservations_callsDeprecatedHookOverride() throws Exception {
+        List<String> hooked = new ArrayList<>();
+        Ec2TagInstanceDiscovery discovery = new Ec2TagInstanceDiscovery(ec2Client) {
+            @Override
+            protected Instance createTurbineInstance(String clusterName, com.amazonaws.services.ec2.model.Instance ec2Instance) {
+                hooked.add(clusterName);
+                return new Instance("hooked", clusterName, true);
+            }
+        };
+
+        List<Instance> instances = discovery.processReservations("us-east-1", Lists.newArrayList(createReservationMock()));
+        assertEquals(Lists.newArrayList("cluster1", "cluster2"), hooked);
+        assertTrue(instances.stream().allMatch(i -> i.getHostname().equals("hooked")));
+        assertFalse(Ec2InstanceMapper.overridesCreateTurbineInstance(Ec2TagInstanceDiscovery.class,
+                Ec2TagInstanceDiscovery.class));
+    }
+
     private static Reservation createReservationMock() {
         ArrayList<com.amazonaws.services.ec2.model.Instance> instances =
                 Lists.newArrayList(createInstanceMock("cluster1"), createInstanceMock("cluster2"));
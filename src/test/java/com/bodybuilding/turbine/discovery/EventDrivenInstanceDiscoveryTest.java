@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Closer;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import com.netflix.turbine.discovery.Instance;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EventDrivenInstanceDiscoveryTest {
+    private static final DynamicLongProperty RECONCILE_INTERVAL = DynamicPropertyFactory.getInstance()
+            .getLongProperty("EventDrivenInstanceDiscoveryTest.reconcileIntervalMs", 600000);
+
+    @Mock
+    ResolvableInstanceDiscovery delegate;
+    @Mock
+    InstanceEventSource eventSource;
+
+    private final Closer closer = Closer.create();
+
+    @After
+    public void teardown() throws IOException {
+        closer.close();
+    }
+
+    @Test
+    public void seedsFromFullScan() throws Exception {
+        when(delegate.fetchInstanceList()).thenReturn(Lists.newArrayList(instance("i-1", "host1", true)));
+        when(eventSource.poll()).thenReturn(Collections.emptyList());
+        EventDrivenInstanceDiscovery discovery = closer.register(new EventDrivenInstanceDiscovery(delegate, eventSource, RECONCILE_INTERVAL));
+
+        assertEquals(1, discovery.getInstanceList().size());
+        assertEquals(1, discovery.getInstanceList().size());
+        verify(delegate, times(1)).fetchInstanceList();
+    }
+
+    @Test
+    public void appliesEventsFromSource() throws Exception {
+        InMemoryInstanceEventSource source = new InMemoryInstanceEventSource();
+        when(delegate.fetchInstanceList()).thenReturn(Lists.newArrayList(instance("i-1", "host1", true)));
+        when(delegate.resolveInstances(Lists.newArrayList("i-2"))).thenReturn(Lists.newArrayList(instance("i-2", "host2", true)));
+        EventDrivenInstanceDiscovery discovery = closer.register(new EventDrivenInstanceDiscovery(delegate, source, RECONCILE_INTERVAL));
+        assertEquals(1, discovery.getInstanceList().size());
+
+        source.publish(new InstanceEvent("i-2", InstanceEvent.Type.CHANGED));
+        source.publish(new InstanceEvent("i-1", InstanceEvent.Type.TERMINATED));
+        verify(delegate, timeout(5000)).resolveInstances(anyCollection());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!hosts(discovery).equals(Lists.newArrayList("host2")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Lists.newArrayList("host2"), hosts(discovery));
+        verify(delegate, times(1)).fetchInstanceList();
+    }
+
+    @Test
+    public void apply_unresolvedInstanceIsRemoved() throws Exception {
+        when(delegate.fetchInstanceList()).thenReturn(Lists.newArrayList(instance("i-1", "host1", true)));
+        when(delegate.resolveInstances(anyCollection())).thenReturn(Collections.emptyList());
+        when(eventSource.poll()).thenReturn(Collections.emptyList());
+        EventDrivenInstanceDiscovery discovery = closer.register(new EventDrivenInstanceDiscovery(delegate, eventSource, RECONCILE_INTERVAL));
+        discovery.getInstanceList();
+
+        discovery.apply(Lists.newArrayList(new InstanceEvent("i-1", InstanceEvent.Type.CHANGED)));
+        assertTrue(discovery.getInstanceList().isEmpty());
+    }
+
+    @Test
+    public void apply_stateChangeReplacesInstance() throws Exception {
+        when(delegate.fetchInstanceList()).thenReturn(Lists.newArrayList(instance("i-1", "host1", true)));
+        when(delegate.resolveInstances(anyCollection())).thenReturn(Lists.newArrayList(instance("i-1", "host1", false)));
+        when(eventSource.poll()).thenReturn(Collections.emptyList());
+        EventDrivenInstanceDiscovery discovery = closer.register(new EventDrivenInstanceDiscovery(delegate, eventSource, RECONCILE_INTERVAL));
+        discovery.getInstanceList();
+
+        discovery.apply(Lists.newArrayList(new InstanceEvent("i-1", InstanceEvent.Type.CHANGED)));
+        Collection<Instance> instances = discovery.getInstanceList();
+        assertEquals(1, instances.size());
+        assertTrue(!instances.iterator().next().isUp());
+    }
+
+    @Test
+    public void apply_lookupOverlappingReconcileIsRepeated() throws Exception {
+        when(delegate.fetchInstanceList()).thenReturn(Lists.newArrayList(instance("i-1", "host1", true)));
+        when(eventSource.poll()).thenReturn(Collections.emptyList());
+        EventDrivenInstanceDiscovery discovery = closer.register(new EventDrivenInstanceDiscovery(delegate, eventSource, RECONCILE_INTERVAL));
+        discovery.getInstanceList();
+
+        // the first lookup sees the instance down, a scan completes before it is applied and sees it up again
+        when(delegate.resolveInstances(anyCollection()))
+                .thenAnswer(i -> {
+                    discovery.reconcile();
+                    return Lists.newArrayList(instance("i-1", "host1", false));
+                })
+                .thenReturn(Lists.newArrayList(instance("i-1", "host1", true)));
+
+        discovery.apply(Lists.newArrayList(new InstanceEvent("i-1", InstanceEvent.Type.CHANGED)));
+        Collection<Instance> instances = discovery.getInstanceList();
+        assertEquals(1, instances.size());
+        assertTrue(instances.iterator().next().isUp());
+        verify(delegate, times(2)).resolveInstances(anyCollection());
+    }
+
+    @Test
+    public void reconcileReplacesTable() throws Exception {
+        when(delegate.fetchInstanceList())
+                .thenReturn(Lists.newArrayList(instance("i-1", "host1", true)))
+                .thenReturn(Lists.newArrayList(instance("i-2", "host2", true), instance("i-3", "host3", true)));
+        when(eventSource.poll()).thenReturn(Collections.emptyList());
+        EventDrivenInstanceDiscovery discovery = closer.register(new EventDrivenInstanceDiscovery(delegate, eventSource, RECONCILE_INTERVAL));
+        assertEquals(Lists.newArrayList("host1"), hosts(discovery));
+
+        discovery.reconcile();
+        assertEquals(Lists.newArrayList("host2", "host3"), hosts(discovery));
+    }
+
+    @Test
+    public void seedFailureIsRetried() throws Exception {
+        when(delegate.fetchInstanceList())
+                .thenThrow(new RuntimeException("Unit Test Intentional Exception"))
+                .thenReturn(Lists.newArrayList(instance("i-1", "host1", true)));
+        when(eventSource.poll()).thenReturn(Collections.emptyList());
+        EventDrivenInstanceDiscovery discovery = closer.register(new EventDrivenInstanceDiscovery(delegate, eventSource, RECONCILE_INTERVAL));
+
+        assertTrue(discovery.getInstanceList().isEmpty());
+        assertEquals(1, discovery.getInstanceList().size());
+    }
+
+    private static Collection<String> hosts(EventDrivenInstanceDiscovery discovery) throws Exception {
+        return discovery.getInstanceList().stream().map(Instance::getHostname).sorted().collect(Collectors.toList());
+    }
+
+    private static Instance instance(String instanceId, String host, boolean up) {
+        Instance instance = new Instance(host, "cluster1", up);
+        instance.getAttributes().put(Ec2InstanceMapper.INSTANCE_ID_ATTRIBUTE, instanceId);
+        return instance;
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bodybuilding.turbine.discovery;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.autoscaling.AmazonAutoScalingClient;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Embedded HTTP endpoint answering the EC2 and Auto Scaling query API calls made by the discovery plugins from a
+ * generated fleet, so the real SDK clients can be tested offline. Every group is one cluster, tagged on both the group
+ * and its instances. Page size, latency and throttling of every request can be configured.
+ */
+class FakeAwsEndpoint implements AutoCloseable {
+    private static final Splitter PARAM_SPLITTER = Splitter.on('&').omitEmptyStrings();
+    private static final String EC2_NAMESPACE = "http://ec2.amazonaws.com/doc/2015-10-01/";
+    private static final String ASG_NAMESPACE = "http://autoscaling.amazonaws.com/doc/2011-01-01/";
+
+    private final String tagKey;
+    private final int groups;
+    private final int instancesPerGroup;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger throttled = new AtomicInteger();
+    private volatile int pageSize = 1000;
+    private volatile int groupPageSize = 50;
+    private volatile long latencyMs;
+    private volatile int throttleEvery;
+
+    /**
+     * Starts the endpoint on a free local port
+     * @param tagKey tag holding the cluster name
+     * @param groups number of auto scaling groups, and clusters
+     * @param instancesPerGroup number of instances in every group
+     */
+    FakeAwsEndpoint(String tagKey, int groups, int instancesPerGroup) throws IOException {
+        this.tagKey = tagKey;
+        this.groups = groups;
+        this.instancesPerGroup = instancesPerGroup;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newFixedThreadPool(8,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fake-aws-%d").build());
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @param pageSize max number of instances in a DescribeInstances, DescribeTags or DescribeAutoScalingInstances page
+     */
+    FakeAwsEndpoint withPageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param groupPageSize max number of groups in a DescribeAutoScalingGroups page
+     */
+    FakeAwsEndpoint withGroupPageSize(int groupPageSize) {
+        this.groupPageSize = groupPageSize;
+        return this;
+    }
+
+    /**
+     * @param latencyMs delay added to every response
+     */
+    FakeAwsEndpoint withLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+        return this;
+    }
+
+    /**
+     * @param throttleEvery every n-th request is rejected with a throttling error, 0 to never throttle
+     */
+    FakeAwsEndpoint withThrottleEvery(int throttleEvery) {
+        this.throttleEvery = throttleEvery;
+        return this;
+    }
+
+    int getInstanceCount() {
+        return groups * instancesPerGroup;
+    }
+
+    /**
+     * @return number of answered calls of an API action, throttled requests excluded
+     */
+    int getCalls(String action) {
+        AtomicInteger count = calls.get(action);
+        return count == null ? 0 : count.get();
+    }
+
+    int getThrottled() {
+        return throttled.get();
+    }
+
+    AmazonEC2Client createEc2Client() {
+        AmazonEC2Client client = new AmazonEC2Client(new BasicAWSCredentials("fake", "fake"), clientConfiguration());
+        client.setEndpoint(getEndpoint());
+        client.setSignerRegionOverride("us-east-1");
+        return client;
+    }
+
+    AmazonAutoScalingClient createAutoScalingClient() {
+        AmazonAutoScalingClient client = new AmazonAutoScalingClient(new BasicAWSCredentials("fake", "fake"),
+                clientConfiguration());
+        client.setEndpoint(getEndpoint());
+        client.setSignerRegionOverride("us-east-1");
+        return client;
+    }
+
+    private static ClientConfiguration clientConfiguration() {
+        // throttling is retried by AwsRateLimiter, not by the SDK
+        return new ClientConfiguration().withMaxErrorRetry(0).withMaxConnections(16);
+    }
+
+    private String getEndpoint() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, List<String>> params = parseParams(exchange);
+            String action = first(params, "Action");
+            if (latencyMs > 0) {
+                Thread.sleep(latencyMs);
+            }
+
+            int request = requests.incrementAndGet();
+            if (throttleEvery > 0 && request % throttleEvery == 0) {
+                throttled.incrementAndGet();
+                if ("DescribeInstances".equals(action)) {
+                    respond(exchange, 503, "<Response><Errors><Error><Code>RequestLimitExceeded</Code>"
+                            + "<Message>Request limit exceeded.</Message></Error></Errors>"
+                            + "<RequestID>" + request + "</RequestID></Response>");
+                } else {
+                    respond(exchange, 400, "<ErrorResponse xmlns=\"" + ASG_NAMESPACE + "\"><Error><Type>Sender</Type>"
+                            + "<Code>Throttling</Code><Message>Rate exceeded</Message></Error>"
+                            + "<RequestId>" + request + "</RequestId></ErrorResponse>");
+                }
+                return;
+            }
+
+            calls.computeIfAbsent(Strings.nullToEmpty(action), a -> new AtomicInteger()).incrementAndGet();
+            if ("DescribeInstances".equals(action)) {
+                respond(exchange, 200, describeInstances(params));
+            } else if ("DescribeAutoScalingGroups".equals(action)) {
+                respond(exchange, 200, describeAutoScalingGroups(params));
+            } else if ("DescribeTags".equals(action)) {
+                respond(exchange, 200, describeTags(params));
+            } else if ("DescribeAutoScalingInstances".equals(action)) {
+                respond(exchange, 200, describeAutoScalingInstances(params));
+            } else {
+                respond(exchange, 400, "<ErrorResponse><Error><Type>Sender</Type><Code>InvalidAction</Code>"
+                        + "<Message>" + action + "</Message></Error></ErrorResponse>");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String describeInstances(Map<String, List<String>> params) {
+        List<Integer> candidates = indexesOf(values(params, "InstanceId."));
+        Predicate<Integer> matches = i -> true;
+        for (int f = 1; params.containsKey("Filter." + f + ".Name"); f++) {
+            String name = first(params, "Filter." + f + ".Name");
+            List<String> values = values(params, "Filter." + f + ".Value.");
+            if ("tag-key".equals(name)) {
+                matches = matches.and(i -> values.contains(tagKey));
+            } else if ("instance-state-name".equals(name)) {
+                matches = matches.and(i -> values.contains("running"));
+            } else if ("instance-id".equals(name)) {
+                candidates = indexesOf(values);
+            }
+        }
+
+        int start = token(params);
+        StringBuilder xml = new StringBuilder("<DescribeInstancesResponse xmlns=\"" + EC2_NAMESPACE + "\">")
+                .append("<requestId>").append(requests.get()).append("</requestId><reservationSet>");
+        int next = page(candidates, matches, start, pageSize, i -> {
+            int group = i / instancesPerGroup;
+            xml.append("<item><reservationId>r-").append(hex(i)).append("</reservationId><ownerId>123456789012</ownerId>")
+                    .append("<groupSet/><instancesSet><item>")
+                    .append("<instanceId>").append(instanceId(i)).append("</instanceId>")
+                    .append("<instanceState><code>16</code><name>running</name></instanceState>")
+                    .append("<privateDnsName>ip-").append(privateIp(i).replace('.', '-')).append(".ec2.internal</privateDnsName>")
+                    .append("<dnsName>").append(publicDns(i)).append("</dnsName>")
+                    .append("<privateIpAddress>").append(privateIp(i)).append("</privateIpAddress>")
+                    .append("<tagSet>")
+                    .append("<item><key>").append(escape(tagKey)).append("</key><value>").append(cluster(group)).append("</value></item>")
+                    .append("<item><key>aws:autoscaling:groupName</key><value>").append(groupName(group)).append("</value></item>")
+                    .append("</tagSet></item></instancesSet></item>");
+        });
+        xml.append("</reservationSet>");
+        appendToken(xml, "nextToken", next);
+        return xml.append("</DescribeInstancesResponse>").toString();
+    }
+
+    private String describeAutoScalingGroups(Map<String, List<String>> params) {
+        List<String> names = values(params, "AutoScalingGroupNames.member.");
+        List<Integer> candidates = new ArrayList<>();
+        if (names.isEmpty()) {
+            for (int g = 0; g < groups; g++) {
+                candidates.add(g);
+            }
+        } else {
+            for (String name : names) {
+                int group = groupIndex(name);
+                if (group >= 0 && group < groups) {
+                    candidates.add(group);
+                }
+            }
+        }
+
+        StringBuilder xml = new StringBuilder("<DescribeAutoScalingGroupsResponse xmlns=\"" + ASG_NAMESPACE + "\">")
+                .append("<DescribeAutoScalingGroupsResult><AutoScalingGroups>");
+        int next = page(candidates, g -> true, token(params), groupPageSize, g -> {
+            xml.append("<member><AutoScalingGroupName>").append(groupName(g)).append("</AutoScalingGroupName>")
+                    .append("<Tags><member><ResourceId>").append(groupName(g)).append("</ResourceId>")
+                    .append("<ResourceType>auto-scaling-group</ResourceType><Key>").append(escape(tagKey)).append("</Key>")
+                    .append("<Value>").append(cluster(g)).append("</Value><PropagateAtLaunch>true</PropagateAtLaunch></member></Tags>")
+                    .append("<Instances>");
+            for (int i = g * instancesPerGroup; i < (g + 1) * instancesPerGroup; i++) {
+                xml.append("<member><InstanceId>").append(instanceId(i)).append("</InstanceId>")
+                        .append("<AvailabilityZone>us-east-1a</AvailabilityZone><LifecycleState>InService</LifecycleState>")
+                        .append("<HealthStatus>Healthy</HealthStatus><LaunchConfigurationName>lc</LaunchConfigurationName></member>");
+            }
+            xml.append("</Instances></member>");
+        });
+        xml.append("</AutoScalingGroups>");
+        appendToken(xml, "NextToken", next);
+        return xml.append("</DescribeAutoScalingGroupsResult><ResponseMetadata><RequestId>").append(requests.get())
+                .append("</RequestId></ResponseMetadata></DescribeAutoScalingGroupsResponse>").toString();
+    }
+
+    private String describeTags(Map<String, List<String>> params) {
+        boolean matches = true;
+        for (int f = 1; params.containsKey("Filters.member." + f + ".Name"); f++) {
+            if ("key".equals(first(params, "Filters.member." + f + ".Name"))) {
+                matches = values(params, "Filters.member." + f + ".Values.member.").contains(tagKey);
+            }
+        }
+
+        List<Integer> candidates = new ArrayList<>();
+        for (int g = 0; matches && g < groups; g++) {
+            candidates.add(g);
+        }
+
+        StringBuilder xml = new StringBuilder("<DescribeTagsResponse xmlns=\"" + ASG_NAMESPACE + "\"><DescribeTagsResult><Tags>");
+        int next = page(candidates, g -> true, token(params), pageSize, g ->
+                xml.append("<member><ResourceId>").append(groupName(g)).append("</ResourceId>")
+                        .append("<ResourceType>auto-scaling-group</ResourceType><Key>").append(escape(tagKey)).append("</Key>")
+                        .append("<Value>").append(cluster(g)).append("</Value><PropagateAtLaunch>true</PropagateAtLaunch></member>"));
+        xml.append("</Tags>");
+        appendToken(xml, "NextToken", next);
+        return xml.append("</DescribeTagsResult><ResponseMetadata><RequestId>").append(requests.get())
+                .append("</RequestId></ResponseMetadata></DescribeTagsResponse>").toString();
+    }
+
+    private String describeAutoScalingInstances(Map<String, List<String>> params) {
+        List<Integer> candidates = indexesOf(values(params, "InstanceIds.member."));
+        StringBuilder xml = new StringBuilder("<DescribeAutoScalingInstancesResponse xmlns=\"" + ASG_NAMESPACE + "\">")
+                .append("<DescribeAutoScalingInstancesResult><AutoScalingInstances>");
+        int next = page(candidates, i -> true, token(params), pageSize, i ->
+                xml.append("<member><InstanceId>").append(instanceId(i)).append("</InstanceId>")
+                        .append("<AutoScalingGroupName>").append(groupName(i / instancesPerGroup)).append("</AutoScalingGroupName>")
+                        .append("<AvailabilityZone>us-east-1a</AvailabilityZone><LifecycleState>InService</LifecycleState>")
+                        .append("<HealthStatus>HEALTHY</HealthStatus><LaunchConfigurationName>lc</LaunchConfigurationName></member>"));
+        xml.append("</AutoScalingInstances>");
+        appendToken(xml, "NextToken", next);
+        return xml.append("</DescribeAutoScalingInstancesResult><ResponseMetadata><RequestId>").append(requests.get())
+                .append("</RequestId></ResponseMetadata></DescribeAutoScalingInstancesResponse>").toString();
+    }
+
+    /**
+     * Writes the matching candidates from the start offset
+     * @param candidates indexes to page through, null for every instance
+     * @return offset of the next page, or -1 after the last page
+     */
+    private int page(List<Integer> candidates, Predicate<Integer> matches, int start, int size, IndexWriter writer) {
+        int total = candidates == null ? getInstanceCount() : candidates.size();
+        int written = 0;
+        int position = start;
+        for (; position < total && written < size; position++) {
+            int index = candidates == null ? position : candidates.get(position);
+            if (matches.test(index)) {
+                writer.write(index);
+                written++;
+            }
+        }
+        return position < total ? position : -1;
+    }
+
+    private interface IndexWriter {
+        void write(int index);
+    }
+
+    /**
+     * @return instance indexes of the ids that exist in the fleet, or null if no ids were given
+     */
+    private List<Integer> indexesOf(List<String> instanceIds) {
+        if (instanceIds.isEmpty()) {
+            return null;
+        }
+        List<Integer> indexes = new ArrayList<>(instanceIds.size());
+        for (String id : instanceIds) {
+            try {
+                int index = Integer.parseInt(id.substring("i-".length()), 16);
+                if (index >= 0 && index < getInstanceCount()) {
+                    indexes.add(index);
+                }
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                // unknown ids are not returned, just like terminated instances
+            }
+        }
+        return indexes;
+    }
+
+    private static int token(Map<String, List<String>> params) {
+        String token = first(params, "NextToken");
+        return Strings.isNullOrEmpty(token) ? 0 : Integer.parseInt(token);
+    }
+
+    private static void appendToken(StringBuilder xml, String element, int next) {
+        if (next >= 0) {
+            xml.append('<').append(element).append('>').append(next).append("</").append(element).append('>');
+        }
+    }
+
+    private static String instanceId(int index) {
+        return "i-" + hex(index);
+    }
+
+    private static String hex(int index) {
+        return String.format("%08x", index);
+    }
+
+    private static String privateIp(int index) {
+        return "10." + ((index >> 16) & 0xff) + "." + ((index >> 8) & 0xff) + "." + (index & 0xff);
+    }
+
+    private static String publicDns(int index) {
+        return "ec2-54-" + ((index >> 16) & 0xff) + "-" + ((index >> 8) & 0xff) + "-" + (index & 0xff)
+                + ".compute-1.amazonaws.com";
+    }
+
+    private static String cluster(int group) {
+        return "cluster-" + group;
+    }
+
+    private static String groupName(int group) {
+        return "asg-" + group;
+    }
+
+    private static int groupIndex(String groupName) {
+        try {
+            return groupName.startsWith("asg-") ? Integer.parseInt(groupName.substring(4)) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String first(Map<String, List<String>> params, String name) {
+        List<String> values = params.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * Returns the values of a numbered list parameter, e.g. InstanceId.1, InstanceId.2
+     */
+    private static List<String> values(Map<String, List<String>> params, String prefix) {
+        List<String> values = new ArrayList<>();
+        for (int i = 1; params.containsKey(prefix + i); i++) {
+            values.add(first(params, prefix + i));
+        }
+        return values;
+    }
+
+    private static Map<String, List<String>> parseParams(HttpExchange exchange) throws IOException {
+        String query = Strings.nullToEmpty(exchange.getRequestURI().getRawQuery());
+        String body = new String(readBody(exchange.getRequestBody()), StandardCharsets.UTF_8);
+        Map<String, List<String>> params = new HashMap<>();
+        for (String pair : PARAM_SPLITTER.split(query + "&" + body)) {
+            int eq = pair.indexOf('=');
+            String name = decode(eq < 0 ? pair : pair.substring(0, eq));
+            String value = eq < 0 ? "" : decode(pair.substring(eq + 1));
+            params.computeIfAbsent(name, n -> new ArrayList<>()).add(value);
+        }
+        return params;
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value, "UTF-8");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().put("Content-Type", Collections.singletonList("text/xml;charset=UTF-8"));
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class InstanceEventsTest {
+
+    @Test
+    public void parse_ec2StateChange() {
+        String running = "{\"detail-type\":\"EC2 Instance State-change Notification\",\"source\":\"aws.ec2\","
+                + "\"detail\":{\"instance-id\":\"i-1\",\"state\":\"running\"}}";
+        InstanceEvent event = InstanceEvents.parse(running, "receipt").get();
+        assertEquals("i-1", event.getInstanceId());
+        assertEquals(InstanceEvent.Type.CHANGED, event.getType());
+        assertEquals("receipt", event.getReceipt());
+
+        String terminated = running.replace("running", "terminated");
+        assertEquals(InstanceEvent.Type.TERMINATED, InstanceEvents.parse(terminated, null).get().getType());
+    }
+
+    @Test
+    public void parse_asgEvents() {
+        String launch = "{\"detail-type\":\"EC2 Instance Launch Successful\",\"source\":\"aws.autoscaling\","
+                + "\"detail\":{\"EC2InstanceId\":\"i-2\",\"AutoScalingGroupName\":\"group1\"}}";
+        assertEquals(InstanceEvent.Type.CHANGED, InstanceEvents.parse(launch, null).get().getType());
+
+        String hook = "{\"LifecycleTransition\":\"autoscaling:EC2_INSTANCE_TERMINATING\",\"EC2InstanceId\":\"i-3\"}";
+        InstanceEvent event = InstanceEvents.parse(hook, null).get();
+        assertEquals("i-3", event.getInstanceId());
+        assertEquals(InstanceEvent.Type.TERMINATED, event.getType());
+    }
+
+    @Test
+    public void parse_snsEnvelope() {
+        String message = "{\"Type\":\"Notification\",\"Message\":"
+                + "\"{\\\"Event\\\":\\\"autoscaling:EC2_INSTANCE_LAUNCH\\\",\\\"EC2InstanceId\\\":\\\"i-4\\\"}\"}";
+        InstanceEvent event = InstanceEvents.parse(message, null).get();
+        assertEquals("i-4", event.getInstanceId());
+        assertEquals(InstanceEvent.Type.CHANGED, event.getType());
+    }
+
+    @Test
+    public void parse_ignoresOtherMessages() {
+        Optional<InstanceEvent> test = InstanceEvents.parse("{\"Event\":\"autoscaling:TEST_NOTIFICATION\"}", null);
+        assertFalse(test.isPresent());
+        assertFalse(InstanceEvents.parse("not json", null).isPresent());
+        assertFalse(InstanceEvents.parse("[]", null).isPresent());
+    }
+}
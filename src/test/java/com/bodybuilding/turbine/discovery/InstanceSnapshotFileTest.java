@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.collect.Lists;
+import com.netflix.turbine.discovery.Instance;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class InstanceSnapshotFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("snapshots/instances.json.gz");
+        Instance instance = new Instance("host1", "cluster1", true);
+        instance.getAttributes().put(Ec2InstanceMapper.INSTANCE_ID_ATTRIBUTE, "i-1");
+        InstanceSnapshotFile file = new InstanceSnapshotFile(path);
+        file.write(Lists.newArrayList(instance, new Instance("host2", "cluster2", false)), 1234L);
+
+        InstanceSnapshotFile.Contents contents = file.read().get();
+        assertEquals(1234L, contents.getTimestamp());
+        assertEquals(Lists.newArrayList(instance, new Instance("host2", "cluster2", false)), contents.getInstances());
+        assertEquals("i-1", contents.getInstances().iterator().next().getAttributes()
+                .get(Ec2InstanceMapper.INSTANCE_ID_ATTRIBUTE));
+        // only the snapshot itself is left behind
+        assertEquals(1, path.getParent().toFile().list().length);
+    }
+
+    @Test
+    public void missingFile() throws Exception {
+        assertFalse(new InstanceSnapshotFile(folder.getRoot().toPath().resolve("missing.json.gz")).read().isPresent());
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptFile() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("corrupt.json.gz");
+        Files.write(path, "not a snapshot".getBytes());
+        new InstanceSnapshotFile(path).read();
+    }
+}
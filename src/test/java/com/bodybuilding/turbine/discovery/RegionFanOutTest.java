@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Closer;
+import com.netflix.config.ConfigurationManager;
+import com.netflix.turbine.discovery.Instance;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RegionFanOutTest {
+    private final Closer closer = Closer.create();
+
+    @After
+    public void teardown() throws IOException {
+        closer.close();
+        ConfigurationManager.getConfigInstance().clearProperty("turbine.region.timeoutMs");
+    }
+
+    @Test
+    public void slowRegionServesPreviousResult() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("turbine.region.timeoutMs", 100);
+        RegionFanOut fanOut = closer.register(new RegionFanOut("test", Lists.newArrayList("us-east-1", "us-west-2")));
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger westCalls = new AtomicInteger();
+        RegionFanOut.RegionCall call = region -> {
+            if (region.equals("us-west-2") && westCalls.incrementAndGet() == 2) {
+                release.await();
+            }
+            return Lists.newArrayList(new Instance("host-" + region, "cluster", true));
+        };
+
+        assertEquals(2, fanOut.poll(call).size());
+
+        long start = System.currentTimeMillis();
+        Collection<Instance> instances = fanOut.poll(call);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(2, instances.size());
+        release.countDown();
+    }
+
+    @Test
+    public void failingRegionServesPreviousResult() throws Exception {
+        RegionFanOut fanOut = closer.register(new RegionFanOut("test", Lists.newArrayList("us-east-1", "us-west-2")));
+        AtomicInteger calls = new AtomicInteger();
+        RegionFanOut.RegionCall call = region -> {
+            if (region.equals("us-west-2") && calls.incrementAndGet() > 1) {
+                throw new RuntimeException("Unit Test Intentional Exception");
+            }
+            return Lists.newArrayList(new Instance("host-" + region, "cluster", true));
+        };
+
+        assertEquals(2, fanOut.poll(call).size());
+        assertEquals(2, fanOut.poll(call).size());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void failsWhenNoRegionHasResult() throws Exception {
+        RegionFanOut fanOut = closer.register(new RegionFanOut("test", Lists.newArrayList("us-east-1", "us-west-2")));
+        fanOut.poll(region -> {
+            throw new RuntimeException("Unit Test Intentional Exception");
+        });
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void queryFailsOnAnyRegion() throws Exception {
+        RegionFanOut fanOut = closer.register(new RegionFanOut("test", Lists.newArrayList("us-east-1", "us-west-2")));
+        fanOut.query(region -> {
+            if (region.equals("us-west-2")) {
+                throw new RuntimeException("Unit Test Intentional Exception");
+            }
+            return Lists.newArrayList();
+        });
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.discovery;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Closer;
+import com.netflix.turbine.discovery.Instance;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ShardedInstanceDiscoveryTest {
+
+    @Mock
+    FallibleInstanceDiscovery delegate;
+
+    @Mock
+    PeerSource peerSource;
+
+    private final Closer closer = Closer.create();
+
+    @After
+    public void teardown() throws IOException {
+        closer.close();
+    }
+
+    @Test
+    public void nodesSplitClusters() throws Exception {
+        List<Instance> instances = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            instances.add(new Instance("host" + i + "a", "cluster" + i, true));
+            instances.add(new Instance("host" + i + "b", "cluster" + i, true));
+        }
+        when(delegate.fetchInstanceList()).thenReturn(instances);
+        when(peerSource.getPeers()).thenReturn(Lists.newArrayList("node1", "node2"));
+
+        ShardedInstanceDiscovery discovery1 = closer.register(new ShardedInstanceDiscovery(delegate, peerSource, "node1"));
+        ShardedInstanceDiscovery discovery2 = closer.register(new ShardedInstanceDiscovery(delegate, peerSource, "node2"));
+        Collection<Instance> node1 = discovery1.getInstanceList();
+        Collection<Instance> node2 = discovery2.getInstanceList();
+
+        assertFalse(node1.isEmpty());
+        assertFalse(node2.isEmpty());
+        assertEquals(100, node1.size() + node2.size());
+        Set<String> node1Clusters = clusters(node1);
+        clusters(node2).forEach(c -> assertFalse(node1Clusters.contains(c)));
+        // instances of a cluster stay together
+        assertEquals(node1.size(), node1Clusters.size() * 2);
+    }
+
+    @Test
+    public void keepsPreviousPeersOnFailure() throws Exception {
+        List<Instance> instances = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            instances.add(new Instance("host" + i, "cluster" + i, true));
+        }
+        when(delegate.fetchInstanceList()).thenReturn(instances);
+        when(peerSource.getPeers())
+                .thenReturn(Lists.newArrayList("node1", "node2"))
+                .thenThrow(new RuntimeException("Unit Test Intentional Exception"));
+        ShardedInstanceDiscovery discovery = closer.register(new ShardedInstanceDiscovery(delegate, peerSource, "node1"));
+
+        Set<String> first = clusters(discovery.getInstanceList());
+        assertEquals(first, clusters(discovery.getInstanceList()));
+        assertTrue(first.size() < 20);
+    }
+
+    @Test
+    public void ownsEverythingWithoutPeers() throws Exception {
+        when(delegate.fetchInstanceList()).thenReturn(Lists.newArrayList(
+                new Instance("host1", "cluster1", true), new Instance("host2", "cluster2", true)));
+        when(peerSource.getPeers()).thenThrow(new RuntimeException("Unit Test Intentional Exception"));
+
+        ShardedInstanceDiscovery discovery = closer.register(new ShardedInstanceDiscovery(delegate, peerSource, "node1"));
+        assertEquals(2, discovery.getInstanceList().size());
+        assertEquals("node1", ShardedInstanceDiscovery.getClusterOwner("cluster1").get());
+    }
+
+    @Test
+    public void publishesClustersOfAllNodes() throws Exception {
+        List<Instance> instances = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            instances.add(new Instance("host" + i, "cluster" + i, true));
+        }
+        instances.add(new Instance("downHost", "downCluster", false));
+        when(delegate.fetchInstanceList()).thenReturn(instances);
+        when(peerSource.getPeers()).thenReturn(Lists.newArrayList("node1", "node2"));
+        ShardedInstanceDiscovery discovery = closer.register(new ShardedInstanceDiscovery(delegate, peerSource, "node1"));
+
+        Set<String> owned = clusters(discovery.getInstanceList());
+        ShardedInstanceDiscovery.ClusterAssignment assignment = ShardedInstanceDiscovery.getClusterAssignment().get();
+        assertEquals("node1", assignment.getSelf());
+        assertEquals(20, assignment.getClusterNames().size());
+        assertFalse(assignment.getClusterNames().contains("downCluster"));
+        assertTrue(assignment.getClusterNames().stream().anyMatch(c -> !owned.contains(c)));
+        assignment.getClusterNames().forEach(c -> assertEquals(owned.contains(c), "node1".equals(assignment.getOwner(c))));
+
+        discovery.getInstanceList();
+        assertSame(assignment, ShardedInstanceDiscovery.getClusterAssignment().get());
+    }
+
+    @Test
+    public void addsSelfToPeers() throws Exception {
+        when(delegate.fetchInstanceList()).thenReturn(Lists.newArrayList(new Instance("host1", "cluster1", true)));
+        when(peerSource.getPeers()).thenReturn(Lists.newArrayList());
+
+        ShardedInstanceDiscovery discovery = closer.register(new ShardedInstanceDiscovery(delegate, peerSource, "node1"));
+        assertEquals(1, discovery.getInstanceList().size());
+    }
+
+    private static Set<String> clusters(Collection<Instance> instances) {
+        Set<String> clusters = new HashSet<>();
+        instances.forEach(i -> clusters.add(i.getCluster()));
+        return clusters;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.metrics;
+
+import com.amazonaws.AmazonServiceException;
+import com.google.common.collect.Lists;
+import com.netflix.turbine.discovery.Instance;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Map;
+
+import static com.bodybuilding.turbine.metrics.DiscoveryMetrics.labels;
+import static org.junit.Assert.*;
+
+public class DiscoveryMetricsTest {
+    private final DiscoveryMetrics metrics = new DiscoveryMetrics();
+
+    @Test
+    public void testTimeAwsCall() {
+        Map<String, String> labels = labels("source", "ec2", "operation", "DescribeInstances");
+        assertEquals("result", metrics.timeAwsCall("ec2", "DescribeInstances", () -> "result"));
+
+        AmazonServiceException throttle = new AmazonServiceException("slow down");
+        throttle.setErrorCode("RequestLimitExceeded");
+        try {
+            metrics.timeAwsCall("ec2", "DescribeInstances", () -> {
+                throw throttle;
+            });
+            fail("expected exception");
+        } catch (AmazonServiceException e) {
+            assertSame(throttle, e);
+        }
+
+        assertEquals(1, metrics.getCounter("discovery_aws_pages_total", labels));
+        assertEquals(1, metrics.getCounter("discovery_aws_throttles_total", labels));
+        assertEquals(0, metrics.getCounter("discovery_aws_errors_total", labels));
+        assertEquals(2, metrics.histogram("discovery_aws_latency_ms", labels).getCount());
+    }
+
+    @Test
+    public void testRecordPoll() {
+        metrics.recordPoll("asg", Lists.newArrayList(
+                new Instance("host1", "cluster1", true),
+                new Instance("host2", "cluster1", true),
+                new Instance("host3", "cluster2", true)));
+        assertEquals(3, metrics.getGauge("discovery_poll_added", labels("source", "asg")));
+        assertEquals(2, metrics.getGauge("discovery_cluster_instances", labels("source", "asg", "cluster", "cluster1")));
+
+        metrics.recordPoll("asg", Lists.newArrayList(
+                new Instance("host1", "cluster1", true),
+                new Instance("host4", "cluster1", true)));
+        assertEquals(1, metrics.getGauge("discovery_poll_added", labels("source", "asg")));
+        assertEquals(2, metrics.getGauge("discovery_poll_removed", labels("source", "asg")));
+        assertEquals(4, metrics.getCounter("discovery_instances_added_total", labels("source", "asg")));
+        assertEquals(2, metrics.getCounter("discovery_instances_removed_total", labels("source", "asg")));
+        assertEquals(0, metrics.getGauge("discovery_cluster_instances", labels("source", "asg", "cluster", "cluster2")));
+        assertFalse(metrics.toMap().get("gauges").containsKey("discovery_cluster_instances{source=\"asg\",cluster=\"cluster2\"}"));
+    }
+
+    @Test
+    public void testTimePollFailure() throws Exception {
+        try {
+            metrics.timePoll("ec2", () -> {
+                throw new IllegalStateException("Unit Test Intentional Exception");
+            });
+            fail("expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, metrics.getCounter("discovery_poll_failures_total", labels("source", "ec2")));
+    }
+
+    @Test
+    public void testWritePrometheus() throws Exception {
+        metrics.increment("test_total", labels("source", "ec2"), 2);
+        metrics.setGauge("test_gauge", labels(), 5);
+        metrics.histogram("test_latency_ms", labels("source", "ec2")).record(7);
+
+        StringWriter writer = new StringWriter();
+        metrics.writePrometheus(writer);
+        String text = writer.toString();
+        assertTrue(text.contains("# TYPE test_total counter\ntest_total{source=\"ec2\"} 2\n"));
+        assertTrue(text.contains("# TYPE test_gauge gauge\ntest_gauge 5\n"));
+        assertTrue(text.contains("# TYPE test_latency_ms histogram\n"));
+        assertTrue(text.contains("test_latency_ms_bucket{source=\"ec2\",le=\"5\"} 0\n"));
+        assertTrue(text.contains("test_latency_ms_bucket{source=\"ec2\",le=\"10\"} 1\n"));
+        assertTrue(text.contains("test_latency_ms_bucket{source=\"ec2\",le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("test_latency_ms_sum{source=\"ec2\"} 7\n"));
+        assertTrue(text.contains("test_latency_ms_count{source=\"ec2\"} 1\n"));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.servlet;
+
+import com.bodybuilding.turbine.discovery.ClusterNameIndex;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.netflix.config.ConfigurationManager;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ClusterEventBroadcasterTest {
+    private static final DynamicLongProperty HEARTBEAT = DynamicPropertyFactory.getInstance()
+            .getLongProperty("ClusterEventBroadcasterTest.heartbeatMs", 60000);
+    private static final DynamicLongProperty WRITE_TIMEOUT = DynamicPropertyFactory.getInstance()
+            .getLongProperty("ClusterEventBroadcasterTest.writeTimeoutMs", 60000);
+
+    @Mock
+    AsyncContext context;
+
+    @Mock
+    ServletResponse response;
+
+    private final AtomicReference<ClusterNameIndex.Snapshot> snapshot = new AtomicReference<>();
+    private ByteArrayOutputStream body;
+    private ExecutorService writer;
+
+    @Before
+    public void setup() throws Exception {
+        body = new ByteArrayOutputStream();
+        when(context.getResponse()).thenReturn(response);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                body.write(b);
+            }
+        });
+        snapshot.set(snapshot(1, ImmutableMap.of("clusterA", 2)));
+    }
+
+    @After
+    public void teardown() {
+        if (writer != null) {
+            writer.shutdownNow();
+        }
+        ConfigurationManager.getConfigInstance().clearProperty("ClusterEventBroadcasterTest.heartbeatMs");
+        ConfigurationManager.getConfigInstance().clearProperty("ClusterEventBroadcasterTest.writeTimeoutMs");
+    }
+
+    @Test
+    public void sendsFullListThenDeltas() throws Exception {
+        ClusterEventBroadcaster broadcaster = new ClusterEventBroadcaster(snapshot::get, HEARTBEAT, WRITE_TIMEOUT,
+                MoreExecutors.sameThreadExecutor());
+        broadcaster.register(context);
+        broadcaster.broadcast();
+        String events = body.toString("UTF-8");
+        assertTrue(events.startsWith("retry: 5000\nevent: clusters\nid: 1\n"));
+        assertTrue(events.contains("data: {\"version\":1,\"clusters\":{\"clusterA\":2}}\n\n"));
+
+        body.reset();
+        snapshot.set(snapshot(2, ImmutableMap.of("clusterA", 3, "clusterB", 1)));
+        broadcaster.broadcast();
+        assertEquals("event: delta\nid: 2\ndata: {\"version\":2,\"added\":{\"clusterB\":1},\"removed\":[],"
+                + "\"changed\":{\"clusterA\":3}}\n\n", body.toString("UTF-8"));
+
+        body.reset();
+        broadcaster.broadcast();
+        assertEquals(0, body.size());
+    }
+
+    @Test
+    public void sendsHeartbeatWhenIdle() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("ClusterEventBroadcasterTest.heartbeatMs", 1);
+        ClusterEventBroadcaster broadcaster = new ClusterEventBroadcaster(snapshot::get, HEARTBEAT, WRITE_TIMEOUT,
+                MoreExecutors.sameThreadExecutor());
+        broadcaster.register(context);
+        broadcaster.broadcast();
+
+        body.reset();
+        Thread.sleep(5);
+        broadcaster.broadcast();
+        assertEquals(": keepalive\n\n", body.toString("UTF-8"));
+    }
+
+    @Test
+    public void dropsClientsThatFailToWrite() throws Exception {
+        ClusterEventBroadcaster broadcaster = new ClusterEventBroadcaster(snapshot::get, HEARTBEAT, WRITE_TIMEOUT,
+                MoreExecutors.sameThreadExecutor());
+        doThrow(new IOException("Unit Test Intentional Exception")).when(response).flushBuffer();
+        broadcaster.register(context);
+        assertEquals(1, broadcaster.getClientCount());
+
+        broadcaster.broadcast();
+        assertEquals(0, broadcaster.getClientCount());
+        verify(context).complete();
+    }
+
+    @Test
+    public void dropsClientsBlockedInWrite() throws Exception {
+        ConfigurationManager.getConfigInstance().setProperty("ClusterEventBroadcasterTest.writeTimeoutMs", 50);
+        writer = Executors.newCachedThreadPool();
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch completed = new CountDownLatch(1);
+        AsyncContext stalled = mock(AsyncContext.class);
+        ServletResponse stalledResponse = mock(ServletResponse.class);
+        when(stalled.getResponse()).thenReturn(stalledResponse);
+        when(stalledResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                blocked.countDown();
+                try {
+                    // a client that stopped reading, until the container closes the connection
+                    completed.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                throw new IOException("Unit Test Intentional Exception");
+            }
+        });
+        doAnswer(i -> {
+            completed.countDown();
+            return null;
+        }).when(stalled).complete();
+
+        ClusterEventBroadcaster broadcaster = new ClusterEventBroadcaster(snapshot::get, HEARTBEAT, WRITE_TIMEOUT, writer);
+        broadcaster.register(stalled);
+        broadcaster.register(context);
+        broadcaster.broadcast();
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        // the other client keeps receiving events while the stalled one is blocked
+        snapshot.set(snapshot(2, ImmutableMap.of("clusterA", 3)));
+        broadcaster.broadcast();
+        waitFor(() -> body.toString().contains("event: delta\nid: 2\n"));
+        assertEquals(2, broadcaster.getClientCount());
+
+        waitFor(() -> {
+            broadcaster.broadcast();
+            return broadcaster.getClientCount() == 1;
+        });
+        assertEquals(0, completed.getCount());
+        verify(context, never()).complete();
+    }
+
+    @Test
+    public void renderDelta_noChanges() throws Exception {
+        Map<String, Integer> clusters = ImmutableMap.of("clusterA", 1);
+        assertNull(ClusterEventBroadcaster.renderDelta(2, clusters, clusters));
+        String removed = new String(ClusterEventBroadcaster.renderDelta(3, clusters, ImmutableMap.of()), StandardCharsets.UTF_8);
+        assertTrue(removed.contains("\"removed\":[\"clusterA\"]"));
+    }
+
+    private static void waitFor(Condition condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.test()) {
+            assertTrue("Timed out waiting for condition", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private interface Condition {
+        boolean test() throws Exception;
+    }
+
+    private static ClusterNameIndex.Snapshot snapshot(long version, Map<String, Integer> clusters) {
+        ClusterNameIndex.Snapshot snapshot = mock(ClusterNameIndex.Snapshot.class);
+        when(snapshot.getVersion()).thenReturn(version);
+        when(snapshot.getClusterNames()).thenReturn(ImmutableSortedSet.copyOf(clusters.keySet()));
+        clusters.forEach((c, count) -> when(snapshot.getHostCount(c)).thenReturn(count));
+        return snapshot;
+    }
+}
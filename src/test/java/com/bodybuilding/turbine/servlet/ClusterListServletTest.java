@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.servlet;
+
+import com.bodybuilding.turbine.discovery.ConsistentHashRing;
+import com.bodybuilding.turbine.discovery.ShardedInstanceDiscovery.ClusterAssignment;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.netflix.turbine.monitor.cluster.ClusterMonitor;
+import com.netflix.turbine.monitor.cluster.ClusterMonitorFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRegistration;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ClusterListServletTest {
+
+    @Mock
+    ServletConfig config;
+
+    @Mock
+    ServletContext sc;
+
+    @Mock
+    ServletRegistration registration;
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    @Mock
+    ClusterMonitorFactory<?> clusterMonitorFactory;
+
+    @Mock
+    ClusterMonitor clusterMonitor;
+
+    private ByteArrayOutputStream body;
+
+    @Before
+    public void setup() throws Exception {
+        Map<String, ServletRegistration> registrations = Maps.newHashMap();
+        registrations.put("turbineStreamServlet", registration);
+        when(registration.getMappings()).thenReturn(Lists.newArrayList("/turbine.stream"));
+        when(sc.getServletRegistrations()).thenAnswer(i -> registrations);
+        when(config.getServletContext()).thenReturn(sc);
+
+        when(request.getRequestURL()).thenAnswer(i -> new StringBuffer("http://localhost:8080/clusters"));
+        when(request.getServletPath()).thenReturn("/clusters");
+
+        body = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                body.write(b);
+            }
+        });
+    }
+
+    @Test
+    public void testRenderClusterList() throws Exception {
+        when(clusterMonitorFactory.getClusterMonitor("cluster 1")).thenAnswer(i -> clusterMonitor);
+        byte[] json = ClusterListServlet.renderClusterList(Lists.newArrayList("cluster 1", "unmonitored"),
+                "http://localhost/turbine.stream?cluster=", Optional.of("http://localhost/monitor.html?stream="),
+                clusterMonitorFactory);
+
+        assertEquals("[{\"name\":\"cluster 1\"," +
+                "\"link\":\"http://localhost/monitor.html?stream=http%3A%2F%2Flocalhost%2Fturbine.stream%3Fcluster%3Dcluster+1&title=cluster+1\"," +
+                "\"turbineStream\":\"http://localhost/turbine.stream?cluster=cluster+1\"}]",
+                new String(json, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRenderClusterList_owner() throws Exception {
+        when(clusterMonitorFactory.getClusterMonitor("cluster1")).thenAnswer(i -> clusterMonitor);
+        ConsistentHashRing ring = new ConsistentHashRing(Lists.newArrayList("node1"), 10);
+        ClusterAssignment assignment = new ClusterAssignment(ring, "node1", Lists.newArrayList("cluster1"));
+        byte[] json = ClusterListServlet.renderClusterList(Lists.newArrayList("cluster1"),
+                "http://localhost/turbine.stream?cluster=", Optional.empty(), clusterMonitorFactory, Optional.of(assignment));
+
+        assertEquals("[{\"name\":\"cluster1\",\"turbineStream\":\"http://localhost/turbine.stream?cluster=cluster1\"," +
+                "\"owner\":\"node1\"}]", new String(json, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRenderClusterList_clusterOwnedByPeer() throws Exception {
+        ConsistentHashRing ring = new ConsistentHashRing(Lists.newArrayList("node1", "node2"), 10);
+        String cluster = "cluster0";
+        for (int i = 1; !ring.getOwner(cluster).equals("node2"); i++) {
+            cluster = "cluster" + i;
+        }
+        when(clusterMonitorFactory.getClusterMonitor(cluster)).thenAnswer(i -> clusterMonitor);
+        ClusterAssignment assignment = new ClusterAssignment(ring, "node1", Lists.newArrayList(cluster));
+
+        byte[] json = ClusterListServlet.renderClusterList(assignment.getClusterNames(),
+                "http://node1:8080/turbine.stream?cluster=", Optional.of("http://node1:8080/monitor.html?stream="),
+                clusterMonitorFactory, Optional.of(assignment));
+
+        assertEquals("[{\"name\":\"" + cluster + "\"," +
+                "\"link\":\"http://node1:8080/monitor.html?stream=http%3A%2F%2Fnode2%3A8080%2Fturbine.stream%3Fcluster%3D" +
+                cluster + "&title=" + cluster + "\"," +
+                "\"turbineStream\":\"http://node2:8080/turbine.stream?cluster=" + cluster + "\"," +
+                "\"owner\":\"node2\"}]", new String(json, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testGetPeerTurbineBaseUrl() {
+        assertEquals("http://node2:8080/turbine/turbine.stream?cluster=", ClusterListServlet.getPeerTurbineBaseUrl(
+                "http://node1:8080/turbine/turbine.stream?cluster=", "node2"));
+        assertEquals("https://node2:9090/turbine.stream?cluster=", ClusterListServlet.getPeerTurbineBaseUrl(
+                "https://node1/turbine.stream?cluster=", "node2:9090"));
+        assertEquals("https://node2/turbine.stream?cluster=", ClusterListServlet.getPeerTurbineBaseUrl(
+                "https://node1/turbine.stream?cluster=", "node2"));
+    }
+
+    @Test
+    public void testDoGet_etag() throws Exception {
+        ClusterListServlet servlet = new ClusterListServlet();
+        servlet.init(config);
+
+        servlet.doGet(request, response);
+        assertEquals("[]", new String(body.toByteArray(), StandardCharsets.UTF_8));
+        verify(response).setHeader(eq("ETag"), anyString());
+
+        String etag = "\"" + Hashing.sha1().hashBytes("[]".getBytes(StandardCharsets.UTF_8)) + "\"";
+        when(request.getHeader("If-None-Match")).thenReturn(etag);
+        body.reset();
+        servlet.doGet(request, response);
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertEquals(0, body.size());
+    }
+
+    @Test
+    public void testDoGet_gzip() throws Exception {
+        ClusterListServlet servlet = new ClusterListServlet();
+        servlet.init(config);
+        when(request.getHeader("Accept-Encoding")).thenReturn("deflate, gzip");
+
+        servlet.doGet(request, response);
+        verify(response).setHeader("Content-Encoding", "gzip");
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body.toByteArray()))) {
+            ByteArrayOutputStream json = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                json.write(b);
+            }
+            assertEquals("[]", new String(json.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testSelectPrefix() {
+        ImmutableSortedSet<String> names = ImmutableSortedSet.of("api", "api-east", "apis", "web", "web-east");
+        assertEquals(names, ClusterListServlet.selectPrefix(names, null));
+        assertEquals(Lists.newArrayList("api", "api-east", "apis"),
+                Lists.newArrayList(ClusterListServlet.selectPrefix(names, "api")));
+        assertEquals(Lists.newArrayList("api-east"),
+                Lists.newArrayList(ClusterListServlet.selectPrefix(names, "api-")));
+        assertTrue(ClusterListServlet.selectPrefix(names, "b").isEmpty());
+    }
+
+    @Test
+    public void testSelectMonitored() {
+        when(clusterMonitorFactory.getClusterMonitor("api")).thenAnswer(i -> clusterMonitor);
+        when(clusterMonitorFactory.getClusterMonitor("apis")).thenAnswer(i -> clusterMonitor);
+        ImmutableSortedSet<String> names = ImmutableSortedSet.of("api", "api-east", "apis", "web");
+        assertEquals(Lists.newArrayList("api", "apis"), ClusterListServlet.selectMonitored(
+                ClusterListServlet.selectPrefix(names, "api"), clusterMonitorFactory));
+    }
+
+    @Test
+    public void testDoGet_page() throws Exception {
+        ClusterListServlet servlet = new ClusterListServlet();
+        servlet.init(config);
+        when(request.getParameter("prefix")).thenReturn("api");
+        when(request.getParameter("limit")).thenReturn("10");
+
+        servlet.doGet(request, response);
+        assertEquals("[]", new String(body.toByteArray(), StandardCharsets.UTF_8));
+        verify(response).setHeader("X-Total-Count", "0");
+        verify(response, never()).setHeader(eq("ETag"), anyString());
+    }
+
+    @Test
+    public void testDoGet_invalidLimit() throws Exception {
+        ClusterListServlet servlet = new ClusterListServlet();
+        servlet.init(config);
+        when(request.getParameter("limit")).thenReturn("-1");
+
+        servlet.doGet(request, response);
+        verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+        assertEquals(0, body.size());
+    }
+
+    @Test
+    public void testMatchesEtag() {
+        assertFalse(ClusterListServlet.matchesEtag(null, "\"abc\""));
+        assertTrue(ClusterListServlet.matchesEtag("\"abc\"", "\"abc\""));
+        assertTrue(ClusterListServlet.matchesEtag("\"xyz\", W/\"abc\"", "\"abc\""));
+        assertTrue(ClusterListServlet.matchesEtag("*", "\"abc\""));
+        assertFalse(ClusterListServlet.matchesEtag("\"xyz\"", "\"abc\""));
+    }
+
+    @Test
+    public void testAcceptsGzip() {
+        assertFalse(ClusterListServlet.acceptsGzip(null));
+        assertTrue(ClusterListServlet.acceptsGzip("gzip"));
+        assertTrue(ClusterListServlet.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertFalse(ClusterListServlet.acceptsGzip("gzip;q=0"));
+        assertFalse(ClusterListServlet.acceptsGzip("deflate, br"));
+        assertTrue(ClusterListServlet.acceptsGzip("*"));
+        assertTrue(ClusterListServlet.acceptsGzip("*;q=0, gzip"));
+        assertFalse(ClusterListServlet.acceptsGzip("*, gzip;q=0"));
+        assertFalse(ClusterListServlet.acceptsGzip("deflate, *;q=0"));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 Bodybuilding.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bodybuilding.turbine.servlet;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ClusterStreamServletTest {
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    @Mock
+    AsyncContext context;
+
+    @Mock
+    ClusterEventBroadcaster broadcaster;
+
+    @Test
+    public void registersAsyncClient() throws Exception {
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync()).thenReturn(context);
+        ClusterStreamServlet servlet = new ClusterStreamServlet();
+        servlet.setBroadcaster(broadcaster);
+
+        servlet.doGet(request, response);
+        verify(response).setContentType("text/event-stream");
+        verify(context).setTimeout(0);
+        verify(broadcaster).register(context);
+    }
+
+    @Test
+    public void rejectsWithoutAsyncSupport() throws Exception {
+        ClusterStreamServlet servlet = new ClusterStreamServlet();
+        servlet.setBroadcaster(broadcaster);
+
+        servlet.doGet(request, response);
+        verify(response).sendError(eq(HttpServletResponse.SC_INTERNAL_SERVER_ERROR), anyString());
+        verify(request, never()).startAsync();
+        verifyZeroInteractions(broadcaster);
+    }
+}